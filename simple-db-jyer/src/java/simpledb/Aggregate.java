@@ -112,7 +112,7 @@ public class Aggregate extends Operator {
     	Type aType = child.getTupleDesc().getFieldType(afield);
     	if (aType == Type.INT_TYPE)
     		agg = new IntegerAggregator(gfield, gType, afield, aop);
-    	if (aType == Type.STRING_TYPE)
+    	else
     		agg = new StringAggregator(gfield, gType, afield, aop);
     	child.open();
     	super.open();
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BlockNestedLoopJoin is a nested loops join that reads the outer input a
+ * block at a time: it fills a memory budget, given in buffer pool pages,
+ * with outer tuples, and then scans the inner input once, matching each
+ * inner tuple against the whole block. The inner input is thus scanned
+ * once per block rather than once per outer tuple. Like {@link Join}, it is
+ * pipelined within a block.
+ */
+public class BlockNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    /** System property with the default block size, in pages. */
+    public static final String BLOCK_PAGES_PROPERTY = "simpledb.joinBlockPages";
+
+    /** Default block size: 16 pages. */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
+    private static volatile int defaultBlockPages = Integer.getInteger(BLOCK_PAGES_PROPERTY,
+            DEFAULT_BLOCK_PAGES);
+
+    private final int blockPages;
+    // the outer tuples of the current block
+    private final ArrayList<Tuple> block = new ArrayList<Tuple>();
+    private int blockTuples;
+    // the inner tuple being joined, or null before the next one
+    private Tuple t2;
+    // the next outer tuple of the block to match against t2
+    private int pos;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on, with blocks of the default size.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, defaultBlockPages);
+    }
+
+    /**
+     * Constructor, with blocks of outer tuples that take up to blockPages
+     * pages; one tuple at least.
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            int blockPages) {
+        super(p, child1, child2);
+        this.blockPages = blockPages;
+    }
+
+    /** @return the block size of joins created without one, in pages */
+    public static int getDefaultBlockPages() {
+        return defaultBlockPages;
+    }
+
+    /**
+     * Set the block size of joins created without one, in pages. The
+     * default comes from the system property {@value #BLOCK_PAGES_PROPERTY}.
+     */
+    public static void setDefaultBlockPages(int pages) {
+        defaultBlockPages = pages;
+    }
+
+    /**
+     * @return the number of tuples of td that fit in pages pages of fixed
+     *         slots; one at least
+     */
+    public static int tuplesPerBlock(TupleDesc td, int pages) {
+        long perPage = BufferPool.getPageSize() * 8L / (td.getSize() * 8 + 1);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, perPage * pages));
+    }
+
+    /** @return the number of outer tuples in a block */
+    public int getBlockTuples() {
+        return tuplesPerBlock(child1.getTupleDesc(), blockPages);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        blockTuples = getBlockTuples();
+        loadBlock();
+    }
+
+    public void close() {
+        super.close();
+        block.clear();
+        t2 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        loadBlock();
+    }
+
+    /**
+     * Fill the block with the next outer tuples.
+     *
+     * @return false if there are none left
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        t2 = null;
+        while (block.size() < blockTuples && child1.hasNext())
+            block.add(child1.next());
+        return !block.isEmpty();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer and an inner tuple that
+     * satisfy the join predicate. Within a block, the output follows the
+     * order of the inner input.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (!block.isEmpty()) {
+            if (t2 != null) {
+                while (pos < block.size()) {
+                    Tuple t1 = block.get(pos++);
+                    if (p.filter(t1, t2))
+                        return merge(t1, t2);
+                }
+            }
+            if (child2.hasNext()) {
+                t2 = child2.next();
+                pos = 0;
+            } else if (loadBlock()) {
+                // child2 is done: the next block scans it again
+                child2.rewind();
+            }
+        }
+        return null;
+    }
+}
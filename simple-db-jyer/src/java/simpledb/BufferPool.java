@@ -3,6 +3,11 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.*;
 
 /**
@@ -13,6 +18,15 @@ import java.lang.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Locks are taken on whole pages by default. With
+ * {@link LockGranularity#RECORD} locking, writers lock the records they
+ * change, so several transactions may update different tuples of one page
+ * at once; see {@link #setLockGranularity}.
+ * <p>
+ * Read-only transactions started with {@link #beginSnapshot} take no locks
+ * at all: they read the committed versions of pages as of their start,
+ * which a {@link VersionStore} keeps while they run.
  * 
  * @Threadsafe, all fields are final
  */
@@ -24,109 +38,131 @@ public class BufferPool {
     
     private ConcurrentHashMap<PageId, Page> pages;
     private int numPages;
+    private final ReplacementPolicy policy;
+    // resident pages brought in by a ring scan that nobody else has asked for
+    private final ConcurrentHashMap<PageId, ScanRing> ringOwner = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final VersionStore versions = new VersionStore();
+    private volatile int prefetchWindow;
+    // reads pages ahead of scans; created on first use, idle threads exit
+    private ThreadPoolExecutor prefetcher;
+    // pages each transaction fetched READ_WRITE or changed, which are all
+    // the pages commit and abort have to look at
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writeSets =
+    		new ConcurrentHashMap<>();
     
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
-    
+
+    /** System property with the largest read-ahead window of a scan, in pages. */
+    public static final String PREFETCH_WINDOW_PROPERTY = "simpledb.prefetchWindow";
+    /** Default largest read-ahead window; 0 turns read-ahead off. */
+    public static final int DEFAULT_PREFETCH_WINDOW = 32;
+    private static final int PREFETCH_THREADS = 2;
+
+    /** System property with the lock granularity, "page" or "record". */
+    public static final String LOCK_GRANULARITY_PROPERTY = "simpledb.lockGranularity";
+
+    /** The smallest item a transaction locks before it changes a tuple. */
+    public enum LockGranularity {
+        /** S and X locks on pages only. */
+        PAGE,
+        /**
+         * Intention locks on tables and pages, and X locks on the records a
+         * transaction inserts or deletes. Readers still lock whole pages S.
+         */
+        RECORD
+    }
+
+    private final LockManager lm;
+    private volatile LockGranularity granularity;
+    // with RECORD locking, how to undo each active transaction's changes
+    private final ConcurrentHashMap<TransactionId, List<UndoRecord>> undoLog =
+            new ConcurrentHashMap<>();
+    // with RECORD locking, the pages with uncommitted changes and the
+    // transactions that made them; these pages are never stolen
+    private final ConcurrentHashMap<PageId, Set<TransactionId>> recordWriters =
+            new ConcurrentHashMap<>();
+    // held by a RECORD-level commit from its first image to its commit record
+    private final Object recordCommit = new Object();
+
+    /** A tuple inserted (tuple == null) or deleted by a record-level writer. */
+    private static class UndoRecord {
+    	final RecordId rid;
+    	final Tuple tuple;
+
+    	UndoRecord(RecordId rid, Tuple tuple) {
+    		this.rid = rid;
+    		this.tuple = tuple;
+    	}
+
+    	/** Revert the change on page, which may be a private copy. */
+    	void undo(HeapPage page) {
+    		if (tuple == null)
+    			page.clearSlot(rid.getTupleNumber());
+    		else
+    			page.restoreTuple(rid.getTupleNumber(), tuple);
+    	}
+    }
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
-    private class LockManager {
-    	
-    	private Map<PageId, Set<TransactionId>> pidToTid;
-    	private Map<PageId, Permissions> pidToPerm;
-    	public Map<TransactionId, Set<PageId>> tidToPid;
-    	public Map<TransactionId, Set<TransactionId>> tidCycle;
-    	
-    	public LockManager() {
-    		pidToTid = new HashMap<>();
-    		pidToPerm = new HashMap<>();
-    		tidToPid = new HashMap<>();
-    		tidCycle = new HashMap<>();
-    	}
-    	
-    	private synchronized boolean checkLock(TransactionId tid, PageId pid, Permissions perm) {
-    		if (!pidToPerm.containsKey(pid))
-    			return true;
-    		if (pidToPerm.get(pid).equals(Permissions.READ_ONLY)) {
-    			if (perm.equals(Permissions.READ_ONLY))
-    				return true;
-    			else {
-    				// problem
-    				return pidToTid.containsKey(pid) && 
-    						pidToTid.get(pid).contains(tid) &&
-    						pidToTid.get(pid).size() == 1;
-    			}
-    		}
-    		else {
-    			return pidToTid.get(pid).contains(tid);
-    		}
-    	}
-    	
-    	private synchronized boolean getLock(TransactionId tid, PageId pid, Permissions perm) 
-    			throws TransactionAbortedException{
-    		if (!checkLock(tid, pid, perm)) {
-    			if (detectCycle(tid, new HashSet<>()))
-    				throw new TransactionAbortedException();
-    			if (!tidCycle.containsKey(tid))
-    				tidCycle.put(tid, new HashSet<>());
-    			for (TransactionId blockedTid : pidToTid.get(pid))
-    				tidCycle.get(tid).add(blockedTid);
-    			return false;
-    		}
-    		tidCycle.remove(tid);
-    		pidToPerm.put(pid, perm);
-    		if (!pidToTid.containsKey(pid))
-    			pidToTid.put(pid, new HashSet<>());
-    		pidToTid.get(pid).add(tid);
-    		if (!tidToPid.containsKey(tid))
-    			tidToPid.put(tid, new HashSet<>());
-    		tidToPid.get(tid).add(pid);
-    		return true;// not finished
-    	}
-    	
-    	private boolean detectCycle(TransactionId tid, Set<TransactionId> visited) {
-    		if (tid == null || !tidCycle.containsKey(tid)) return false;
-    		if (visited.contains(tid)) return true;
-    		visited.add(tid);
-    		for (TransactionId childTid : tidCycle.get(tid)) {
-    			if (detectCycle(childTid, visited)) return true;
-    		}
-    		return false;
-    	}
-    	
-    	private synchronized boolean releaseLock(TransactionId tid, PageId pid) {
-    		if (!pidToTid.containsKey(pid) || !pidToTid.get(pid).contains(tid)
-    				|| !tidToPid.containsKey(tid) || !tidToPid.get(tid).contains(pid))
-    			return false;
-    		pidToTid.get(pid).remove(tid);
-    		if (pidToTid.get(pid).isEmpty()) {
-    			pidToTid.remove(pid);
-    			pidToPerm.remove(pid);
-    		}
-    		tidToPid.get(tid).remove(pid);
-    		if (tidToPid.get(tid).isEmpty())
-    			tidToPid.remove(tid);
-    		return true;
-    	}
-    	
-    	private synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-    		return pidToTid.containsKey(pid) && pidToTid.get(pid).contains(tid);
-    	}
-    	
-    	
-    }
-    
-    private LockManager lm;
     public BufferPool(int numPages) {
+        this(numPages, new LRUPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * in the order chosen by the specified policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy; it must not be shared with
+     *        another BufferPool
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
     	this.numPages = numPages;
+    	this.policy = policy;
     	pages = new ConcurrentHashMap<>();
     	lm = new LockManager();
-        // some code goes here
+    	granularity = LockGranularity.valueOf(System.getProperty(LOCK_GRANULARITY_PROPERTY,
+    			LockGranularity.PAGE.name()).trim().toUpperCase());
+    	prefetchWindow = Integer.getInteger(PREFETCH_WINDOW_PROPERTY, DEFAULT_PREFETCH_WINDOW);
+    }
+
+    /** @return the largest number of pages a scan reads ahead; 0 if it does not */
+    public int getPrefetchWindow() {
+    	return prefetchWindow;
+    }
+
+    /**
+     * Set the largest number of pages a scan may read ahead of the page it
+     * is on; 0 turns read-ahead off.
+     *
+     * @see ReadAhead
+     */
+    public void setPrefetchWindow(int pages) {
+    	if (pages < 0)
+    		throw new IllegalArgumentException("prefetch window must not be negative");
+    	prefetchWindow = pages;
+    }
+
+    /** @return whether writers lock whole pages or single records */
+    public LockGranularity getLockGranularity() {
+    	return granularity;
+    }
+
+    /**
+     * Choose whether writers lock whole pages or single records. Must be
+     * called before any transaction uses this buffer pool.
+     */
+    public void setLockGranularity(LockGranularity granularity) {
+    	this.granularity = granularity;
     }
     
     public static int getPageSize() {
@@ -148,6 +184,11 @@ public class BufferPool {
      * Will acquire a lock and may block if that lock is held by another
      * transaction.
      * <p>
+     * With RECORD lock granularity, READ_ONLY takes an IS lock on the table
+     * and an S lock on the page, and READ_WRITE only takes IX locks on both:
+     * the caller must then lock each tuple it changes with
+     * {@link #lockTuple}.
+     * <p>
      * The retrieved page should be looked up in the buffer pool.  If it
      * is present, it should be returned.  If it is not present, it should
      * be added to the buffer pool and returned.  If there is insufficient
@@ -160,18 +201,234 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-    	while (!lm.getLock(tid, pid, perm)) {
+    	return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a sequential scan that reads
+     * through the specified ring of frames. On a miss, once the ring is full
+     * the frame of the oldest page the scan brought in is reused instead of
+     * evicting a page chosen by the replacement policy. Locking is the same
+     * as for {@link #getPage(TransactionId, PageId, Permissions)}.
+     *
+     * @param ring the scan's ring, or null to use the shared pool
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+    	if (versions.isSnapshot(tid)) {
+    		if (perm == Permissions.READ_WRITE)
+    			throw new DbException("read-only transaction " + tid.getId()
+    					+ " cannot write page " + pid.getPageNumber());
+    		return versions.read(tid, fetchPage(pid, ring));
     	}
-    	if (pages.containsKey(pid)) {
-    		return pages.get(pid);
+    	lockPage(tid, pid, perm);
+    	return fetchPage(pid, ring);
+    }
+
+    private void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+    	if (granularity == LockGranularity.RECORD) {
+    		LockMode mode = perm == Permissions.READ_ONLY ? LockMode.S : LockMode.IX;
+    		lm.acquireTable(tid, pid.getTableId(), mode.intention());
+    		lm.acquire(tid, pid, mode);
+    	} else {
+    		lm.acquire(tid, pid, perm);
     	}
+    	if (perm == Permissions.READ_WRITE)
+    		writeSetOf(tid).add(pid);
+    }
+
+    /**
+     * Add a page just allocated at the end of its file to the pool without
+     * reading it, locked for tid as by getPage with READ_WRITE. The page
+     * reaches the file when it is flushed.
+     *
+     * @return the page, or the copy already in the pool if there is one
+     */
+    Page newPage(TransactionId tid, Page page)
+        throws TransactionAbortedException, DbException {
+    	PageId pid = page.getId();
+    	if (versions.isSnapshot(tid))
+    		throw new DbException("read-only transaction " + tid.getId()
+    				+ " cannot write page " + pid.getPageNumber());
+    	lockPage(tid, pid, Permissions.READ_WRITE);
     	while (pages.size() >= numPages) {
     		evictPage();
     	}
-    	Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-    	pages.put(pid, page);
+    	Page cached;
+    	synchronized (versions) {
+    		cached = pages.putIfAbsent(pid, page);
+    	}
+    	if (cached != null) {
+    		policy.pageAccessed(pid);
+    		return cached;
+    	}
+    	policy.pageAdded(pid);
     	return page;
-        // some code goes here
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId,
+     * Permissions)}, but only if its locks can be taken without waiting.
+     *
+     * @return the page, or null if another transaction holds a conflicting
+     *         lock
+     */
+    Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	if (versions.isSnapshot(tid))
+    		return getPage(tid, pid, perm);
+    	if (granularity == LockGranularity.RECORD) {
+    		LockMode mode = perm == Permissions.READ_ONLY ? LockMode.S : LockMode.IX;
+    		if (!lm.tryAcquireTable(tid, pid.getTableId(), mode.intention())
+    				|| !lm.tryAcquire(tid, pid, mode))
+    			return null;
+    	} else if (!lm.tryAcquire(tid, pid, LockMode.forPermissions(perm))) {
+    		return null;
+    	}
+    	if (perm == Permissions.READ_WRITE)
+    		writeSetOf(tid).add(pid);
+    	return fetchPage(pid, null);
+    }
+
+    private Set<PageId> writeSetOf(TransactionId tid) {
+    	return writeSets.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Start reading pid into the pool in the background, for a scan that is
+     * about to reach it. Takes no lock: the page is only cached, and the
+     * scan locks it as usual when it gets there.
+     *
+     * @param ring the scan's ring, or null
+     * @return the pending read, or null if pid is already resident
+     */
+    Future<?> prefetch(final PageId pid, final ScanRing ring) {
+    	if (pages.containsKey(pid))
+    		return null;
+    	synchronized (this) {
+    		if (prefetcher == null) {
+    			prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+    					1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+    						Thread t = new Thread(r, "prefetch");
+    						t.setDaemon(true);
+    						return t;
+    					});
+    			prefetcher.allowCoreThreadTimeOut(true);
+    		}
+    	}
+    	return prefetcher.submit(() -> {
+    		try {
+    			if (!pages.containsKey(pid))
+    				fetchPage(pid, ring);
+    		} catch (DbException e) {
+    			// the scan reads the page itself
+    		}
+    	});
+    }
+
+    /** @return true if pid is in the pool */
+    boolean isResident(PageId pid) {
+    	return pages.containsKey(pid);
+    }
+
+    /** Look pid up in the cache, reading it in on a miss. Takes no locks. */
+    private Page fetchPage(PageId pid, ScanRing ring) throws DbException {
+    	Page page = pages.get(pid);
+    	if (page != null) {
+    		hits.incrementAndGet();
+    		if (ring == null)
+    			ringOwner.remove(pid);
+    		policy.pageAccessed(pid);
+    		return page;
+    	}
+    	misses.incrementAndGet();
+    	if (ring != null)
+    		recycleRingFrame(ring, pid);
+    	while (pages.size() >= numPages) {
+    		evictPage();
+    	}
+    	page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    	Page cached;
+    	synchronized (versions) {
+    		cached = pages.putIfAbsent(pid, page);
+    		if (cached == null)
+    			versions.restore(page);
+    	}
+    	if (cached != null) {
+    		// another thread read the same page first; keep its copy
+    		policy.pageAccessed(pid);
+    		return cached;
+    	}
+    	policy.pageAdded(pid);
+    	if (ring != null)
+    		ringOwner.put(pid, ring);
+    	return page;
+    }
+
+    /**
+     * Start a read-only transaction that sees the database as committed now.
+     * Its getPage calls take no locks and return private copies of pages,
+     * never blocking on writers nor blocking them; READ_WRITE requests fail.
+     * It ends with {@link #transactionComplete(TransactionId, boolean)}.
+     */
+    public void beginSnapshot(TransactionId tid) {
+    	versions.begin(tid);
+    }
+
+    /**
+     * Lock a tuple that tid is about to change, along with intention locks
+     * on its page and table. Does nothing with PAGE lock granularity, where
+     * the page lock taken by getPage covers the tuple.
+     *
+     * @param perm READ_WRITE for an X lock, READ_ONLY for an S lock
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+    	if (granularity != LockGranularity.RECORD)
+    		return;
+    	LockMode mode = LockMode.forPermissions(perm);
+    	PageId pid = rid.getPageId();
+    	lm.acquireTable(tid, pid.getTableId(), mode.intention());
+    	lm.acquire(tid, pid, mode.intention());
+    	lm.acquireRecord(tid, rid, mode);
+    }
+
+    /**
+     * X-lock the tuple slot rid if that is possible without waiting. The
+     * caller must already hold IX locks on the page and table.
+     *
+     * @return true if tid now holds the lock, or if locks are page-level
+     */
+    boolean tryLockTuple(TransactionId tid, RecordId rid) {
+    	if (granularity != LockGranularity.RECORD)
+    		return true;
+    	return lm.tryAcquireRecord(tid, rid, LockMode.X);
+    }
+
+    /**
+     * Add pid to the ring and, if that pushes out an older page the ring
+     * still owns, evict that page to free its frame.
+     */
+    private synchronized void recycleRingFrame(ScanRing ring, PageId pid) throws DbException {
+    	PageId old = ring.add(pid);
+    	if (old == null || !ringOwner.remove(old, ring) || recordWriters.containsKey(old))
+    		return;
+    	evict(old);
+    }
+
+    /** Write pid out, keeping its committed image if it has uncommitted changes, and drop it. */
+    private synchronized void evict(PageId pid) throws DbException {
+    	Page page = pages.get(pid);
+    	if (page != null && page.isDirty() != null && lm.holdsLocks(page.isDirty()))
+    		versions.steal(page);
+    	try {
+    		flushPage(pid);
+    	} catch (IOException e) {
+    		throw new DbException("could not flush page " + pid.getPageNumber()
+    				+ " of table " + pid.getTableId() + ": " + e.getMessage());
+    	}
+    	removePage(pid);
     }
 
     /**
@@ -186,7 +443,12 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-    	lm.releaseLock(tid, pid);
+    	lm.release(tid, pid);
+    	// a page given up unchanged is not tid's to commit or roll back
+    	Set<PageId> written = writeSets.get(tid);
+    	Page page = pages.get(pid);
+    	if (written != null && (page == null || page.isDirty() != tid))
+    		written.remove(pid);
     }
 
     /**
@@ -209,41 +471,163 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. Only the pages the transaction fetched READ_WRITE or
+     * changed are looked at, not the whole pool.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @return true if tid's commit record has been logged, as it is for a
+     *         commit with RECORD lock granularity that changed something
      */
-    public void transactionComplete(TransactionId tid, boolean commit)
+    public boolean transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	if (commit) {
+    	if (versions.end(tid))
+    		return false; // a snapshot holds no locks and changed nothing
+    	Set<PageId> written = writeSets.remove(tid);
+    	if (written == null)
+    		written = Collections.emptySet();
+    	boolean logged = false;
+    	if (granularity == LockGranularity.RECORD) {
+    		logged = completeRecordLevel(tid, commit);
+    	} else if (commit) {
     		//	System.out.println("commit");
     		//	flushPages(tid);
-    		for (PageId pid : pages.keySet()) {
+    		Map<Page, byte[]> committed = new LinkedHashMap<>();
+    		for (PageId pid : written) {
     			Page page = pages.get(pid);
-    			if (page.isDirty() == tid) {
-    				releasePage(tid, pid);
+    			if (page != null && page.isDirty() == tid) {
     				Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
-    				page.setBeforeImage();
+    				committed.put(page, null);
     			}
     		}
+    		versions.commit(tid, committed);
     		//Database.getLogFile().logWrite(tid, p.getBeforeImage(), p)
     	}
     	else {
-    		Set<PageId> pids = new HashSet<>();
-    		if (lm.tidToPid.containsKey(tid)) {
-    			for (PageId pid : lm.tidToPid.get(tid)) {
-    				pids.add(pid);
+    		for (PageId pid : written)
+    			removePage(pid);
+    	}
+    	// strict 2PL: shared locks are released here too, not only dirty pages
+    	lm.releaseAll(tid);
+    	// pages evicted since are committed or rolled back on disk
+    	versions.forget(tid);
+    	return logged;
+    }
+
+    /**
+     * @return the pages tid holds locks on, plus those it may have changed
+     *         without a page lock, under a table lock it was escalated to
+     */
+    private Set<PageId> pagesOf(TransactionId tid) {
+    	Set<PageId> result = lm.getLockedPages(tid);
+    	Set<PageId> written = writeSets.get(tid);
+    	if (written != null)
+    		result.addAll(written);
+    	return result;
+    }
+
+    /**
+     * Commit or abort a transaction that ran with RECORD lock granularity.
+     * Other transactions may have uncommitted changes on the same pages, so
+     * pages are never discarded, nor stolen: only their committed images
+     * reach the disk (see {@link #flushPage}). An abort thus only has to
+     * undo tid's inserts and deletes in memory, in reverse order. A commit
+     * logs, for each page tid changed, images with the other writers'
+     * changes undone: a before image without tid's changes and an after
+     * image with them, which becomes the page's committed image. Its commit
+     * record follows before any other record-level commit can log images,
+     * so recovery never rolls a page back past another's commit.
+     *
+     * @return true if tid's commit record has been logged
+     */
+    private boolean completeRecordLevel(TransactionId tid, boolean commit) throws IOException {
+    	if (!commit) {
+    		List<UndoRecord> mine = undoLog.remove(tid);
+    		if (mine == null)
+    			return false;
+    		for (int i = mine.size() - 1; i >= 0; i--) {
+    			UndoRecord u = mine.get(i);
+    			try {
+    				// still dirty from the change undone, and never stolen
+    				HeapPage page = (HeapPage) fetchPage(u.rid.getPageId(), null);
+    				u.undo(page);
+    			} catch (DbException e) {
+    				throw new IOException("could not undo change to " + u.rid.getPageId()
+    						+ ": " + e.getMessage());
+    			}
+    		}
+    		unpin(tid, mine);
+    		return false;
+    	}
+    	synchronized (recordCommit) {
+    		List<UndoRecord> mine = undoLog.get(tid);
+    		if (mine == null)
+    			return false;
+    		Map<Page, byte[]> committed = new LinkedHashMap<>();
+    		Set<PageId> touched = new LinkedHashSet<>();
+    		for (UndoRecord u : mine)
+    			touched.add(u.rid.getPageId());
+    		for (PageId pid : touched) {
+    			HeapPage page = (HeapPage) pages.get(pid);
+    			if (page == null)
+    				continue; // discarded; nothing of it to commit
+    			HeapPage after = page.withData(page.getPageData());
+    			for (List<UndoRecord> other : undoLog.values()) {
+    				if (other == mine)
+    					continue;
+    				synchronized (other) {
+    					for (int i = other.size() - 1; i >= 0; i--) {
+    						if (other.get(i).rid.getPageId().equals(pid))
+    							other.get(i).undo(after);
+    					}
+    				}
     			}
-    			for (PageId pid : pids) {
-    				pages.remove(pid);
-    				lm.releaseLock(tid, pid);
+    			HeapPage before = page.withData(after.getPageData());
+    			for (int i = mine.size() - 1; i >= 0; i--) {
+    				if (mine.get(i).rid.getPageId().equals(pid))
+    					mine.get(i).undo(before);
     			}
+    			Database.getLogFile().logWrite(tid, before, after);
+    			committed.put(page, after.getPageData());
+    			page.markDirty(true, tid);
     		}
+    		Database.getLogFile().logCommit(tid);
+    		undoLog.remove(tid);
+    		versions.commit(tid, committed);
+    		unpin(tid, mine);
+    		return true;
+    	}
+    }
+
+    /** Note that tid no longer has uncommitted changes on the pages of undo. */
+    private void unpin(TransactionId tid, List<UndoRecord> undo) {
+    	for (UndoRecord u : undo) {
+    		recordWriters.computeIfPresent(u.rid.getPageId(), (pid, tids) -> {
+    			tids.remove(tid);
+    			return tids.isEmpty() ? null : tids;
+    		});
     	}
-    		
+    }
+
+    private void logUndo(TransactionId tid, RecordId rid, Tuple deleted) {
+    	Tuple copy = null;
+    	if (deleted != null) {
+    		// the caller may reuse the tuple, e.g. insert it elsewhere
+    		copy = new Tuple(deleted.getTupleDesc());
+    		for (int i = 0; i < copy.getTupleDesc().numFields(); i++)
+    			copy.setField(i, deleted.getField(i));
+    		copy.setRecordId(rid);
+    	}
+    	recordWriters.compute(rid.getPageId(), (pid, tids) -> {
+    		if (tids == null)
+    			tids = new HashSet<>();
+    		tids.add(tid);
+    		return tids;
+    	});
+    	undoLog.computeIfAbsent(tid, k -> Collections.synchronizedList(new ArrayList<UndoRecord>()))
+    			.add(new UndoRecord(rid, copy));
     }
 
     /**
@@ -265,13 +649,16 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-    	HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+    	DbFile f = Database.getCatalog().getDatabaseFile(tableId);
     	ArrayList<Page> dirtyPages = f.insertTuple(tid, t);
+    	if (granularity == LockGranularity.RECORD)
+    		logUndo(tid, t.getRecordId(), null);
     	for (Page page : dirtyPages) {
     		page.markDirty(true, tid);
     		PageId pid = page.getId();
-    		if (!pages.contains(pid))
-    			pages.put(pid, page);
+    		writeSetOf(tid).add(pid);
+    		if (pages.put(pid, page) == null)
+    			policy.pageAdded(pid);
     	}
     }
 
@@ -292,11 +679,15 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-    	HeapFile f = (HeapFile) Database.getCatalog().
+    	DbFile f = Database.getCatalog().
     			getDatabaseFile(t.getRecordId().getPageId().getTableId());
+    	RecordId rid = t.getRecordId();
     	ArrayList<Page> pages = f.deleteTuple(tid, t);
+    	if (granularity == LockGranularity.RECORD)
+    		logUndo(tid, rid, t);
 		for (Page page : pages) {
 			page.markDirty(true, tid);
+			writeSetOf(tid).add(page.getId());
 		}
     }
 
@@ -323,11 +714,20 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-    	pages.remove(pid);
+    	removePage(pid);
+    }
+
+    /** Drop a page from the cache and tell the replacement policy. */
+    private void removePage(PageId pid) {
+    	ringOwner.remove(pid);
+    	if (pages.remove(pid) != null)
+    		policy.pageRemoved(pid);
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk. With RECORD lock granularity this
+     * writes the page's committed image, which its last commit logged, so
+     * uncommitted changes never reach the disk.
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
@@ -336,7 +736,10 @@ public class BufferPool {
     	Page page = pages.get(pid);
     	if (page != null) {
     		TransactionId tid = page.isDirty();
-    		if (tid != null) {
+    		if (tid != null && granularity == LockGranularity.RECORD) {
+    			Database.getCatalog().getDatabaseFile(pid.getTableId())
+    					.writePage(page.getBeforeImage());
+    		} else if (tid != null) {
     		    // append an update record to the log, with
     		    // a before-image and after-image.
     		    TransactionId dirtier = page.isDirty();
@@ -354,18 +757,17 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	if (!lm.tidToPid.containsKey(tid)) return;
-    	Set<PageId> pids = new HashSet<>();
-    	for (PageId pid : lm.tidToPid.get(tid)) {
-    		pids.add(pid);
-    	}
-    	for (PageId pid : pids) {
+    	for (PageId pid : pagesOf(tid)) {
     		flushPage(pid);
     		if (pages.containsKey(pid)) {
     			Page page = pages.get(pid);
-    			page.markDirty(false, null);
-    			page.setBeforeImage();
-    			lm.releaseLock(tid, pid);
+    			if (granularity != LockGranularity.RECORD) {
+    				page.markDirty(false, null);
+    				page.setBeforeImage();
+    			} else if (!recordWriters.containsKey(pid)) {
+    				page.markDirty(false, null);
+    			}
+    			lm.release(tid, pid);
     		}
     	}
     }
@@ -373,34 +775,52 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The page is chosen by the replacement policy.
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-    	for (PageId pid : pages.keySet()) {
-    		if (pages.size() >= numPages) {
-    			Page page = pages.get(pid);
-    			if (page.isDirty() == null)
-    				pages.remove(pid);
-    			if (page.isDirty() != null) {
-    				try {
-						flushPage(pid);
-						pages.remove(pid);
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-    			}
-    			//if (page.isDirty() == null)
-    			//	pages.remove(pid);
-    		}
-    	}
-    	if (pages.size() >= numPages)
+    	if (pages.size() < numPages)
+    		return;
+    	PageId pid = policy.victim(p -> pages.containsKey(p) && !recordWriters.containsKey(p));
+    	if (pid == null)
     		throw new DbException("no bufferpool page can be evicted");
+    	evict(pid);
     }
-    
+
+    /** @return the lock manager, e.g. to tune deadlock detection */
+    LockManager getLockManager() {
+    	return lm;
+    }
+
     public int pageSize() {
     	return pages.size();
     }
 
+    /** @return the maximum number of pages this buffer pool caches */
+    public int getNumPages() {
+    	return numPages;
+    }
+
+    /** @return the policy that picks pages to evict */
+    public ReplacementPolicy getReplacementPolicy() {
+    	return policy;
+    }
+
+    /** @return the number of getPage calls served from the cache */
+    public long getHitCount() {
+    	return hits.get();
+    }
+
+    /** @return the number of getPage calls that had to read from disk */
+    public long getMissCount() {
+    	return misses.get();
+    }
+
+    /** Reset the hit and miss counters, e.g. after warming up the pool. */
+    public void resetStatistics() {
+    	hits.set(0);
+    	misses.set(0);
+    }
+
 }
@@ -118,8 +118,18 @@ public class Catalog {
         // some code goes here
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
+    	for (Content c : IDSearch.values()) {
+    		try {
+    			if (c.file instanceof HeapFile)
+    				((HeapFile) c.file).close();
+    			else if (c.file instanceof ColumnarFile)
+    				((ColumnarFile) c.file).close();
+    		} catch (IOException e) {
+    			// the catalog forgets the file either way
+    		}
+    	}
     	IDSearch.clear();
     	Name_ID.clear();
         // some code goes here
@@ -127,6 +137,14 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes a table, e.g.
+     * <pre>
+     * name (id int pk, title varchar(40), body string) slotted
+     * </pre>
+     * The field types are int, string and varchar(n); a table followed by
+     * "slotted" stores its tuples in variable-length records, and one
+     * followed by "columnar" is a {@link ColumnarFile}. Either may be
+     * followed by "compressed" to store its pages compressed.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -139,22 +157,34 @@ public class Catalog {
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
-                String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String fields = line.substring(line.indexOf("(") + 1, line.lastIndexOf(")")).trim();
+                String format = line.substring(line.lastIndexOf(")") + 1).trim();
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
+                ArrayList<Integer> maxLengths = new ArrayList<Integer>();
                 String primaryKey = "";
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
-                    if (els2[1].trim().toLowerCase().equals("int"))
+                    String type = els2[1].trim().toLowerCase();
+                    int maxLength = Type.STRING_LEN;
+                    if (type.equals("int"))
                         types.add(Type.INT_TYPE);
-                    else if (els2[1].trim().toLowerCase().equals("string"))
+                    else if (type.equals("string"))
                         types.add(Type.STRING_TYPE);
-                    else {
+                    else if (type.startsWith("varchar(") && type.endsWith(")")) {
+                        types.add(Type.VARCHAR_TYPE);
+                        maxLength = Integer.parseInt(type.substring(8, type.length() - 1));
+                        if (maxLength <= 0 || maxLength > 0xffff) {
+                            System.out.println("Invalid length " + els2[1]);
+                            System.exit(0);
+                        }
+                    } else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
+                    maxLengths.add(maxLength);
                     if (els2.length == 3) {
                         if (els2[2].trim().equals("pk"))
                             primaryKey = els2[0].trim();
@@ -164,10 +194,29 @@ public class Catalog {
                         }
                     }
                 }
+                HeapFile.PageFormat pageFormat = HeapFile.PageFormat.FIXED;
+                boolean columnar = false, compressed = false;
+                for (String option : format.split("\\s+")) {
+                    if (option.equals("slotted"))
+                        pageFormat = HeapFile.PageFormat.SLOTTED;
+                    else if (option.equals("columnar"))
+                        columnar = true;
+                    else if (option.equals("compressed"))
+                        compressed = true;
+                    else if (!option.isEmpty()) {
+                        System.out.println("Unknown table format " + option);
+                        System.exit(0);
+                    }
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
-                TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                int[] maxLengthAr = new int[maxLengths.size()];
+                for (int i = 0; i < maxLengthAr.length; i++)
+                    maxLengthAr[i] = maxLengths.get(i);
+                TupleDesc t = new TupleDesc(typeAr, namesAr, maxLengthAr);
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf = columnar ? new ColumnarFile(tabFile, t, compressed)
+                        : new HeapFile(tabFile, t, pageFormat, compressed);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
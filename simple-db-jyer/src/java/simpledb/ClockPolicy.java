@@ -0,0 +1,67 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ClockPolicy approximates LRU with a reference bit per frame. A hand sweeps
+ * the frames; a frame whose bit is set gets a second chance (the bit is
+ * cleared), and the first frame found with a clear bit is the victim.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final ArrayList<PageId> frames = new ArrayList<PageId>();
+    private final BitSet referenced = new BitSet();
+    private final Map<PageId, Integer> frameOf = new HashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<Integer>();
+    private int hand = 0;
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null)
+            referenced.set(frame);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (frameOf.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        Integer frame = freeFrames.poll();
+        if (frame == null) {
+            frame = frames.size();
+            frames.add(pid);
+        } else {
+            frames.set(frame, pid);
+        }
+        frameOf.put(pid, frame);
+        referenced.set(frame);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null)
+            return;
+        frames.set(frame, null);
+        referenced.clear(frame);
+        freeFrames.push(frame);
+    }
+
+    public synchronized PageId victim(java.util.function.Predicate<PageId> evictable) {
+        int n = frames.size();
+        // two full turns: the first may only clear reference bits
+        for (int step = 0; step < 2 * n; step++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(frame);
+            if (pid == null)
+                continue;
+            if (referenced.get(frame)) {
+                referenced.clear(frame);
+                continue;
+            }
+            if (evictable.test(pid))
+                return pid;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,35 @@
+package simpledb;
+
+/**
+ * ColumnPage is a page of one column of a {@link ColumnarFile}: a HeapPage
+ * whose tuples have the column as their only field. The column is known
+ * from the page number; see {@link ColumnarFile#pageId}.
+ */
+public class ColumnPage extends HeapPage {
+
+    /**
+     * Create a ColumnPage from a set of bytes of data read from disk. The
+     * page's table must be a ColumnarFile in the catalog.
+     */
+    public ColumnPage(HeapPageId id, byte[] data) {
+        this(id, columnDesc(id), data);
+    }
+
+    ColumnPage(HeapPageId id, TupleDesc td, byte[] data) {
+        super(id, td, data);
+    }
+
+    private static TupleDesc columnDesc(HeapPageId id) {
+        ColumnarFile f = (ColumnarFile) Database.getCatalog().getDatabaseFile(id.getTableId());
+        return f.getColumnDesc(f.columnOf(id));
+    }
+
+    ColumnPage(HeapPageId id, TupleDesc td, PageBytes data) {
+        super(id, td, data);
+    }
+
+    @Override
+    HeapPage withData(PageBytes data) {
+        return new ColumnPage(pid, td, data);
+    }
+}
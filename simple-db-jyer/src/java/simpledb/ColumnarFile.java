@@ -0,0 +1,494 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * ColumnarFile is a DbFile that stores each column of a table in a file of
+ * its own, for analytic tables whose queries read a few of many columns: a
+ * scan of some {@link #iterator(TransactionId, ScanRing, int[]) columns}
+ * reads only the pages of those columns.
+ * <p>
+ * Column 0 is stored in the file the ColumnarFile is created with, and
+ * column c in the file of the same name with "." + c appended. Each column
+ * file is a sequence of {@link ColumnPage}s, fixed-size HeapPages whose
+ * tuples hold the column's values. Rows are stored in order, with no gaps:
+ * row r of a column whose pages hold n values is in slot r % n of its page
+ * r / n. Pages of the buffer pool are numbered across the columns; see
+ * {@link #pageId}.
+ * <p>
+ * Tuples are appended to the end of the file, and cannot be deleted. Since
+ * an insert writes a page of every column, it is supported with page-level
+ * locking only. A table is best loaded in bulk with {@link #write}, e.g.
+ * by <tt>SimpleDb convert</tt>.
+ * <p>
+ * The column files may be compressed, each a {@link CompressedPageStore}:
+ * the values of a column page are then stored with the frame-of-reference
+ * or dictionary encoding of {@link PageCompressor}.
+ */
+public class ColumnarFile implements DbFile {
+	private final File f;
+	private final TupleDesc td;
+	// the one-field TupleDesc of each column's pages
+	private final TupleDesc[] columns;
+	// open channel to each column's file, or null before first use and
+	// after close()
+	private final FileChannel[] channels;
+	// the compressed pages of each column, or null if the pages are stored
+	// as they are
+	private final CompressedPageStore[] stores;
+
+	/**
+	 * Constructs a columnar file backed by f and the column files beside it.
+	 *
+	 * @param f the file that stores column 0
+	 * @param td the schema of the table
+	 */
+	public ColumnarFile(File f, TupleDesc td) {
+		this(f, td, false);
+	}
+
+	/**
+	 * Constructs a columnar file backed by f and the column files beside it,
+	 * whose pages are stored compressed if compressed is true.
+	 */
+	public ColumnarFile(File f, TupleDesc td, boolean compressed) {
+		this.f = f;
+		this.td = td;
+		columns = new TupleDesc[td.numFields()];
+		for (int c = 0; c < columns.length; c++)
+			columns[c] = columnDesc(td, c);
+		channels = new FileChannel[columns.length];
+		stores = compressed ? new CompressedPageStore[columns.length] : null;
+		for (int c = 0; compressed && c < columns.length; c++)
+			stores[c] = store(f, c, columns[c]);
+	}
+
+	/** @return the one-field TupleDesc of the specified column of td */
+	private static TupleDesc columnDesc(TupleDesc td, int column) {
+		return new TupleDesc(new Type[] { td.getFieldType(column) },
+				new String[] { td.getFieldName(column) }, new int[] { td.getMaxLength(column) });
+	}
+
+	private static CompressedPageStore store(File f, int column, TupleDesc columnDesc) {
+		return new CompressedPageStore(columnFile(f, column), new PageCompressor(columnDesc));
+	}
+
+	/** @return true if the pages of this file are stored compressed */
+	public boolean isCompressed() {
+		return stores != null;
+	}
+
+	/**
+	 * @return the size of the pages of all the columns over the space they
+	 *         take in the files; 1 unless the file is compressed
+	 */
+	public double getCompressionRatio() throws IOException {
+		if (stores == null)
+			return 1;
+		double pages = 0, stored = 0;
+		for (int c = 0; c < columns.length; c++) {
+			int n = stores[c].numPages();
+			pages += n;
+			stored += n / stores[c].getCompressionRatio();
+		}
+		return stored == 0 ? 1 : pages / stored;
+	}
+
+	/**
+	 * @return the file that stores the specified column of the ColumnarFile
+	 *         backed by f
+	 */
+	public static File columnFile(File f, int column) {
+		return column == 0 ? f : new File(f.getPath() + "." + column);
+	}
+
+	/** @return the file that stores column 0 */
+	public File getFile() {
+		return f;
+	}
+
+	/** @return an ID uniquely identifying this file; see HeapFile.getId() */
+	public int getId() {
+		return f.getAbsoluteFile().hashCode();
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/** @return the TupleDesc of the pages of the specified column */
+	TupleDesc getColumnDesc(int column) {
+		return columns[column];
+	}
+
+	/**
+	 * @return the id of the specified page of the specified column; page k
+	 *         of column c is page k * numColumns + c of the table
+	 */
+	HeapPageId pageId(int column, int pageNo) {
+		return new HeapPageId(getId(), pageNo * columns.length + column);
+	}
+
+	/** @return the column of the page with the specified id */
+	int columnOf(PageId pid) {
+		return pid.getPageNumber() % columns.length;
+	}
+
+	/** @return the number of values a page of the specified column holds */
+	private int valuesPerPage(int column) {
+		int size = columns[column].getSize();
+		return BufferPool.getPageSize() * 8 / (size * 8 + 1);
+	}
+
+	/** @return the number of pages of the specified column */
+	public int numPages(int column) {
+		if (stores != null) {
+			try {
+				return stores[column].numPages();
+			} catch (IOException e) {
+				throw new IllegalStateException("cannot read the page map of column " + column, e);
+			}
+		}
+		return (int) (columnFile(f, column).length() / BufferPool.getPageSize());
+	}
+
+	/** @return the number of pages of all the columns */
+	public int numPages() {
+		int n = 0;
+		for (int c = 0; c < columns.length; c++)
+			n += numPages(c);
+		return n;
+	}
+
+	private FileChannel channel(int column) throws IOException {
+		synchronized (channels) {
+			if (channels[column] == null)
+				channels[column] = FileChannel.open(columnFile(f, column).toPath(),
+						StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE);
+			return channels[column];
+		}
+	}
+
+	/**
+	 * Close the column files. They are opened again if the ColumnarFile is
+	 * used after this.
+	 */
+	public void close() throws IOException {
+		for (int c = 0; stores != null && c < columns.length; c++)
+			stores[c].close();
+		synchronized (channels) {
+			for (int c = 0; c < channels.length; c++) {
+				if (channels[c] != null) {
+					channels[c].close();
+					channels[c] = null;
+				}
+			}
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public Page readPage(PageId pid) {
+		int column = columnOf(pid);
+		try {
+			int pageNo = pid.getPageNumber() / columns.length;
+			byte[] data = new byte[BufferPool.getPageSize()];
+			if (stores != null) {
+				data = stores[column].read(pageNo);
+			} else {
+				ByteBuffer buf = ByteBuffer.wrap(data);
+				long start = (long) pageNo * data.length;
+				FileChannel c = channel(column);
+				// past the end of the file the page reads as empty
+				while (buf.hasRemaining() && c.read(buf, start + buf.position()) >= 0)
+					;
+			}
+			return new ColumnPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()),
+					columns[column], data);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("cannot read " + pid + ": " + e.getMessage());
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public void writePage(Page page) throws IOException {
+		write(page.getId(), page.getPageData());
+	}
+
+	private void write(PageId pid, byte[] data) throws IOException {
+		if (stores != null) {
+			stores[columnOf(pid)].write(pid.getPageNumber() / columns.length, data);
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		long start = (long) (pid.getPageNumber() / columns.length) * data.length;
+		FileChannel c = channel(columnOf(pid));
+		while (buf.hasRemaining())
+			c.write(buf, start + buf.position());
+	}
+
+	/**
+	 * Appends t to the last page of every column, adding a page to the
+	 * columns whose last page is full. The tuple's RecordId is its slot in
+	 * column 0.
+	 *
+	 * @throws DbException if the buffer pool does not lock whole pages
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (Database.getBufferPool().getLockGranularity() != BufferPool.LockGranularity.PAGE)
+			throw new DbException("columnar files support page-level locking only");
+		ArrayList<Page> list = new ArrayList<>();
+		RecordId rid = null;
+		for (int c = 0; c < columns.length; c++) {
+			HeapPage page = lastPage(tid, c);
+			Tuple value = new Tuple(columns[c]);
+			value.setField(0, t.getField(c));
+			if (!page.insertTuple(value, slot -> true))
+				throw new DbException("cannot insert into " + page.getId());
+			if (c == 0)
+				rid = value.getRecordId();
+			list.add(page);
+		}
+		t.setRecordId(rid);
+		return list;
+	}
+
+	/**
+	 * @return the last page of the specified column, locked for writing,
+	 *         after adding an empty page if it was full. As every insert
+	 *         starts at the last page of column 0, the inserts of different
+	 *         transactions never interleave.
+	 */
+	private HeapPage lastPage(TransactionId tid, int column)
+			throws DbException, IOException, TransactionAbortedException {
+		while (true) {
+			int n = numPages(column);
+			if (n > 0) {
+				HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+						pageId(column, n - 1), Permissions.READ_WRITE);
+				if (numPages(column) != n)
+					continue; // another transaction added a page while we waited
+				if (page.getNumEmptySlots() > 0)
+					return page;
+			}
+			synchronized (this) {
+				if (numPages(column) == n)
+					write(pageId(column, n), HeapPage.createEmptyPageData());
+			}
+		}
+	}
+
+	/**
+	 * Not supported: a ColumnarFile is append-only.
+	 *
+	 * @throws DbException always
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException {
+		throw new DbException("cannot delete from columnar file " + f.getName());
+	}
+
+	// see DbFile.java for javadocs
+	public DbFileIterator iterator(TransactionId tid) {
+		return iterator(tid, (ScanRing) null);
+	}
+
+	/**
+	 * Returns an iterator over all the tuples stored in this file that reads
+	 * pages through the specified scan ring.
+	 *
+	 * @see ScanRing
+	 */
+	public DbFileIterator iterator(TransactionId tid, ScanRing ring) {
+		int[] all = new int[columns.length];
+		for (int c = 0; c < all.length; c++)
+			all[c] = c;
+		return iterator(tid, ring, all);
+	}
+
+	/**
+	 * Returns an iterator over the specified columns of the tuples in this
+	 * file, which reads only the pages of those columns. Its tuples have
+	 * the fields of the columns, in the order given.
+	 *
+	 * @param ring the scan ring to read through, or null
+	 * @param projected the indexes of the columns to return; at least one
+	 */
+	public DbFileIterator iterator(TransactionId tid, ScanRing ring, int[] projected) {
+		return new ColumnarFileIterator(tid, ring, projected);
+	}
+
+	/** @return the TupleDesc of the tuples of the specified columns */
+	public TupleDesc getTupleDesc(int[] projected) {
+		Type[] types = new Type[projected.length];
+		String[] names = new String[projected.length];
+		int[] maxLengths = new int[projected.length];
+		for (int j = 0; j < projected.length; j++) {
+			types[j] = td.getFieldType(projected[j]);
+			names[j] = td.getFieldName(projected[j]);
+			maxLengths[j] = td.getMaxLength(projected[j]);
+		}
+		return new TupleDesc(types, names, maxLengths);
+	}
+
+	class ColumnarFileIterator extends AbstractDbFileIterator {
+
+		private final TransactionId tid;
+		private final ScanRing ring;
+		private final int[] projected;
+		private final TupleDesc desc;
+		private final int[] perPage;
+		// the current page of each projected column, or null
+		private HeapPage[] pages;
+		// the page number within its column of each of pages
+		private int[] pageNos;
+		// the next row, or -1 when closed
+		private int row = -1;
+
+		ColumnarFileIterator(TransactionId tid, ScanRing ring, int[] projected) {
+			if (projected.length == 0)
+				throw new IllegalArgumentException("no columns to scan");
+			this.tid = tid;
+			this.ring = ring;
+			this.projected = projected.clone();
+			desc = getTupleDesc(projected);
+			perPage = new int[projected.length + 1];
+		}
+
+		public void open() {
+			row = 0;
+			pages = new HeapPage[projected.length];
+			pageNos = new int[projected.length];
+			for (int j = 0; j < projected.length; j++)
+				perPage[j] = valuesPerPage(projected[j]);
+			// column 0 gives the RecordIds
+			perPage[projected.length] = valuesPerPage(0);
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (row < 0)
+				return null;
+			Tuple t = new Tuple(desc);
+			for (int j = 0; j < projected.length; j++) {
+				int pageNo = row / perPage[j];
+				if (pages[j] == null || pageNos[j] != pageNo) {
+					if (pageNo >= numPages(projected[j]))
+						return null;
+					pages[j] = (HeapPage) Database.getBufferPool().getPage(tid,
+							pageId(projected[j], pageNo), Permissions.READ_ONLY, ring);
+					pageNos[j] = pageNo;
+				}
+				int slot = row % perPage[j];
+				if (!pages[j].isSlotUsed(slot))
+					return null;
+				t.setField(j, pages[j].getTuple(slot).getField(0));
+			}
+			int perPage0 = perPage[projected.length];
+			t.setRecordId(new RecordId(pageId(0, row / perPage0), row % perPage0));
+			row++;
+			return t;
+		}
+
+		public void close() {
+			super.close();
+			row = -1;
+			pages = null;
+			pageNos = null;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+	}
+
+	/**
+	 * Writes the tuples of the specified iterator to a new ColumnarFile
+	 * backed by f, replacing any file there. The column pages are built in
+	 * memory and written in order, without going through the buffer pool.
+	 *
+	 * @param td the schema of the tuples
+	 */
+	public static void write(File f, TupleDesc td, DbFileIterator tuples)
+			throws IOException, DbException, TransactionAbortedException {
+		write(f, td, tuples, false);
+	}
+
+	/**
+	 * Writes the tuples of the specified iterator to a new ColumnarFile
+	 * backed by f, as {@link #write(File, TupleDesc, DbFileIterator)} does,
+	 * with its pages compressed if compressed is true.
+	 */
+	public static void write(File f, TupleDesc td, DbFileIterator tuples, boolean compressed)
+			throws IOException, DbException, TransactionAbortedException {
+		int n = td.numFields();
+		int pageSize = BufferPool.getPageSize();
+		OutputStream[] outs = new OutputStream[n];
+		CompressedPageStore[] stores = new CompressedPageStore[n];
+		int[] pageNo = new int[n];
+		byte[][] pages = new byte[n][];
+		int[] count = new int[n];
+		int[] perPage = new int[n];
+		int[] headerLen = new int[n];
+		int[] size = new int[n];
+		ByteArrayOutputStream value = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(value);
+		try {
+			for (int c = 0; c < n; c++) {
+				if (compressed) {
+					columnFile(f, c).delete();
+					CompressedPageStore.mapFile(columnFile(f, c)).delete();
+					stores[c] = store(f, c, columnDesc(td, c));
+				} else {
+					outs[c] = new BufferedOutputStream(new FileOutputStream(columnFile(f, c)));
+				}
+				pages[c] = new byte[pageSize];
+				size[c] = td.getFieldType(c).getLen(td.getMaxLength(c));
+				perPage[c] = pageSize * 8 / (size[c] * 8 + 1);
+				headerLen[c] = (perPage[c] + 7) / 8;
+			}
+			tuples.open();
+			while (tuples.hasNext()) {
+				Tuple t = tuples.next();
+				for (int c = 0; c < n; c++) {
+					if (count[c] == perPage[c]) {
+						writePage(outs[c], stores[c], pageNo[c]++, pages[c]);
+						Arrays.fill(pages[c], (byte) 0);
+						count[c] = 0;
+					}
+					int i = count[c]++;
+					pages[c][i / 8] |= 1 << (i % 8);
+					value.reset();
+					td.getFieldType(c).serialize(t.getField(c), td.getMaxLength(c), true, dos);
+					dos.flush();
+					System.arraycopy(value.toByteArray(), 0, pages[c],
+							headerLen[c] + i * size[c], size[c]);
+				}
+			}
+			tuples.close();
+			for (int c = 0; c < n; c++) {
+				if (count[c] > 0)
+					writePage(outs[c], stores[c], pageNo[c], pages[c]);
+			}
+		} finally {
+			for (int c = 0; c < n; c++) {
+				if (outs[c] != null)
+					outs[c].close();
+				if (stores[c] != null)
+					stores[c].close();
+			}
+		}
+	}
+
+	private static void writePage(OutputStream out, CompressedPageStore store, int pageNo,
+			byte[] page) throws IOException {
+		if (store != null)
+			store.write(pageNo, page);
+		else
+			out.write(page);
+	}
+}
@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * CompressedPageStore keeps the pages of a file compressed by a
+ * {@link PageCompressor}. Compressed pages vary in size, so they are packed
+ * in the data file and found through a page-offset map kept in the file
+ * beside it (see {@link #mapFile}): for each page number, the offset and
+ * length of the page's image and the space allotted to it. Page numbers
+ * thus stay those of the uncompressed pages.
+ * <p>
+ * A page is written over its old image if it fits the space allotted to
+ * it, and otherwise appended to the data file, leaving the old space
+ * unused. An image is allotted somewhat more space than it needs, so that
+ * a page that grows a little can stay where it is. A page with no image,
+ * e.g. past the last page written, reads as empty.
+ */
+class CompressedPageStore {
+
+    // a map entry: the offset, length and allotted space of an image
+    private static final int ENTRY_SIZE = 16;
+    // allotted space is rounded up to a multiple of this
+    private static final int ALLOT_UNIT = 64;
+
+    private final File file;
+    private final PageCompressor compressor;
+    // open channels, or null before first use and after close()
+    private FileChannel data;
+    private FileChannel map;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] allotted;
+    // pages in the map
+    private int count;
+    // end of the images in the data file
+    private long end;
+    // total length of the current images
+    private long storedBytes;
+
+    /**
+     * @param file the data file; it and its map file need not exist
+     */
+    CompressedPageStore(File file, PageCompressor compressor) {
+        this.file = file;
+        this.compressor = compressor;
+    }
+
+    /** @return the file beside f that stores the page-offset map of f */
+    static File mapFile(File f) {
+        return new File(f.getPath() + ".map");
+    }
+
+    private void open() throws IOException {
+        if (data != null)
+            return;
+        data = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        map = FileChannel.open(mapFile(file).toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        count = (int) (map.size() / ENTRY_SIZE);
+        offsets = new long[Math.max(count, 16)];
+        lengths = new int[offsets.length];
+        allotted = new int[offsets.length];
+        ByteBuffer buf = ByteBuffer.allocate(count * ENTRY_SIZE);
+        while (buf.hasRemaining() && map.read(buf, buf.position()) >= 0)
+            ;
+        buf.flip();
+        end = 0;
+        storedBytes = 0;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = buf.getLong();
+            lengths[i] = buf.getInt();
+            allotted[i] = buf.getInt();
+            end = Math.max(end, offsets[i] + allotted[i]);
+            storedBytes += lengths[i];
+        }
+    }
+
+    /** @return the number of pages, counting those before the last page written */
+    synchronized int numPages() throws IOException {
+        open();
+        return count;
+    }
+
+    /** @return the page with the specified number */
+    byte[] read(int pageNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] image;
+        long offset;
+        FileChannel d;
+        synchronized (this) {
+            open();
+            if (pageNo >= count || lengths[pageNo] == 0)
+                return new byte[pageSize];
+            image = new byte[lengths[pageNo]];
+            offset = offsets[pageNo];
+            d = data;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(image);
+        while (buf.hasRemaining()) {
+            if (d.read(buf, offset + buf.position()) < 0)
+                throw new IOException("page " + pageNo + " lies past the end of " + file);
+        }
+        return compressor.decompress(image, pageSize);
+    }
+
+    /** Write the specified page, compressed, and its entry in the map. */
+    void write(int pageNo, byte[] page) throws IOException {
+        byte[] image = compressor.compress(page);
+        synchronized (this) {
+            open();
+            if (pageNo >= offsets.length) {
+                int n = Math.max(pageNo + 1, offsets.length * 2);
+                offsets = Arrays.copyOf(offsets, n);
+                lengths = Arrays.copyOf(lengths, n);
+                allotted = Arrays.copyOf(allotted, n);
+            }
+            if (image.length > allotted[pageNo]) {
+                offsets[pageNo] = end;
+                allotted[pageNo] = (image.length + image.length / 8 + ALLOT_UNIT - 1)
+                        / ALLOT_UNIT * ALLOT_UNIT;
+                end += allotted[pageNo];
+            }
+            storedBytes += image.length - lengths[pageNo];
+            lengths[pageNo] = image.length;
+            ByteBuffer buf = ByteBuffer.wrap(image);
+            while (buf.hasRemaining())
+                data.write(buf, offsets[pageNo] + buf.position());
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            entry.putLong(offsets[pageNo]).putInt(lengths[pageNo]).putInt(allotted[pageNo]);
+            entry.flip();
+            while (entry.hasRemaining())
+                map.write(entry, (long) pageNo * ENTRY_SIZE + entry.position());
+            // pages skipped over have zero entries, and read as empty
+            count = Math.max(count, pageNo + 1);
+        }
+    }
+
+    /**
+     * @return the size of the pages over the size of their images, or 1 if
+     *         there are none
+     */
+    synchronized double getCompressionRatio() throws IOException {
+        open();
+        long pages = 0;
+        for (int i = 0; i < count; i++) {
+            if (lengths[i] > 0)
+                pages++;
+        }
+        if (storedBytes == 0)
+            return 1;
+        return (double) pages * BufferPool.getPageSize() / storedBytes;
+    }
+
+    /** Close the files. They are opened again if the store is used after this. */
+    synchronized void close() throws IOException {
+        if (data != null) {
+            data.close();
+            map.close();
+            data = null;
+            map = null;
+        }
+    }
+}
@@ -5,8 +5,8 @@ import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Database is a class that initializes several static variables used by the
- * database system (the catalog, the buffer pool, and the log files, in
- * particular.)
+ * database system (the catalog, the buffer pool, the log files, and the
+ * spill manager, in particular.)
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
@@ -20,10 +20,17 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final SpillManager _spillmanager;
+
+    /**
+     * System property naming the page replacement policy of the buffer pool,
+     * e.g. -Dsimpledb.replacementPolicy=2q. See {@link ReplacementPolicy#forName}.
+     */
+    public final static String REPLACEMENT_POLICY_PROPERTY = "simpledb.replacementPolicy";
 
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _bufferpool = createBufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -32,6 +39,7 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _spillmanager = new SpillManager();
         // startControllerThread();
     }
 
@@ -45,21 +53,44 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the spill manager of the static Database instance */
+    public static SpillManager getSpillManager() {
+        return _instance.get()._spillmanager;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
     }
 
+    /** Create a buffer pool that uses the configured replacement policy */
+    private static BufferPool createBufferPool(int pages) {
+        String policy = System.getProperty(REPLACEMENT_POLICY_PROPERTY, ReplacementPolicy.LRU);
+        return new BufferPool(pages, ReplacementPolicy.forName(policy, pages));
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(createBufferPool(pages));
+    }
+
+    /**
+     * Method used for testing and benchmarks -- create a new instance of the
+     * buffer pool with the specified replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, String policy) {
+        return resetBufferPool(new BufferPool(pages, ReplacementPolicy.forName(policy, pages)));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bufferPool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
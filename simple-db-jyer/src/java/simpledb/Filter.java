@@ -11,6 +11,8 @@ public class Filter extends Operator {
 
     private Predicate p;
     private OpIterator child;
+    // whether the child scan applies p itself
+    private boolean pushed;
     
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -40,6 +42,8 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+    	// a scan evaluates p before decoding the tuples
+    	pushed = child instanceof SeqScan && ((SeqScan) child).setPredicate(p);
     	child.open();
     	super.open();
     }
@@ -47,6 +51,10 @@ public class Filter extends Operator {
     public void close() {
         // some code goes here
     	child.close();
+    	if (pushed) {
+    		((SeqScan) child).setPredicate(null);
+    		pushed = false;
+    	}
     	super.close();
     }
 
@@ -67,6 +75,8 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
+        if (pushed)
+        	return child.hasNext() ? child.next() : null;
         while (child.hasNext()) {
         	Tuple tup = child.next();
         	if (p.filter(tup))
@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * FreeSpaceMap records how many empty slots each page of a HeapFile has, so
+ * that an insert goes straight to a page with room instead of reading and
+ * locking every page in turn.
+ * <p>
+ * The map is kept as one byte per page in a file beside the heap file (see
+ * {@link HeapFile#freeSpaceMapFile}); a page's byte is written whenever the
+ * page is written or allocated. It is only a hint: an insert still checks the page it is sent
+ * to, and corrects the entry if the page turns out to be full. Pages the
+ * map has no entry for, e.g. because the map file is missing, are assumed
+ * to have room until they are looked at. The map file starts with the
+ * length the heap file had when the map was last saved; a map whose heap
+ * file has changed length since, e.g. because it was written again
+ * without the map, is discarded.
+ * <p>
+ * Each transaction keeps inserting into the page it inserted into last.
+ * A transaction's first insert starts looking where the previous
+ * transaction's first insert ended up, plus one, so that concurrent
+ * inserters spread over the pages with room.
+ */
+class FreeSpaceMap {
+
+    /** Entry of a page with this many empty slots or more, or not known. */
+    static final int MAX_ENTRY = 255;
+
+    /** Bytes before the entries in the map file: the heap file's length. */
+    static final int HEADER_SIZE = 8;
+
+    private final File file;
+    private final File heapFile;
+    // open channel to file, or null before the first write
+    private FileChannel channel;
+    // empty slots of each page, capped at MAX_ENTRY
+    private byte[] free;
+    // number of entries in the map file
+    private int stored;
+    // where the next transaction's first insert starts looking
+    private int rover;
+    // page each transaction inserted into last
+    private final Map<TransactionId, Integer> last = new WeakHashMap<>();
+
+    /**
+     * Open the map of heapFile stored in file, which need not exist.
+     */
+    FreeSpaceMap(File file, File heapFile) throws IOException {
+        this.file = file;
+        this.heapFile = heapFile;
+        byte[] bytes = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+        if (bytes.length >= HEADER_SIZE && ByteBuffer.wrap(bytes).getLong() == heapFile.length()) {
+            free = Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length);
+        } else {
+            file.delete();
+            free = new byte[0];
+        }
+        stored = free.length;
+    }
+
+    /** Make sure there are entries for numPages pages. */
+    private void cover(int numPages) {
+        if (numPages <= free.length)
+            return;
+        int old = free.length;
+        free = Arrays.copyOf(free, Math.max(numPages, old * 2));
+        Arrays.fill(free, old, free.length, (byte) MAX_ENTRY);
+    }
+
+    /** @return the recorded number of empty slots of page pageNo */
+    synchronized int getFree(int pageNo) {
+        cover(pageNo + 1);
+        return free[pageNo] & 0xff;
+    }
+
+    /** Record that page pageNo has the specified number of empty slots. */
+    synchronized void setFree(int pageNo, int emptySlots) {
+        cover(pageNo + 1);
+        free[pageNo] = (byte) Math.min(emptySlots, MAX_ENTRY);
+    }
+
+    /**
+     * Record the empty slots of page pageNo, which has just been written to
+     * the heap file or allocated in it, and write the entry to the map file,
+     * followed by the heap file's length.
+     */
+    synchronized void save(int pageNo, int emptySlots) throws IOException {
+        setFree(pageNo, emptySlots);
+        if (channel == null)
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // the entries between the end of the file and pageNo are written too,
+        // so that the file never has a hole, which would read as full pages
+        int from = Math.min(pageNo, stored);
+        ByteBuffer buf = ByteBuffer.wrap(free, from, pageNo + 1 - from);
+        while (buf.hasRemaining())
+            channel.write(buf, HEADER_SIZE + buf.position());
+        stored = Math.max(stored, pageNo + 1);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(0, heapFile.length());
+        while (header.hasRemaining())
+            channel.write(header, header.position());
+    }
+
+    /**
+     * @return the first page in [from, to) that may have room, or -1
+     */
+    synchronized int find(int from, int to) {
+        cover(to);
+        for (int i = from; i < to; i++) {
+            if (free[i] != 0)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the page tid should try first, of a file of numPages pages
+     */
+    synchronized int startPage(TransactionId tid, int numPages) {
+        Integer page = last.get(tid);
+        if (page != null && page < numPages)
+            return page;
+        return rover < numPages ? rover : 0;
+    }
+
+    /** Record that tid inserted a tuple into page pageNo. */
+    synchronized void insertedInto(TransactionId tid, int pageNo) {
+        if (last.put(tid, pageNo) == null)
+            rover = pageNo + 1;
+    }
+
+    /** Close the map file. The map is opened again if it is used after this. */
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
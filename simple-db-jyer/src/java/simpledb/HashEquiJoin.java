@@ -3,35 +3,120 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * HashEquiJoin joins two inputs on the equality of a field of each with a
+ * hybrid hash join. It loads the first input, the build side, into a hash
+ * table on its join field, and then streams the second input past it.
+ * <p>
+ * The table is held to a memory budget, given in buffer pool pages. When the
+ * build side outgrows it, the join splits both inputs into partitions on a
+ * hash of the join field: partition 0 stays in memory and is joined as the
+ * second input streams by, and the other partitions are written to spill
+ * files (see {@link SpillManager}). Each pair of spilled partitions is then
+ * joined the same way, with another hash, so a partition that still does
+ * not fit is partitioned again. A partition that hashing cannot split, such
+ * as one whose tuples all share a key, is joined with a
+ * {@link BlockNestedLoopJoin} instead.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** System property with the default memory budget, in pages. */
+    public static final String MEMORY_PAGES_PROPERTY = "simpledb.hashJoinPages";
+
+    /** Default memory budget: 64 pages. */
+    public static final int DEFAULT_MEMORY_PAGES = 64;
+
+    /** The number of partitions a join splits its inputs into when they do not fit. */
+    public static final int FANOUT = 16;
+
+    // partitions this deep are joined with nested loops: hashing has failed
+    // to split them so far
+    static final int MAX_DEPTH = 8;
+
+    private static volatile int defaultMemoryPages = Integer.getInteger(MEMORY_PAGES_PROPERTY,
+            DEFAULT_MEMORY_PAGES);
+
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
+    private final int memoryPages;
+    // how many times the tuples of this join have been partitioned before
+    private final int depth;
+
+    // the build tuples held in memory, by join field
+    private final HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+    private int buildTuples;
+    // the spilled partitions of each input, null until the build side
+    // overflows; a partition is null until a tuple is written to it
+    private SpillManager.SpillFile[] buildParts, probeParts;
+    // false once partition 0 has overflowed and been spilled too
+    private boolean inMemory;
+    // whether child2 has been read through in this pass, and in any pass
+    private boolean probed, probeSpilled;
+    // the next spilled partition to join, and the join of the current one
+    private int part;
+    private OpIterator partJoin;
     transient private Tuple t2 = null;
+    transient private Iterator<Tuple> listIt = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
-     * on
-     * 
+     * on, with the default memory budget.
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
-     *            Iterator for the left(outer) relation to join
+     *            Iterator for the left(outer) relation to join, the build side
      * @param child2
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, defaultMemoryPages);
+    }
+
+    /**
+     * Constructor, with a hash table that takes up to memoryPages pages of
+     * build tuples; one tuple at least.
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            int memoryPages) {
+        this(p, child1, child2, memoryPages, 0);
+    }
+
+    private HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            int memoryPages, int depth) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryPages = memoryPages;
+        this.depth = depth;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /** @return the memory budget of joins created without one, in pages */
+    public static int getDefaultMemoryPages() {
+        return defaultMemoryPages;
+    }
+
+    /**
+     * Set the memory budget of joins created without one, in pages. The
+     * default comes from the system property {@value #MEMORY_PAGES_PROPERTY}.
+     */
+    public static void setDefaultMemoryPages(int pages) {
+        defaultMemoryPages = pages;
+    }
+
+    /** @return the number of build tuples the hash table holds at most */
+    public int getMemoryTuples() {
+        return BlockNestedLoopJoin.tuplesPerBlock(child1.getTupleDesc(), memoryPages);
+    }
+
+    /** @return true if the build side did not fit in memory and was partitioned */
+    public boolean isPartitioned() {
+        return buildParts != null;
+    }
+
     public JoinPredicate getJoinPredicate() {
         return pred;
     }
@@ -39,7 +124,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -49,58 +134,158 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
+    /** @return the partition of key at this join's depth */
+    private int partition(Field key) {
+        // a different hash at each depth, so that partitioning again splits
+        int h = key.hashCode() ^ (depth * 0x9e3779b9);
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, FANOUT);
+    }
+
+    private static void spill(SpillManager.SpillFile[] parts, int i, Tuple t, TupleDesc td)
+            throws DbException {
+        if (parts[i] == null)
+            parts[i] = Database.getSpillManager().create(td);
+        parts[i].add(t);
+    }
+
+    /**
+     * Read all of child1, into the hash table as far as it fits and into
+     * spilled partitions from there.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        int capacity = getMemoryTuples();
+        TupleDesc td = child1.getTupleDesc();
+        int inMap = 0;
+        buildTuples = 0;
         while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
+            Tuple t = child1.next();
+            buildTuples++;
+            Field key = t.getField(pred.getField1());
+            if (buildParts != null) {
+                int i = partition(key);
+                if (i != 0 || !inMemory) {
+                    spill(buildParts, i, t, td);
+                    continue;
+                }
+            }
+            ArrayList<Tuple> list = map.get(key);
             if (list == null) {
                 list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+                map.put(key, list);
+            }
+            list.add(t);
+            if (++inMap <= capacity)
+                continue;
+            if (buildParts == null) {
+                buildParts = new SpillManager.SpillFile[FANOUT];
+                probeParts = new SpillManager.SpillFile[FANOUT];
+                inMemory = true;
+                inMap = evict(false);
+            }
+            if (inMap > capacity) {
+                // partition 0 alone does not fit either
+                inMemory = false;
+                inMap = evict(true);
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
         }
-        return cnt > 0;
+    }
 
+    /**
+     * Move the tuples of the hash table out to their partitions, all of
+     * them or all but those of partition 0.
+     *
+     * @return the number of tuples left in the table
+     */
+    private int evict(boolean all) throws DbException {
+        TupleDesc td = child1.getTupleDesc();
+        int left = 0;
+        Iterator<Map.Entry<Field, ArrayList<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Field, ArrayList<Tuple>> e = it.next();
+            int i = partition(e.getKey());
+            if (i == 0 && !all) {
+                left += e.getValue().size();
+                continue;
+            }
+            for (Tuple t : e.getValue())
+                spill(buildParts, i, t, td);
+            it.remove();
+        }
+        return left;
+    }
+
+    /** Delete the spilled partitions and empty the hash table */
+    private void discard() {
+        for (SpillManager.SpillFile[] parts : new SpillManager.SpillFile[][] { buildParts, probeParts }) {
+            if (parts == null)
+                continue;
+            for (SpillManager.SpillFile f : parts)
+                if (f != null)
+                    f.delete();
+        }
+        buildParts = null;
+        probeParts = null;
+        map.clear();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build();
+        probed = false;
+        probeSpilled = false;
+        part = 0;
         super.open();
     }
 
     public void close() {
         super.close();
+        if (partJoin != null) {
+            partJoin.close();
+            partJoin = null;
+        }
         child2.close();
         child1.close();
-        this.t1=null;
+        discard();
         this.t2=null;
         this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
-        child2.rewind();
+        // the hash table and the build partitions stay; child1 is not read again
+        listIt = null;
+        part = 0;
+        if (partJoin != null) {
+            partJoin.close();
+            partJoin = null;
+        }
+        if (buildParts != null && !probeSpilled) {
+            // drop the probe partitions written so far, and write them again
+            for (int i = 0; i < FANOUT; i++) {
+                if (probeParts[i] != null)
+                    probeParts[i].delete();
+                probeParts[i] = null;
+            }
+        }
+        if (buildParts != null && probeSpilled && !inMemory) {
+            // child2 has nothing to add to its partitions
+            probed = true;
+        } else {
+            child2.rewind();
+            probed = false;
+        }
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -110,13 +295,73 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     * The matches of the partitions kept in memory come first, in the order
+     * of the right relation, and then those of the spilled partitions.
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (listIt != null && listIt.hasNext())
+                return merge(listIt.next(), t2);
+            listIt = null;
+            if (!probed) {
+                if (child2.hasNext()) {
+                    probe(child2.next());
+                    continue;
+                }
+                probed = true;
+                probeSpilled = true;
+            }
+            if (partJoin != null) {
+                if (partJoin.hasNext())
+                    return partJoin.next();
+                partJoin.close();
+                partJoin = null;
+            }
+            if (buildParts == null)
+                return null;
+            // the next partition with tuples on both sides
+            while (part < FANOUT && (buildParts[part] == null || probeParts[part] == null))
+                part++;
+            if (part == FANOUT)
+                return null;
+            partJoin = joinPartition(part++);
+            partJoin.open();
+        }
+    }
+
+    /** Match t against the hash table, or spill it to its partition */
+    private void probe(Tuple t) throws DbException {
+        Field key = t.getField(pred.getField2());
+        if (buildParts != null) {
+            int i = partition(key);
+            if (i != 0 || !inMemory) {
+                // a partition without build tuples has no matches
+                if (!probeSpilled && buildParts[i] != null)
+                    spill(probeParts, i, t, child2.getTupleDesc());
+                return;
+            }
+        }
+        ArrayList<Tuple> l = map.get(key);
+        if (l != null) {
+            t2 = t;
+            listIt = l.iterator();
+        }
+    }
 
+    /** @return a join of the ith spilled partitions of the two inputs */
+    private OpIterator joinPartition(int i) throws DbException {
+        SpillManager.SpillFile build = buildParts[i];
+        OpIterator left = build.iterator();
+        OpIterator right = probeParts[i].iterator();
+        if (depth + 1 >= MAX_DEPTH || build.size() == buildTuples)
+            return new BlockNestedLoopJoin(pred, left, right, memoryPages);
+        return new HashEquiJoin(pred, left, right, memoryPages, depth + 1);
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -127,36 +372,6 @@ public class HashEquiJoin extends Operator {
         for (int i = 0; i < td2n; i++)
             t.setField(td1n + i, t2.getField(i));
         return t;
-
-    }
-
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
-
-        return null;
     }
 
     @Override
@@ -169,5 +384,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
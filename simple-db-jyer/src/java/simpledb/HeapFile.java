@@ -1,6 +1,12 @@
 package simpledb;
 
 import java.io.*;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -9,6 +15,43 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * The file is opened once, on first use, and pages are read and written
+ * with positional FileChannel calls, which need no seek and may run from
+ * several threads at once.
+ * <p>
+ * For read-mostly tables a HeapFile can instead be {@link
+ * #setMemoryMapped memory-mapped}: pages are then read from a read-only
+ * mapping of the file, without a read call and without copying them (see
+ * {@link PageBytes}). Writes still go through the channel and show
+ * through the mapping, so the mapped bytes of a page are detached, i.e.
+ * copied, by the HeapFile right before the page is written. When the file
+ * grows past the mapped region, it is mapped again.
+ * <p>
+ * A {@link FreeSpaceMap} kept beside the file records the empty slots of
+ * each page, so that inserts only visit pages with room.
+ * <p>
+ * The file grows by whole {@link #setExtentSize extents} of empty pages,
+ * written in one go, rather than a page at a time. Only the pages inserts
+ * have used so far count in {@link #numPages()}; the rest of the last
+ * extent is preallocated. A new page is created in the buffer pool and
+ * reaches the file when the pool flushes it.
+ * <p>
+ * The pages of a file have one of two {@link PageFormat formats}: fixed-size
+ * slots, as in {@link HeapPage}, or variable-length records, as in
+ * {@link SlottedHeapPage}, which suits tables with strings much shorter
+ * than their maximum length.
+ * <p>
+ * A HeapFile may also be created {@link #isCompressed compressed}: its pages
+ * are then kept in a {@link CompressedPageStore}, compressed by a
+ * {@link PageCompressor}, and neither memory-mapped nor preallocated. The
+ * buffer pool holds them uncompressed.
+ * <p>
+ * Every page written gets a CRC32C checksum and its LSN in a {@link
+ * PageChecksums} file beside the file. A page read back that does not
+ * match its checksum, e.g. one torn by a crash in the middle of its write,
+ * is restored from the latest image of it in the log, or else reported
+ * rather than used.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -16,6 +59,45 @@ import java.util.*;
 public class HeapFile implements DbFile {
 	private File f;
 	private TupleDesc td;
+	private final PageFormat format;
+	// the compressed pages, or null if the pages are stored as they are
+	private final CompressedPageStore store;
+	// open channel to f, or null before first use and after close()
+	private volatile FileChannel channel;
+	private volatile boolean memoryMapped = Boolean.getBoolean(MMAP_PROPERTY);
+	// read-only mapping of the start of f, or null
+	private volatile MappedByteBuffer map;
+	// the bytes of the pages read through a mapping and still in use, by
+	// page number, to detach before the page is written; guarded by itself
+	private final Map<Integer, MappedPage> mappedPages = new HashMap<>();
+	private final ReferenceQueue<PageBytes> unusedPages = new ReferenceQueue<>();
+	// loaded on first use
+	private FreeSpaceMap freeSpace;
+	private final PageChecksums checksums;
+	private volatile int extentSize = Integer.getInteger(EXTENT_PROPERTY, DEFAULT_EXTENT_SIZE);
+	// pages in use, or -1 before first use; the pages from there to the end
+	// of the file are preallocated
+	private int numPages = -1;
+	// length of f as this HeapFile last left it
+	private long fileLength;
+
+	/** System property that memory-maps every HeapFile when "true". */
+	public static final String MMAP_PROPERTY = "simpledb.heapFileMmap";
+
+	/** System property with the default extent size, in bytes. */
+	public static final String EXTENT_PROPERTY = "simpledb.heapFileExtent";
+
+	/** Default extent size: 1 MB. */
+	public static final int DEFAULT_EXTENT_SIZE = 1 << 20;
+
+	/** The layout of the tuples on the pages of a HeapFile. */
+	public enum PageFormat {
+		/** fixed-size slots; see {@link HeapPage} */
+		FIXED,
+		/** variable-length records; see {@link SlottedHeapPage} */
+		SLOTTED
+	}
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -24,9 +106,54 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, PageFormat.FIXED);
+        }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages have
+     * the specified format.
+     */
+    public HeapFile(File f, TupleDesc td, PageFormat format) {
+        this(f, td, format, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages have
+     * the specified format and are stored compressed if compressed is true.
+     */
+    public HeapFile(File f, TupleDesc td, PageFormat format, boolean compressed) {
         this.f = f;
         this.td = td;
-        }
+        this.format = format;
+        store = compressed ? new CompressedPageStore(f,
+                new PageCompressor(format == PageFormat.FIXED ? td : null)) : null;
+        checksums = new PageChecksums(checksumFile(f));
+    }
+
+    /** @return true if the pages of this file are stored compressed */
+    public boolean isCompressed() {
+        return store != null;
+    }
+
+    /**
+     * @return the size of the pages in use over the space they take in the
+     *         file; 1 unless the file is compressed
+     */
+    public double getCompressionRatio() throws IOException {
+        return store == null ? 1 : store.getCompressionRatio();
+    }
+
+    /** @return the format of the pages of this file */
+    public PageFormat getPageFormat() {
+        return format;
+    }
+
+    /** @return a page of this file's format holding data */
+    private HeapPage newPage(HeapPageId pid, PageBytes data) throws IOException {
+        if (format == PageFormat.SLOTTED)
+            return new SlottedHeapPage(pid, data);
+        return new HeapPage(pid, data);
+    }
 
     /**
      * Returns the File backing this HeapFile on disk.
@@ -60,29 +187,263 @@ public class HeapFile implements DbFile {
         return td;
     }
 
+    private FileChannel channel() throws IOException {
+    	FileChannel c = channel;
+    	if (c == null) {
+    		synchronized (this) {
+    			c = channel;
+    			if (c == null) {
+    				c = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+    						StandardOpenOption.WRITE);
+    				channel = c;
+    			}
+    		}
+    	}
+    	return c;
+    }
+
+    /**
+     * @return the file beside f that stores the free-space map of the heap
+     *         file stored in f
+     */
+    public static File freeSpaceMapFile(File f) {
+    	return new File(f.getPath() + ".fsm");
+    }
+
+    /**
+     * @return the file beside f that stores the page checksums of the heap
+     *         file stored in f
+     */
+    public static File checksumFile(File f) {
+    	return new File(f.getPath() + ".crc");
+    }
+
+    synchronized FreeSpaceMap freeSpaceMap() throws IOException {
+    	if (freeSpace == null)
+    		freeSpace = new FreeSpaceMap(freeSpaceMapFile(f), f);
+    	return freeSpace;
+    }
+
+    /** @return the number of bytes the file grows by when it is full */
+    public int getExtentSize() {
+    	return extentSize;
+    }
+
+    /**
+     * Set the number of bytes the file grows by when an insert finds no
+     * room, rounded down to whole pages; one page at least. The default
+     * comes from the system property {@value #EXTENT_PROPERTY}.
+     */
+    public void setExtentSize(int bytes) {
+    	extentSize = bytes;
+    }
+
+    /** @return true if pages are read through a memory mapping of the file */
+    public boolean isMemoryMapped() {
+    	return memoryMapped;
+    }
+
+    /**
+     * Choose whether pages are read through a memory mapping of the file
+     * rather than with read calls. The default comes from the system
+     * property {@value #MMAP_PROPERTY}.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+    	this.memoryMapped = memoryMapped;
+    	if (!memoryMapped)
+    		map = null;
+    }
+
+    /**
+     * @return the bytes of page pageNo in the mapping, or null if the page
+     *         lies past the end of the file or the file is too large to map
+     */
+    private ByteBuffer mappedPage(int pageNo) throws IOException {
+    	int pageSize = BufferPool.getPageSize();
+    	long start = (long) pageNo * pageSize;
+    	MappedByteBuffer m = map;
+    	if (m == null || start + pageSize > m.capacity()) {
+    		synchronized (this) {
+    			m = map;
+    			if (m == null || start + pageSize > m.capacity()) {
+    				long size = channel().size();
+    				if (start + pageSize > size || size > Integer.MAX_VALUE)
+    					return null;
+    				m = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+    				map = m;
+    			}
+    		}
+    	}
+    	ByteBuffer page = m.duplicate();
+    	page.position((int) start);
+    	page.limit((int) start + pageSize);
+    	return page.slice();
+    }
+
+    /**
+     * Close the file. It is opened again if the HeapFile is used after this.
+     */
+    public synchronized void close() throws IOException {
+    	map = null;
+    	if (freeSpace != null)
+    		freeSpace.close();
+    	if (store != null)
+    		store.close();
+    	checksums.close();
+    	if (channel != null) {
+    		channel.close();
+    		channel = null;
+    	}
+    }
+
+    /** A weak reference to the bytes of a page read through a mapping. */
+    private static class MappedPage extends WeakReference<PageBytes> {
+    	final int pageNo;
+
+    	MappedPage(int pageNo, PageBytes bytes, ReferenceQueue<PageBytes> queue) {
+    		super(bytes, queue);
+    		this.pageNo = pageNo;
+    	}
+    }
+
+    /**
+     * @return the bytes of page pageNo in the mapping, the same as the last
+     *         time if they are still in use, or null if the page cannot be
+     *         mapped
+     */
+    private PageBytes mappedBytes(int pageNo) throws IOException {
+    	synchronized (mappedPages) {
+    		forgetUnusedPages();
+    		MappedPage ref = mappedPages.get(pageNo);
+    		PageBytes bytes = ref == null ? null : ref.get();
+    		if (bytes != null && bytes.isMapped())
+    			return bytes;
+    		ByteBuffer mapped = mappedPage(pageNo);
+    		if (mapped == null)
+    			return null;
+    		bytes = new PageBytes(mapped);
+    		mappedPages.put(pageNo, new MappedPage(pageNo, bytes, unusedPages));
+    		return bytes;
+    	}
+    }
+
+    /** Drop the entries of mapped pages that are no longer in use. */
+    private void forgetUnusedPages() {
+    	MappedPage ref;
+    	while ((ref = (MappedPage) unusedPages.poll()) != null) {
+    		if (mappedPages.get(ref.pageNo) == ref)
+    			mappedPages.remove(ref.pageNo);
+    	}
+    }
+
+    /** Detach the mapped bytes of page pageNo, which is about to be written. */
+    private void detachMapped(int pageNo) {
+    	MappedPage ref;
+    	synchronized (mappedPages) {
+    		forgetUnusedPages();
+    		ref = mappedPages.remove(pageNo);
+    	}
+    	PageBytes bytes = ref == null ? null : ref.get();
+    	if (bytes != null)
+    		bytes.detach();
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-    	byte[] data = new byte[BufferPool.getPageSize()];
     	try {
-    		RandomAccessFile randFile = new RandomAccessFile(f, "r");
-    		long start = (long) pid.getPageNumber() * (long) BufferPool.getPageSize();
-    		randFile.seek(start);
-    		randFile.read(data);
-    		randFile.close();
-    		return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), data);
+    		HeapPageId hpid = new HeapPageId(pid.getTableId(), pid.getPageNumber());
+    		PageBytes data = readData(pid.getPageNumber());
+    		PageChecksums.Entry entry = checksums.entry(pid.getPageNumber());
+    		if (entry != null && (data == null || data.read(PageChecksums::checksum) != entry.checksum))
+    			data = new PageBytes(repair(hpid, entry));
+    		HeapPage page = newPage(hpid, data);
+    		freeSpaceMap().setFree(pid.getPageNumber(), page.getNumEmptySlots());
+    		return page;
     	} catch(IOException e) {
-    		throw new IllegalArgumentException();
+    		throw new IllegalArgumentException("cannot read page " + pid.getPageNumber()
+    				+ " of " + f + ": " + e.getMessage(), e);
+    	}
+    }
+
+    /**
+     * @return the bytes of page pageNo as they are on disk, in the mapping
+     *         if the file is memory-mapped, or null if they cannot be
+     *         decompressed
+     */
+    private PageBytes readData(int pageNo) throws IOException {
+    	if (store != null) {
+    		try {
+    			return new PageBytes(store.read(pageNo));
+    		} catch (RuntimeException e) {
+    			// a torn image
+    			return null;
+    		}
+    	}
+    	PageBytes mapped = memoryMapped ? mappedBytes(pageNo) : null;
+    	if (mapped != null)
+    		return mapped;
+    	byte[] data = new byte[BufferPool.getPageSize()];
+    	ByteBuffer buf = ByteBuffer.wrap(data);
+    	long start = (long) pageNo * (long) BufferPool.getPageSize();
+    	FileChannel c = channel();
+    	// past the end of the file the page reads as empty
+    	while (buf.hasRemaining() && c.read(buf, start + buf.position()) >= 0)
+    		;
+    	return new PageBytes(data);
+    }
+
+    /**
+     * Restore page pid, which does not match its checksum entry, from the
+     * latest image of it in the log that does, and write it back.
+     *
+     * @return the restored bytes of the page
+     * @throws IOException if the log holds no such image
+     */
+    private byte[] repair(HeapPageId pid, PageChecksums.Entry entry) throws IOException {
+    	byte[] data = Database.getLogFile().findPageImage(pid, entry.lsn, entry.checksum);
+    	if (data == null)
+    		throw new IOException("the page does not match its checksum (LSN " + entry.lsn
+    				+ ") and the log holds no image of it that does");
+    	writeData(pid.getPageNumber(), data);
+    	return data;
+    }
+
+    /** Write the bytes of page pageNo, without its checksum entry. */
+    private void writeData(int pageNo, byte[] data) throws IOException {
+    	if (store != null) {
+    		store.write(pageNo, data);
+    		return;
     	}
+    	detachMapped(pageNo);
+    	ByteBuffer buf = ByteBuffer.wrap(data);
+    	long start = (long) pageNo * BufferPool.getPageSize();
+    	FileChannel c = channel();
+    	while (buf.hasRemaining())
+    		c.write(buf, start + buf.position());
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-    	RandomAccessFile randFile = new RandomAccessFile(f, "rw");
-    	long start = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
-    	randFile.seek(start);
-    	randFile.write(page.getPageData());
-    	randFile.close();
+    	int pageNo = page.getId().getPageNumber();
+    	byte[] data = page.getPageData();
+    	// the checksum goes first: a page torn after it fails the check,
+    	// while its image is already in the log
+    	checksums.save(pageNo, data, Database.getLogFile().getPageLsn(page.getId()));
+    	writeData(pageNo, data);
+    	if (store != null) {
+    		freeSpaceMap().save(pageNo, ((HeapPage) page).getNumEmptySlots());
+    		return;
+    	}
+    	long start = (long) pageNo * BufferPool.getPageSize();
+    	synchronized (this) {
+    		if (numPages >= 0 && pageNo >= numPages) {
+    			// e.g. recovery writing a page lost from the end of the file
+    			numPages = pageNo + 1;
+    			fileLength = Math.max(fileLength, start + BufferPool.getPageSize());
+    		}
+    	}
+    	freeSpaceMap().save(pageNo, ((HeapPage) page).getNumEmptySlots());
         // some code goes here
         // not necessary for lab1
     }
@@ -92,44 +453,174 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int) f.length() / BufferPool.getPageSize();
+    	if (store != null) {
+    		try {
+    			int stored = store.numPages();
+    			synchronized (this) {
+    				// pages allocated in the buffer pool are not stored yet
+    				numPages = Math.max(numPages, stored);
+    				return numPages;
+    			}
+    		} catch (IOException e) {
+    			throw new IllegalStateException("cannot read the page map of " + f, e);
+    		}
+    	}
+    	long len = f.length();
+    	synchronized (this) {
+    		try {
+    			if (numPages < 0) {
+    				numPages = countPages(len, 0);
+    				fileLength = len;
+    			} else if (len > fileLength) {
+    				// the file was extended by someone else, maybe preallocated
+    				numPages = countPages(len, numPages);
+    				fileLength = len;
+    			}
+    		} catch (IOException e) {
+    			throw new IllegalStateException("cannot count the pages of " + f, e);
+    		}
+    		return numPages;
+    	}
+    }
+
+    /**
+     * @return the number of pages in use in a file of len bytes, and at
+     *         least floor: the pages up to the last one that is not empty
+     *         or has been written, which gave it a checksum entry. The empty
+     *         pages after it were preallocated.
+     */
+    private int countPages(long len, int floor) throws IOException {
+    	int pageSize = BufferPool.getPageSize();
+    	int n = (int) (len / pageSize);
+    	byte[] data = new byte[pageSize];
+    	byte[] empty = HeapPage.createEmptyPageData();
+    	while (n > floor) {
+    		ByteBuffer buf = ByteBuffer.wrap(data);
+    		long start = (long) (n - 1) * pageSize;
+    		while (buf.hasRemaining() && channel().read(buf, start + buf.position()) >= 0)
+    			;
+    		// a written page torn to zeros is still in use
+    		if (!Arrays.equals(data, empty) || checksums.entry(n - 1) != null)
+    			break;
+    		n--;
+    	}
+    	return n;
+    }
+
+    /**
+     * Allocate a page at the end of the pages in use. When no preallocated
+     * page is left, the file is first grown to the next multiple of the
+     * extent size with a single write of empty pages.
+     *
+     * @return the number of the new page
+     */
+    private synchronized int allocatePage() throws IOException {
+    	int pageNo = numPages();
+    	int pageSize = BufferPool.getPageSize();
+    	long end = (long) (pageNo + 1) * pageSize;
+    	if (store == null && end > fileLength) {
+    		long extent = Math.max(1, extentSize / pageSize) * (long) pageSize;
+    		long length = (end + extent - 1) / extent * extent;
+    		ByteBuffer zeros = ByteBuffer.allocate((int) (length - fileLength));
+    		FileChannel c = channel();
+    		while (zeros.hasRemaining())
+    			c.write(zeros, fileLength + zeros.position());
+    		fileLength = length;
+    	}
+    	numPages = pageNo + 1;
+    	return pageNo;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
+    	BufferPool bp = Database.getBufferPool();
+    	FreeSpaceMap fsm = freeSpaceMap();
     	int numPage = numPages();
     	ArrayList<Page> list = new ArrayList<>();
-    	for (int i = 0; i < numPage; i++) {
-    		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i),
-    				Permissions.READ_WRITE);
-    		if (page.getNumEmptySlots() > 0) {
-    			page.insertTuple(t);
+    	// try the pages with room from where tid should start, wrapping around
+    	// to the pages before it; a page another transaction has locked is
+    	// only waited for if no other page has room
+    	int start = fsm.startPage(tid, numPage);
+    	int busy = -1;
+    	for (int pass = 0; pass < 2; pass++) {
+    		int to = pass == 0 ? numPage : start;
+    		for (int i = fsm.find(pass == 0 ? start : 0, to); i >= 0; i = fsm.find(i + 1, to)) {
+    			HeapPageId pid = new HeapPageId(getId(), i);
+    			boolean held = bp.holdsLock(tid, pid);
+    			HeapPage page = (HeapPage) bp.tryGetPage(tid, pid, Permissions.READ_WRITE);
+    			if (page == null) {
+    				if (busy < 0)
+    					busy = i;
+    			} else if (insertInto(tid, page, t, fsm)) {
+    				list.add(page);
+    				return list;
+    			} else if (!held) {
+    				bp.releasePage(tid, pid);
+    			}
+    		}
+    	}
+    	if (busy >= 0) {
+    		HeapPageId pid = new HeapPageId(getId(), busy);
+    		boolean held = bp.holdsLock(tid, pid);
+    		HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+    		if (insertInto(tid, page, t, fsm)) {
     			list.add(page);
     			return list;
     		}
-    		else
-    			Database.getBufferPool().releasePage(tid, page.getId());
-    	}
-    	HeapPage page = new HeapPage(new HeapPageId(getId(), numPage),
-    			HeapPage.createEmptyPageData());
-    	page.insertTuple(t);
-    	//numPages++;
-    	//return insertTuple(tid, t);
-    	writePage(page);
+    		if (!held)
+    			bp.releasePage(tid, pid);
+    	}
+    	// no page has room: add one, in the buffer pool only
+    	int pageNo = allocatePage();
+    	HeapPage page = (HeapPage) bp.newPage(tid, newPage(new HeapPageId(getId(), pageNo),
+    			new PageBytes(HeapPage.createEmptyPageData())));
+    	fsm.save(pageNo, page.getNumEmptySlots());
+    	if (!insertInto(tid, page, t, fsm))
+    		throw new DbException("cannot insert into new page " + pageNo);
     	list.add(page);
     	return list;
         // not necessary for lab1
     }
 
+    /**
+     * Insert t into an empty slot of page. With record-level locking other
+     * writers may share the page, so only a slot whose record lock tid can
+     * take at once is used. The page's free-space map entry is brought up
+     * to date either way.
+     *
+     * @return false if no empty slot could be used
+     */
+    private boolean insertInto(TransactionId tid, HeapPage page, Tuple t, FreeSpaceMap fsm) {
+    	BufferPool bp = Database.getBufferPool();
+    	boolean inserted;
+    	if (bp.getLockGranularity() == BufferPool.LockGranularity.PAGE)
+    		inserted = page.insertTuple(t, slot -> true);
+    	else
+    		inserted = page.insertTuple(t, slot -> bp.tryLockTuple(tid, new RecordId(page.getId(), slot)));
+    	int pageNo = page.getId().getPageNumber();
+    	fsm.setFree(pageNo, page.getNumEmptySlots());
+    	if (inserted)
+    		fsm.insertedInto(tid, pageNo);
+    	return inserted;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
     	ArrayList<Page> list = new ArrayList<>();
     	HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, 
     			t.getRecordId().getPageId(), Permissions.READ_WRITE);
-    	page.deleteTuple(t);
+    	Database.getBufferPool().lockTuple(tid, t.getRecordId(), Permissions.READ_WRITE);
+    	// with record-level locking the delete may be undone in place
+    	page.deleteTuple(t, Database.getBufferPool().getLockGranularity()
+    			!= BufferPool.LockGranularity.PAGE);
+    	try {
+    		freeSpaceMap().setFree(page.getId().getPageNumber(), page.getNumEmptySlots());
+    	} catch (IOException e) {
+    		throw new DbException("cannot read the free-space map: " + e.getMessage());
+    	}
     	list.add(page);
     	return list;
         // not necessary for lab1
@@ -137,38 +628,71 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-    	return new HeapFileIterator(this, tid);
+    	return new HeapFileIterator(this, tid, null, null);
         // some code goes here
 
     }
+
+    /**
+     * Returns an iterator over all the tuples stored in this file that reads
+     * pages through the specified scan ring, so that scanning a large file
+     * does not evict the rest of the buffer pool.
+     *
+     * @see ScanRing
+     */
+    public DbFileIterator iterator(TransactionId tid, ScanRing ring) {
+    	return new HeapFileIterator(this, tid, ring, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored in this file that satisfy
+     * the specified predicate. The predicate is evaluated on the encoded
+     * tuples, so the tuples it rejects are never decoded.
+     *
+     * @param ring the scan ring to read through, or null
+     * @see HeapPage#matches
+     */
+    public DbFileIterator iterator(TransactionId tid, ScanRing ring, Predicate p) {
+    	return new HeapFileIterator(this, tid, ring, p);
+    }
+
     class HeapFileIterator extends AbstractDbFileIterator {
 		
 		private HeapFile f;
 		private TransactionId tid;
+		private ScanRing ring;
+		private Predicate p;
+		private ReadAhead readAhead;
 		private Iterator<Tuple> currIt;
 		private int currPageNo;
 		
-    	HeapFileIterator(HeapFile f, TransactionId tid) {
+    	HeapFileIterator(HeapFile f, TransactionId tid, ScanRing ring, Predicate p) {
     		this.f = f;
     		this.tid = tid;
+    		this.ring = ring;
+    		this.p = p;
     		currPageNo = -1;
     	}
     	
     	protected Tuple readNext() throws DbException, TransactionAbortedException {
-			if (currIt == null || !currIt.hasNext()) {
-				if (currPageNo == -1 || currPageNo >= f.numPages()) {
+			// a loop rather than a call per page: with a predicate, any
+			// number of pages in a row may have no tuple to return
+			while (currIt == null || !currIt.hasNext()) {
+				int numPages = f.numPages();
+				if (currPageNo == -1 || currPageNo >= numPages) {
 					return null;
 				}
+				readAhead.reached(currPageNo, numPages);
 				PageId pid = new HeapPageId(f.getId(), currPageNo);
-				Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-				currIt = ((HeapPage) page).iterator();
+				Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
+				currIt = p == null ? ((HeapPage) page).iterator() : ((HeapPage) page).iterator(p);
 				currPageNo++;
-				return readNext();
 			}
 			return currIt.next();
 		}
 		public void open() {
 			currPageNo = 0;
+			readAhead = new ReadAhead(Database.getBufferPool(), f.getId(), ring);
 		}
 		
 		public void close() {
@@ -6,6 +6,8 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * Its tuples have fixed-size slots; {@link SlottedHeapPage} stores them
+ * in variable-length records instead.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,16 +18,23 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    // the page as it was read; never modified
+    final PageBytes data;
+    // tuples inserted into the page or already decoded from data; null in
+    // slots not accessed yet
     final Tuple tuples[];
     final int numSlots;
     boolean dirty;
     TransactionId dirtid;
 
-    byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    PageBytes oldData;
+    private final Object oldDataLock=new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
+     * The page keeps data rather than a copy, so it must not be modified
+     * afterwards. Tuples are decoded only when accessed, each field when
+     * it is first read.
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
@@ -41,27 +50,66 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, new PageBytes(data));
+    }
+
+    /**
+     * Create a HeapPage from data, e.g. a slice of a memory-mapped file,
+     * without copying it.
+     */
+    HeapPage(HeapPageId id, PageBytes data) {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /**
+     * Create a HeapPage of tuples of td rather than of the table's schema,
+     * e.g. of a single column of the table.
+     *
+     * @see ColumnPage
+     */
+    HeapPage(HeapPageId id, TupleDesc td, byte[] data) {
+        this(id, td, new PageBytes(data));
+    }
+
+    HeapPage(HeapPageId id, TupleDesc td, PageBytes data) {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
 
-        // allocate and read the header slots of this page
+        // the header is copied; the tuples are decoded from data on demand
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        data.copy(0, header, 0, header.length);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
 
-        setBeforeImage();
+        // data is not modified, so it is the before image as well
+        oldData = data;
+    }
+
+    /**
+     * Create a page of a subclass's format from data, with room for at most
+     * numSlots tuples; the subclass reads data itself.
+     */
+    HeapPage(HeapPageId id, TupleDesc td, PageBytes data, int numSlots) {
+        this.pid = id;
+        this.td = td;
+        this.numSlots = numSlots;
+        this.data = data;
+        header = new byte[0];
+        tuples = new Tuple[numSlots];
+        oldData = data;
+    }
+
+    /**
+     * @return a page of the same format and id as this page holding data,
+     *         e.g. an earlier image of this page
+     */
+    HeapPage withData(byte[] data) throws IOException {
+        return withData(new PageBytes(data));
+    }
+
+    HeapPage withData(PageBytes data) throws IOException {
+        return new HeapPage(pid, td, data);
     }
 
     /** Retrieve the number of tuples on this page.
@@ -87,12 +135,12 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            PageBytes oldDataRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return withData(oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -104,7 +152,19 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = new PageBytes(getPageData().clone());
+        }
+    }
+
+    /**
+     * Set the before image to the specified page data rather than to the
+     * current contents, e.g. to an image without other transactions'
+     * uncommitted record-level changes.
+     */
+    void setBeforeImage(byte[] data) {
+        synchronized(oldDataLock)
+        {
+        oldData = new PageBytes(data.clone());
         }
     }
 
@@ -117,37 +177,40 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in slot i, which must be used; decoded from the page
+     *         data when it is first accessed
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    Tuple getTuple(int i) {
+        Tuple t = tuples[i];
+        if (t != null)
+            return t;
+        synchronized (this) {
+            if (tuples[i] == null) {
+                t = new Tuple(td, data, slotOffset(i));
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
             }
-            return null;
+            return tuples[i];
         }
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    /** @return the offset of slot i in the page data */
+    private int slotOffset(int i) {
+        return header.length + i * td.getSize();
+    }
 
-        return t;
+    /**
+     * Evaluate p on the tuple in slot i, which must be used. A tuple that has
+     * not been decoded is compared in its encoded form, so that rows p
+     * rejects are never decoded.
+     */
+    boolean matches(int i, Predicate p) {
+        Tuple t = tuples[i];
+        if (t != null && !t.isEncodedIn(data))
+            return p.filter(t);
+        int f = p.getField();
+        return data.read(b -> td.getFieldType(f).compare(p.getOp(), b,
+                slotOffset(i) + td.getFieldOffset(f), p.getOperand()));
     }
 
     /**
@@ -161,7 +224,7 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -177,6 +240,7 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
+        byte[] slot = new byte[td.getSize()];
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
@@ -192,11 +256,21 @@ public class HeapPage implements Page {
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot, unchanged since the page was read
+            Tuple t = tuples[i];
+            if (t == null || t.isEncodedIn(data)) {
+                try {
+                    data.copy(slotOffset(i), slot, 0, slot.length);
+                    dos.write(slot);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
-                    f.serialize(dos);
+                    td.getFieldType(j).serialize(f, td.getMaxLength(j), true, dos);
                 
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -243,7 +317,7 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
     	RecordId rid = t.getRecordId();
     	if (!rid.getPageId().equals(this.pid))
     		throw new DbException("");
@@ -254,6 +328,16 @@ public class HeapPage implements Page {
         // not necessary for lab1   	
     }
 
+    /**
+     * Delete the specified tuple from the page. If keepSpace is true the
+     * tuple's space stays reserved for it until its slot is reused, so that
+     * {@link #restoreTuple} can undo the delete; a fixed-size slot always
+     * keeps its space.
+     */
+    synchronized void deleteTuple(Tuple t, boolean keepSpace) throws DbException {
+        deleteTuple(t);
+    }
+
     /**
      * Adds the specified tuple to the page;  the tuple should be updated to reflect
      *  that it is now stored on this page.
@@ -261,18 +345,42 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
+    	if (!insertTuple(t, slot -> true))
+    		throw new DbException("page is full");
+        // some code goes here
+        // not necessary for lab1
+    }
+
+    /**
+     * Adds the specified tuple to the first empty slot that usable accepts.
+     * With record-level locking, usable reserves the slot's record lock so
+     * that a slot freed by a transaction that has not committed yet is not
+     * reused.
+     *
+     * @return false if no empty slot was usable
+     */
+    synchronized boolean insertTuple(Tuple t, java.util.function.IntPredicate usable) {
     	for (int i = 0; i < numSlots; i++) {
-    		if (!isSlotUsed(i)) {
+    		if (!isSlotUsed(i) && usable.test(i)) {
     			tuples[i] = t;
     			markSlotUsed(i, true);
     			t.setRecordId(new RecordId(pid, i));
-    			return;
+    			return true;
     		}
     	}
-    	throw new DbException("page is full");
-        // some code goes here
-        // not necessary for lab1
+    	return false;
+    }
+
+    /** Put a deleted tuple back into its slot; used to undo a record-level delete. */
+    synchronized void restoreTuple(int slot, Tuple t) {
+    	tuples[slot] = t;
+    	markSlotUsed(slot, true);
+    }
+
+    /** Empty the specified slot; used to undo a record-level insert. */
+    synchronized void clearSlot(int slot) {
+    	markSlotUsed(slot, false);
     }
 
     /**
@@ -339,7 +447,16 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        return new TpIterator(this);
+        return new TpIterator(this, null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy p,
+     *         which is evaluated before the tuples are decoded
+     * @see #matches
+     */
+    Iterator<Tuple> iterator(Predicate p) {
+        return new TpIterator(this, p);
     }
 
 }
@@ -348,16 +465,18 @@ class TpIterator implements Iterator<Tuple> {
 	
 	private int idx;
 	private HeapPage page;
+	private Predicate p;
 	
-	public TpIterator(HeapPage page) {
+	public TpIterator(HeapPage page, Predicate p) {
 		this.page = page;
+		this.p = p;
 		idx = -1;
 		search();
 	}
 	
 	private void search() {
 		while (++idx < page.tuples.length) {
-			if (page.isSlotUsed(idx))
+			if (page.isSlotUsed(idx) && (p == null || page.matches(idx, p)))
 				break;
 		}
 	}
@@ -370,7 +489,7 @@ class TpIterator implements Iterator<Tuple> {
 	public Tuple next() {
 		if (idx >= page.tuples.length)
 			return null;
-		Tuple tuple = page.tuples[idx];
+		Tuple tuple = page.getTuple(idx);
 		search();
 		return tuple;
 	}
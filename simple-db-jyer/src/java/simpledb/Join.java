@@ -3,17 +3,21 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation, as a nested
+ * loops join. It is pipelined: each call returns the next matching pair,
+ * so the first rows come back at once and nothing is kept but the current
+ * outer tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
     
-    private JoinPredicate p;
-    private OpIterator child1;
-    private OpIterator child2;
-    private List<Tuple> joinedTup;
-    private Iterator<Tuple> ite;
+    protected JoinPredicate p;
+    protected OpIterator child1;
+    protected OpIterator child2;
+    protected TupleDesc comboTD;
+    // the outer tuple being joined, or null before the next one
+    private Tuple t1;
  
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -71,38 +75,9 @@ public class Join extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
+        comboTD = getTupleDesc();
+        t1 = null;
         super.open();
-        buildTuples();
-    }
-    
-    private void buildTuples() throws DbException, NoSuchElementException,
-    TransactionAbortedException {
-    	joinedTup = new ArrayList<>();
-    	while (child1.hasNext()) {
-    		Tuple t1 = child1.next();
-    		child2.rewind();
-    		while (child2.hasNext()) {
-    			Tuple t2 = child2.next();
-    			if (p.filter(t1, t2)) {
-    				Tuple t = new Tuple(TupleDesc.merge(t1.getTupleDesc(), t2.getTupleDesc()));
-    				int i = 0;
-    				Iterator<Field> ite = t1.fields();
-    				while (ite.hasNext()) {
-    					Field f = ite.next();
-    					t.setField(i, f);
-    					i++;
-    				}
-    				ite = t2.fields();
-    				while (ite.hasNext()) {
-    					Field f = ite.next();
-    					t.setField(i, f);
-    					i++;
-    				}
-    				joinedTup.add(t);
-    			}
-    		}
-    	}
-    	ite = joinedTup.iterator();
     }
 
     public void close() {
@@ -110,14 +85,14 @@ public class Join extends Operator {
     	child1.close();
     	child2.close();
     	super.close();
-    	joinedTup = null;
+    	t1 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
     	child1.rewind();
     	child2.rewind();
-    	ite = joinedTup.iterator();
+    	t1 = null;
     }
 
     /**
@@ -139,9 +114,34 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-    	if (ite.hasNext())
-    		return ite.next();
-        return null;
+    	// the join is pipelined: it stops where the matching pair was found,
+    	// and goes on from there on the next call
+    	while (true) {
+    		if (t1 == null) {
+    			if (!child1.hasNext())
+    				return null;
+    			t1 = child1.next();
+    		}
+    		while (child2.hasNext()) {
+    			Tuple t2 = child2.next();
+    			if (p.filter(t1, t2))
+    				return merge(t1, t2);
+    		}
+    		// child2 is done: advance child1
+    		child2.rewind();
+    		t1 = null;
+    	}
+    }
+
+    /** @return the concatenation of t1 and t2 */
+    protected Tuple merge(Tuple t1, Tuple t2) {
+    	Tuple t = new Tuple(comboTD);
+    	int n1 = t1.getTupleDesc().numFields();
+    	for (int i = 0; i < n1; i++)
+    		t.setField(i, t1.getField(i));
+    	for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+    		t.setField(n1 + i, t2.getField(i));
+    	return t;
     }
 
     @Override
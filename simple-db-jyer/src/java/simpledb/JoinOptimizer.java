@@ -14,6 +14,22 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /** System property that, when "false", plans no hash joins. */
+    public static final String HASH_JOIN_PROPERTY = "simpledb.hashJoin";
+
+    // the cost of hashing a tuple into the table of a hash join, relative
+    // to a predicate application or a probe
+    static final double HASH_BUILD_COST = 2.0;
+
+    private static volatile boolean hashJoin = Boolean.parseBoolean(
+            System.getProperty(HASH_JOIN_PROPERTY, "true"));
+
+    /** System property that, when "false", plans no sort-merge joins. */
+    public static final String MERGE_JOIN_PROPERTY = "simpledb.mergeJoin";
+
+    private static volatile boolean mergeJoin = Boolean.parseBoolean(
+            System.getProperty(MERGE_JOIN_PROPERTY, "true"));
+
     /**
      * Constructor
      * 
@@ -27,6 +43,52 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /** @return true if equality joins are planned as hash joins */
+    public static boolean isHashJoinEnabled() {
+        return hashJoin;
+    }
+
+    /**
+     * Choose whether equality joins are planned as hash joins, rather than
+     * as nested loops. The default comes from the system property
+     * {@value #HASH_JOIN_PROPERTY}.
+     */
+    public static void setHashJoinEnabled(boolean enabled) {
+        hashJoin = enabled;
+    }
+
+    /** @return true if range joins are planned as sort-merge joins */
+    public static boolean isMergeJoinEnabled() {
+        return mergeJoin;
+    }
+
+    /**
+     * Choose whether range joins (on &lt;, &lt;=, &gt; or &gt;=) are planned
+     * as sort-merge joins, rather than as nested loops; equality joins too
+     * when hash joins are disabled, or when both inputs are sorted already.
+     * The default
+     * comes from the system property {@value #MERGE_JOIN_PROPERTY}.
+     */
+    public static void setMergeJoinEnabled(boolean enabled) {
+        mergeJoin = enabled;
+    }
+
+    /** @return true if lj is planned as a hash join */
+    private static boolean hashes(LogicalJoinNode lj) {
+        return hashJoin && lj.p == Predicate.Op.EQUALS;
+    }
+
+    /**
+     * @return true if lj, with the given inputs sorted on their join fields
+     *         or not, is planned as a sort-merge join. An equality join is
+     *         hashed rather than sorted, unless there is nothing to sort.
+     */
+    private static boolean merges(LogicalJoinNode lj, boolean sorted1, boolean sorted2) {
+        if (!mergeJoin || !SortMergeJoin.isMergeable(lj.p))
+            return false;
+        return !hashes(lj) || (sorted1 && sorted2);
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,7 +130,17 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // a range join is merged, sorting the inputs that are not sorted
+        // on their join fields yet; an equality join builds its hash table
+        // on plan1, which the optimizer makes the smaller input (see
+        // estimateJoinCost)
+        if (merges(lj, SortMergeJoin.isSortedOn(plan1, t1id),
+                SortMergeJoin.isSortedOn(plan2, t2id)))
+            j = new SortMergeJoin(p,plan1,plan2);
+        else if (hashes(lj))
+            j = new HashEquiJoin(p,plan1,plan2);
+        else
+            j = new BlockNestedLoopJoin(p,plan1,plan2);
 
         return j;
 
@@ -102,19 +174,100 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, false, false);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)} does, of inputs that may come sorted on
+     * their join fields already.
+     *
+     * @param sorted1
+     *            Whether the left-hand side comes sorted on its join field
+     * @param sorted2
+     *            Whether the right-hand side comes sorted on its join field
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (merges(j, sorted1, sorted2)) {
+            // a sort-merge join: each input not sorted yet is sorted, and
+            // then both are merged in one pass. The merge only visits
+            // matching pairs, about half of all of them for a range. An
+            // input that does not fit in the memory budget is written out
+            // and read back once more: in sorted runs, and the inner one
+            // again to be merged.
+            int memory1 = tuplesIn(j.t1Alias, SortMergeJoin.getDefaultMemoryPages());
+            int memory2 = tuplesIn(j.t2Alias, SortMergeJoin.getDefaultMemoryPages());
+            double pairs = j.p == Predicate.Op.EQUALS ? 0 : 0.5 * card1 * card2;
+            double spilled = (!sorted1 && card1 > memory1 ? 2 * cost1 : 0)
+                    + (!sorted2 && card2 > memory2 ? 2 * cost2 : 0)
+                    + (card2 > memory2 ? 2 * cost2 : 0);
+            return cost1 + cost2 + (sorted1 ? 0 : sortCost(card1))
+                    + (sorted2 ? 0 : sortCost(card2)) + card1 + card2 + pairs + spilled;
+        } else if (hashes(j)) {
+            // a hybrid hash join: the left-hand side is loaded into a hash
+            // table and the right-hand side probes it in one scan. What
+            // does not fit in the table's memory is partitioned, and that
+            // share of both inputs is written out and read back once more.
+            // Building costs more than probing, so the smaller side is built.
+            double spilled = card1 <= 0 ? 0 : Math.max(0, 1 - hashTuples(j) / (double) card1);
+            return cost1 + cost2 + HASH_BUILD_COST * card1 + card2
+                    + 2 * spilled * (cost1 + cost2);
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
+            // a block nested loops join: one scan of the inner input per
+            // block of outer tuples, and one predicate per pair
+            double blocks = Math.max(1, Math.ceil(card1 / (double) blockTuples(j)));
+            return cost1 + blocks * cost2 + (double) card1 * card2;
         }
     }
 
+    /** @return the number of comparisons to sort card tuples */
+    private static double sortCost(int card) {
+        return card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * @return the number of outer tuples of j in a block of a
+     *         {@link BlockNestedLoopJoin}, taking them to be as wide as the
+     *         tuples of j's first table
+     */
+    private int blockTuples(LogicalJoinNode j) {
+        Integer tableId = p.getTableId(j.t1Alias);
+        if (tableId == null)
+            return 1;
+        return tuplesIn(tableId, BlockNestedLoopJoin.getDefaultBlockPages());
+    }
+
+    /**
+     * @return the number of build tuples of j that the hash table of a
+     *         {@link HashEquiJoin} holds in memory, taking them to be as wide
+     *         as the tuples of j's first table; all of them if that is unknown
+     */
+    private int hashTuples(LogicalJoinNode j) {
+        return tuplesIn(j.t1Alias, HashEquiJoin.getDefaultMemoryPages());
+    }
+
+    /**
+     * @return the number of tuples of the table of alias that fit in pages
+     *         pages; all of them if that table is unknown
+     */
+    private int tuplesIn(String alias, int pages) {
+        Integer tableId = p.getTableId(alias);
+        if (tableId == null)
+            return Integer.MAX_VALUE;
+        return tuplesIn(tableId, pages);
+    }
+
+    /** @return the number of tuples of table tableId that fit in pages pages */
+    private static int tuplesIn(int tableId, int pages) {
+        return BlockNestedLoopJoin.tuplesPerBlock(Database.getCatalog().getTupleDesc(tableId),
+                pages);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -295,6 +448,8 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
+    	if (joins.isEmpty())
+    		return joins; // a single-table query
     	PlanCache pCache = new PlanCache();
     	for (int i = 1; i <= joins.size(); i++) {
     		Iterator<Set<LogicalJoinNode>> ite = subsetsIterator(joins, i);
@@ -389,6 +544,7 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean leftSorted = false, rightSorted = false;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -424,6 +580,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                leftSorted = sortedOn(prevBest, j.f1QuantifiedName);
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -440,6 +597,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                rightSorted = sortedOn(prevBest, j.f2QuantifiedName);
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -453,10 +611,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                leftSorted, rightSorted);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                rightSorted, leftSorted);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -478,6 +638,22 @@ public class JoinOptimizer {
         return cc;
     }
 
+    /**
+     * @return true if the output of the left-deep plan comes sorted on field:
+     *         its last join is a merge join, whose output follows its outer
+     *         join field, and for an equality its inner one as well
+     */
+    private static boolean sortedOn(Vector<LogicalJoinNode> plan, String field) {
+        if (plan.isEmpty())
+            return false;
+        LogicalJoinNode last = plan.lastElement();
+        // the other input of the last join is a table, which is not sorted
+        if (!merges(last, false, false))
+            return false;
+        return field.equals(last.f1QuantifiedName)
+                || (last.p == Predicate.Op.EQUALS && field.equals(last.f2QuantifiedName));
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRUKPolicy implements LRU-K (O'Neil et al.). The victim is the page whose
+ * K-th most recent reference lies furthest in the past; pages referenced
+ * fewer than K times count as infinitely old and are evicted first, oldest
+ * last reference first. A page touched once by a sequential scan therefore
+ * never pushes out a page that is requested repeatedly.
+ * <p>
+ * The reference history of evicted pages is retained for up to numPages
+ * pages, so a page that is re-read soon after eviction keeps its history.
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final int retainedLimit;
+    private long clock = 0;
+
+    /** Reference history of one page, most recent reference last. */
+    private static class History {
+        final PageId pid;
+        final long[] refs;
+        int count;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.refs = new long[k];
+        }
+
+        void reference(long time) {
+            if (count < refs.length) {
+                refs[count++] = time;
+            } else {
+                System.arraycopy(refs, 1, refs, 0, refs.length - 1);
+                refs[refs.length - 1] = time;
+            }
+        }
+
+        /** @return the time of the K-th most recent reference, or
+            Long.MIN_VALUE if there were fewer than K references */
+        long kthReference() {
+            return count < refs.length ? Long.MIN_VALUE : refs[0];
+        }
+
+        long lastReference() {
+            return refs[count - 1];
+        }
+    }
+
+    private static final Comparator<History> EVICTION_ORDER = new Comparator<History>() {
+        public int compare(History a, History b) {
+            int c = Long.compare(a.kthReference(), b.kthReference());
+            if (c != 0)
+                return c;
+            // last references are unique clock values, so this never ties
+            return Long.compare(a.lastReference(), b.lastReference());
+        }
+    };
+
+    private final Map<PageId, History> resident = new HashMap<PageId, History>();
+    private final TreeSet<History> order = new TreeSet<History>(EVICTION_ORDER);
+    private final LinkedHashMap<PageId, History> retained = new LinkedHashMap<PageId, History>();
+
+    /**
+     * @param k the number of references to remember per page
+     * @param numPages capacity of the buffer pool; also bounds the number of
+     *        evicted pages whose history is retained
+     */
+    public LRUKPolicy(int k, int numPages) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+        this.retainedLimit = numPages;
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null)
+            return;
+        order.remove(h);
+        h.reference(++clock);
+        order.add(h);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (resident.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        History h = retained.remove(pid);
+        if (h == null)
+            h = new History(pid, k);
+        h.reference(++clock);
+        resident.put(pid, h);
+        order.add(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = resident.remove(pid);
+        if (h == null)
+            return;
+        order.remove(h);
+        retained.put(pid, h);
+        if (retained.size() > retainedLimit) {
+            Iterator<PageId> it = retained.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized PageId victim(java.util.function.Predicate<PageId> evictable) {
+        for (History h : order) {
+            if (evictable.test(h.pid))
+                return h.pid;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,34 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRUPolicy evicts the page that has gone the longest without being
+ * requested.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+
+    // iteration order runs from least to most recently used
+    private final LinkedHashMap<PageId, Boolean> order =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    public synchronized void pageAccessed(PageId pid) {
+        order.get(pid);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        order.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        order.remove(pid);
+    }
+
+    public synchronized PageId victim(java.util.function.Predicate<PageId> evictable) {
+        for (PageId pid : order.keySet()) {
+            if (evictable.test(pid))
+                return pid;
+        }
+        return null;
+    }
+}
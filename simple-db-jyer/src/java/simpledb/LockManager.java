@@ -0,0 +1,978 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager grants the locks that BufferPool hands out. Locks are taken
+ * on pages and, with record-level locking, also on tables and records, in
+ * one of the {@link LockMode}s. Each locked item has a FIFO queue of
+ * waiting requests; a transaction whose request cannot be granted parks on
+ * its own condition until a release lets it through, instead of spinning.
+ * <p>
+ * The rules are those of strict two-phase locking:
+ * <ul>
+ * <li>transactions may hold locks on the same item at once only in
+ * compatible modes; READ_ONLY page requests take S and READ_WRITE ones X,
+ * so any number of transactions may read a page but a writer is alone;</li>
+ * <li>a transaction may request an item it already holds; it is then
+ * converted to the weakest mode covering both requests, e.g. S to X (an
+ * upgrade) or S to SIX. Conversions wait ahead of every other queued
+ * request.</li>
+ * </ul>
+ * Waiting requests are granted strictly in queue order, so a stream of
+ * readers cannot starve a writer.
+ * <p>
+ * How deadlocks are dealt with depends on the {@link DeadlockMode}, chosen
+ * with {@link #setDeadlockMode} or the system property
+ * {@value #DEADLOCK_MODE_PROPERTY}. In the default mode, DETECT, they are
+ * broken by a background detector rather than on the acquire path. While
+ * any request is waiting, a daemon thread wakes every
+ * {@link #getDetectionInterval() interval} milliseconds, takes a snapshot
+ * of the waits-for graph, and aborts one waiting transaction per cycle,
+ * chosen by the {@link VictimPolicy}. The victim's acquire throws
+ * TransactionAbortedException. Both settings can be changed at run time or
+ * through the system properties {@value #DETECTION_INTERVAL_PROPERTY} and
+ * {@value #VICTIM_POLICY_PROPERTY}. The other modes keep no waits-for graph
+ * and run no detector.
+ * <p>
+ * To keep the lock table small for large scans, a transaction that holds
+ * more than {@link #getEscalationThreshold() threshold} page locks on one
+ * table is escalated to a single lock on the table: S if it only read the
+ * table, X if it wrote it. Its page locks on the table are then dropped.
+ * Escalation never waits: if another transaction holds an incompatible
+ * intention lock on the table, the page locks are kept and escalation is
+ * tried again after another threshold of pages. So that table locks
+ * conflict with page locks, every page lock is taken under an intention
+ * lock (IS or IX) on its table while escalation is enabled. The threshold
+ * is read from the system property {@value #ESCALATION_THRESHOLD_PROPERTY};
+ * 0 disables escalation.
+ * <p>
+ * The lock table is split by item hash into stripes, each guarded by its
+ * own latch, so requests for unrelated items do not contend. The sets of
+ * items each transaction holds and the waits-for graph live outside the
+ * stripes in concurrent maps.
+ */
+class LockManager {
+
+    /** Default number of lock table stripes. */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /** System property with the deadlock detection interval, in milliseconds. */
+    public static final String DETECTION_INTERVAL_PROPERTY = "simpledb.deadlockInterval";
+    /** System property with the name of the victim policy, e.g. "youngest". */
+    public static final String VICTIM_POLICY_PROPERTY = "simpledb.deadlockVictim";
+    /** Default deadlock detection interval, in milliseconds. */
+    public static final long DEFAULT_DETECTION_INTERVAL = 50;
+
+    /** System property with the name of the deadlock mode, e.g. "wound-wait". */
+    public static final String DEADLOCK_MODE_PROPERTY = "simpledb.deadlockMode";
+    /** System property with the lock wait timeout, in milliseconds. */
+    public static final String LOCK_TIMEOUT_PROPERTY = "simpledb.lockTimeout";
+    /** Default lock wait timeout of the TIMEOUT mode, in milliseconds. */
+    public static final long DEFAULT_LOCK_TIMEOUT = 1000;
+
+    /** System property with the lock escalation threshold, in page locks per table. */
+    public static final String ESCALATION_THRESHOLD_PROPERTY = "simpledb.lockEscalationThreshold";
+    /** Default number of page locks on one table above which a transaction is escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /**
+     * How deadlocks are handled. WAIT_DIE and WOUND_WAIT use
+     * {@link TransactionId#getId()} as the transaction's timestamp: a
+     * smaller id is an older transaction.
+     */
+    public enum DeadlockMode {
+        /** Wait; the background detector aborts a victim per cycle. */
+        DETECT,
+        /** Wait about the lock timeout, then abort. */
+        TIMEOUT,
+        /** An older requester waits for younger ones; a younger requester aborts. */
+        WAIT_DIE,
+        /**
+         * An older requester aborts ("wounds") the younger transactions in its
+         * way and then waits; a younger requester waits.
+         */
+        WOUND_WAIT
+    }
+
+    /** Which transaction of a waits-for cycle the detector aborts. */
+    public enum VictimPolicy {
+        /** The transaction that started last; it has probably done least. */
+        YOUNGEST,
+        /** The transaction that started first. */
+        OLDEST,
+        /** The transaction holding the fewest locks; ties go to the youngest. */
+        FEWEST_LOCKS
+    }
+
+    /** A queued request for a lock on one item. */
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+        final boolean upgrade;
+        final Stripe stripe;
+        final Object item;
+        final ItemLock lock;
+        final Condition ready;
+        // guarded by the stripe latch
+        boolean granted;
+        boolean aborted;
+
+        Request(TransactionId tid, LockMode mode, boolean upgrade,
+                Stripe stripe, Object item, ItemLock lock) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.stripe = stripe;
+            this.item = item;
+            this.lock = lock;
+            this.ready = stripe.latch.newCondition();
+        }
+    }
+
+    /**
+     * The edges of the waits-for graph out of one waiting transaction: the
+     * transactions its request waits for, and the request itself.
+     */
+    static class Waits {
+        final Request request;
+        final Set<TransactionId> blockers;
+
+        Waits(Request request, Set<TransactionId> blockers) {
+            this.request = request;
+            this.blockers = blockers;
+        }
+    }
+
+    /** The lock on one item: its holders with their modes, and the wait queue. */
+    private static class ItemLock {
+        final Map<TransactionId, LockMode> holders = new HashMap<>();
+        final LinkedList<Request> waiters = new LinkedList<>();
+    }
+
+    /** One partition of the lock table. */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<Object, ItemLock> locks = new HashMap<>();
+    }
+
+    /** The lockable item standing for a whole table. */
+    private static final class TableItem {
+        final int tableId;
+
+        TableItem(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableItem && ((TableItem) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    private final Stripe[] stripes;
+    // items (tables, pages and records) each transaction holds locks on
+    private final ConcurrentHashMap<TransactionId, Set<Object>> tidToItems =
+            new ConcurrentHashMap<>();
+    // edges of the waits-for graph, one entry per waiting transaction; the
+    // entries are never modified once published
+    private final ConcurrentHashMap<TransactionId, Waits> waitsFor =
+            new ConcurrentHashMap<>();
+    // the request each blocked transaction is waiting on
+    private final ConcurrentHashMap<TransactionId, Request> waiting =
+            new ConcurrentHashMap<>();
+
+    // the mode each transaction holds each of its tables in, by table id;
+    // written under the table's stripe latch and read without it
+    private final ConcurrentHashMap<TransactionId, Map<Integer, LockMode>> tableModes =
+            new ConcurrentHashMap<>();
+
+    // number of page locks each transaction holds, per table id
+    private final ConcurrentHashMap<TransactionId, Map<Integer, Integer>> pageCounts =
+            new ConcurrentHashMap<>();
+
+    // WOUND_WAIT transactions that must abort at their next lock request
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+
+    private volatile DeadlockMode mode;
+    private volatile long lockTimeout;
+    private volatile long detectionInterval;
+    private volatile VictimPolicy victimPolicy;
+    private volatile int escalationThreshold;
+    // running detector thread, or null; guarded by this
+    private Thread detector;
+
+    public LockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param numStripes number of partitions of the lock table; rounded up
+     *        to a power of two
+     */
+    public LockManager(int numStripes) {
+        int n = 1;
+        while (n < numStripes)
+            n <<= 1;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new Stripe();
+        setDeadlockMode(DeadlockMode.valueOf(System.getProperty(DEADLOCK_MODE_PROPERTY,
+                DeadlockMode.DETECT.name()).trim().toUpperCase().replace('-', '_')));
+        setLockTimeout(Long.getLong(LOCK_TIMEOUT_PROPERTY, DEFAULT_LOCK_TIMEOUT));
+        setDetectionInterval(Long.getLong(DETECTION_INTERVAL_PROPERTY,
+                DEFAULT_DETECTION_INTERVAL));
+        setVictimPolicy(VictimPolicy.valueOf(System.getProperty(VICTIM_POLICY_PROPERTY,
+                VictimPolicy.YOUNGEST.name()).trim().toUpperCase()));
+        setEscalationThreshold(Integer.getInteger(ESCALATION_THRESHOLD_PROPERTY,
+                DEFAULT_ESCALATION_THRESHOLD));
+    }
+
+    /** @return how this lock manager handles deadlocks */
+    public DeadlockMode getDeadlockMode() {
+        return mode;
+    }
+
+    /**
+     * Set how deadlocks are handled. Should be called while no transaction
+     * is waiting for a lock.
+     */
+    public void setDeadlockMode(DeadlockMode mode) {
+        if (mode == null)
+            throw new IllegalArgumentException("deadlock mode must not be null");
+        this.mode = mode;
+    }
+
+    /** @return milliseconds a request waits in TIMEOUT mode before aborting */
+    public long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    /**
+     * Set the number of milliseconds a request waits in TIMEOUT mode. Each
+     * wait lasts between millis and twice millis, at random, so that
+     * transactions deadlocked on the same page do not all give up at once.
+     */
+    public void setLockTimeout(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("lock timeout must be positive");
+        lockTimeout = millis;
+    }
+
+    /** @return milliseconds between two runs of the deadlock detector */
+    public long getDetectionInterval() {
+        return detectionInterval;
+    }
+
+    /** Set the number of milliseconds between two runs of the deadlock detector. */
+    public void setDetectionInterval(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("detection interval must be positive");
+        detectionInterval = millis;
+    }
+
+    /** @return the policy that picks the transaction to abort in a deadlock */
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    /** Set the policy that picks the transaction to abort in a deadlock. */
+    public void setVictimPolicy(VictimPolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("victim policy must not be null");
+        victimPolicy = policy;
+    }
+
+    /** @return page locks per table above which a transaction is escalated, or 0 */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table before
+     * it is escalated to a table lock; 0 disables escalation. Should be
+     * called while no transaction holds locks.
+     */
+    public void setEscalationThreshold(int threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("escalation threshold must not be negative");
+        escalationThreshold = threshold;
+    }
+
+    /** @return the number of partitions of the lock table */
+    public int getNumStripes() {
+        return stripes.length;
+    }
+
+    private Stripe stripeFor(Object item) {
+        int h = item.hashCode();
+        h ^= (h >>> 16);
+        h ^= (h >>> 7);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    /**
+     * Acquire a lock on pid for tid, blocking until it is granted: S for
+     * READ_ONLY and X for READ_WRITE.
+     *
+     * @throws TransactionAbortedException if the deadlock mode decides tid
+     *         must abort, or if the thread is interrupted while it waits
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        acquire(tid, pid, LockMode.forPermissions(perm));
+    }
+
+    /**
+     * Acquire a lock on pid in the specified mode, blocking until it is
+     * granted. Returns at once if tid holds a table lock that covers it.
+     */
+    public void acquire(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
+        int threshold = escalationThreshold;
+        if (threshold == 0) {
+            lock(tid, pid, mode);
+            return;
+        }
+        TableItem table = new TableItem(pid.getTableId());
+        LockMode held = tableMode(tid, table.tableId);
+        if (held != null && held.coversChildren(mode))
+            return;
+        // the table's stripe is only latched to take or upgrade its lock
+        if (held == null || !held.covers(mode.intention()))
+            lock(tid, table, mode.intention());
+        if (lock(tid, pid, mode))
+            counted(tid, table, threshold);
+    }
+
+    /**
+     * Acquire a lock on pid in the specified mode, and the table's intention
+     * lock, only if that is possible without waiting.
+     *
+     * @return true if tid now holds the lock
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, LockMode mode) {
+        int threshold = escalationThreshold;
+        if (threshold == 0)
+            return tryLock(tid, pid, mode);
+        TableItem table = new TableItem(pid.getTableId());
+        LockMode held = tableMode(tid, table.tableId);
+        if (held != null && held.coversChildren(mode))
+            return true;
+        if ((held == null || !held.covers(mode.intention()))
+                && !tryLock(tid, table, mode.intention()))
+            return false;
+        boolean had = heldMode(tid, pid) != null;
+        if (!tryLock(tid, pid, mode))
+            return false;
+        if (!had)
+            counted(tid, table, threshold);
+        return true;
+    }
+
+    /** Count a page lock tid newly holds on table; escalate every threshold. */
+    private void counted(TransactionId tid, TableItem table, int threshold) {
+        Map<Integer, Integer> counts = pageCounts.computeIfAbsent(tid,
+                k -> new ConcurrentHashMap<>());
+        int n = counts.merge(table.tableId, 1, Integer::sum);
+        if (n % threshold == 0)
+            escalate(tid, table);
+    }
+
+    /**
+     * Try to replace tid's page locks on the table by one table lock: X if
+     * tid intends to write the table and S otherwise. Gives up rather than
+     * wait for the table lock.
+     */
+    private void escalate(TransactionId tid, TableItem table) {
+        LockMode intent = tableMode(tid, table.tableId);
+        LockMode mode = intent == LockMode.IS ? LockMode.S : LockMode.X;
+        if (!tryLock(tid, table, mode))
+            return;
+        Set<Object> held = tidToItems.get(tid);
+        for (Object item : held.toArray()) {
+            PageId pid = item instanceof RecordId ? ((RecordId) item).getPageId()
+                    : item instanceof PageId ? (PageId) item : null;
+            if (pid != null && pid.getTableId() == table.tableId)
+                unlock(tid, item);
+        }
+        pageCounts.get(tid).remove(table.tableId);
+    }
+
+    /** Acquire a lock on the table, blocking until it is granted. */
+    public void acquireTable(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        lock(tid, new TableItem(tableId), mode);
+    }
+
+    /** Acquire a lock on the table only if that is possible without waiting. */
+    public boolean tryAcquireTable(TransactionId tid, int tableId, LockMode mode) {
+        return tryLock(tid, new TableItem(tableId), mode);
+    }
+
+    /**
+     * Acquire a lock on the record, blocking until it is granted. Returns at
+     * once if tid holds a table lock that covers it.
+     */
+    public void acquireRecord(TransactionId tid, RecordId rid, LockMode mode)
+            throws TransactionAbortedException {
+        if (!coveredByTable(tid, rid.getPageId(), mode))
+            lock(tid, rid, mode);
+    }
+
+    /**
+     * Lock the record only if that is possible without waiting.
+     *
+     * @return true if tid now holds rid in mode
+     */
+    public boolean tryAcquireRecord(TransactionId tid, RecordId rid, LockMode mode) {
+        return coveredByTable(tid, rid.getPageId(), mode) || tryLock(tid, rid, mode);
+    }
+
+    private boolean coveredByTable(TransactionId tid, PageId pid, LockMode mode) {
+        if (escalationThreshold == 0)
+            return false;
+        LockMode held = tableMode(tid, pid.getTableId());
+        return held != null && held.coversChildren(mode);
+    }
+
+    /** Lock the item only if that is possible without waiting. */
+    private boolean tryLock(TransactionId tid, Object item, LockMode mode) {
+        if (wounded.contains(tid))
+            return false;
+        Stripe st = stripeFor(item);
+        st.latch.lock();
+        try {
+            ItemLock l = st.locks.get(item);
+            if (l == null) {
+                l = new ItemLock();
+                st.locks.put(item, l);
+            }
+            if (covers(l, tid, mode))
+                return true;
+            if ((l.holders.containsKey(tid) || l.waiters.isEmpty()) && compatible(l, tid, mode)) {
+                grant(item, l, tid, mode);
+                return true;
+            }
+            if (l.holders.isEmpty() && l.waiters.isEmpty())
+                st.locks.remove(item);
+            return false;
+        } finally {
+            st.latch.unlock();
+        }
+    }
+
+    /** @return true if tid held no lock on the item before */
+    private boolean lock(TransactionId tid, Object item, LockMode mode)
+            throws TransactionAbortedException {
+        if (wounded.contains(tid))
+            throw new TransactionAbortedException();
+        Stripe st = stripeFor(item);
+        st.latch.lock();
+        try {
+            ItemLock l = st.locks.get(item);
+            if (l == null) {
+                l = new ItemLock();
+                st.locks.put(item, l);
+            }
+            if (covers(l, tid, mode))
+                return false;
+            boolean upgrade = l.holders.containsKey(tid);
+            if ((upgrade || l.waiters.isEmpty()) && compatible(l, tid, mode)) {
+                grant(item, l, tid, mode);
+                return !upgrade;
+            }
+
+            Request r = new Request(tid, mode, upgrade, st, item, l);
+            enqueue(l, r);
+            DeadlockMode deadlockMode = this.mode;
+            List<TransactionId> victims = Collections.emptyList();
+            switch (deadlockMode) {
+            case DETECT:
+                refreshEdges(l);
+                break;
+            case WAIT_DIE:
+                for (TransactionId b : blockersOf(l, r)) {
+                    if (b.getId() < tid.getId()) {
+                        cancel(st, item, l, r);
+                        throw new TransactionAbortedException();
+                    }
+                }
+                break;
+            case WOUND_WAIT:
+                victims = new ArrayList<>();
+                for (TransactionId b : blockersOf(l, r)) {
+                    if (b.getId() > tid.getId() && wounded.add(b))
+                        victims.add(b);
+                }
+                break;
+            default:
+                break;
+            }
+            waiting.put(tid, r);
+            if (deadlockMode == DeadlockMode.DETECT)
+                startDetector();
+            try {
+                // a transaction wounded just before it registered above
+                // is not seen by its wounder, so it must check for itself
+                if (wounded.contains(tid))
+                    throw new TransactionAbortedException();
+                if (!victims.isEmpty()) {
+                    // never hold two stripe latches at once
+                    st.latch.unlock();
+                    try {
+                        for (TransactionId v : victims)
+                            abortWaiter(v);
+                    } finally {
+                        st.latch.lock();
+                    }
+                }
+                long timeout = lockTimeout;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                        timeout + ThreadLocalRandom.current().nextLong(timeout + 1));
+                while (!r.granted && !r.aborted) {
+                    if (deadlockMode != DeadlockMode.TIMEOUT) {
+                        r.ready.await();
+                        continue;
+                    }
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        break;
+                    r.ready.awaitNanos(left);
+                }
+                if (!r.granted)
+                    throw new TransactionAbortedException();
+                return !upgrade;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            } finally {
+                waiting.remove(tid);
+                if (!r.granted && !r.aborted)
+                    cancel(st, item, l, r);
+            }
+        } finally {
+            // a thread stopped inside await() no longer holds the latch
+            if (st.latch.isHeldByCurrentThread())
+                st.latch.unlock();
+        }
+    }
+
+    /**
+     * Release tid's lock on pid and wake the requests it was blocking.
+     *
+     * @return false if tid did not hold a lock on pid
+     */
+    public boolean release(TransactionId tid, PageId pid) {
+        if (!unlock(tid, pid))
+            return false;
+        Map<Integer, Integer> counts = pageCounts.get(tid);
+        if (counts != null)
+            counts.computeIfPresent(pid.getTableId(), (k, n) -> n > 1 ? n - 1 : null);
+        return true;
+    }
+
+    private boolean unlock(TransactionId tid, Object item) {
+        Stripe st = stripeFor(item);
+        st.latch.lock();
+        try {
+            ItemLock l = st.locks.get(item);
+            if (l == null || l.holders.remove(tid) == null)
+                return false;
+            // the set itself is dropped by releaseAll, when tid completes
+            tidToItems.get(tid).remove(item);
+            if (item instanceof TableItem)
+                tableModes.get(tid).remove(((TableItem) item).tableId);
+            grantWaiters(st, item, l);
+            return true;
+        } finally {
+            st.latch.unlock();
+        }
+    }
+
+    /** Release every lock tid holds and forget about tid. */
+    public void releaseAll(TransactionId tid) {
+        Set<Object> held = tidToItems.get(tid);
+        if (held != null) {
+            for (Object item : held)
+                unlock(tid, item);
+        }
+        tidToItems.remove(tid);
+        tableModes.remove(tid);
+        pageCounts.remove(tid);
+        waitsFor.remove(tid);
+        wounded.remove(tid);
+    }
+
+    /** @return true if tid holds any lock */
+    public boolean holdsLocks(TransactionId tid) {
+        return tidToItems.containsKey(tid);
+    }
+
+    /** @return true if tid holds a lock on pid, in any mode, or a table lock covering it */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<Object> held = tidToItems.get(tid);
+        return held != null && (held.contains(pid) || coveredByTable(tid, pid, LockMode.S));
+    }
+
+    /** @return a copy of the set of pages tid holds locks on */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> pages = new HashSet<>();
+        Set<Object> held = tidToItems.get(tid);
+        if (held != null) {
+            for (Object item : held) {
+                if (item instanceof PageId)
+                    pages.add((PageId) item);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * @return the ids of the tables tid holds in S, SIX or X mode, whose
+     *         pages it may read without page locks
+     */
+    public Set<Integer> getCoveredTables(TransactionId tid) {
+        Set<Integer> tables = new HashSet<>();
+        Set<Object> held = tidToItems.get(tid);
+        if (held != null) {
+            for (Object item : held) {
+                if (!(item instanceof TableItem))
+                    continue;
+                LockMode mode = tableMode(tid, ((TableItem) item).tableId);
+                if (mode != null && mode.coversChildren(LockMode.S))
+                    tables.add(((TableItem) item).tableId);
+            }
+        }
+        return tables;
+    }
+
+    /** @return the mode tid holds pid in, or null */
+    public LockMode getLockMode(TransactionId tid, PageId pid) {
+        return heldMode(tid, pid);
+    }
+
+    /** @return the mode tid holds rid in, or null */
+    public LockMode getLockMode(TransactionId tid, RecordId rid) {
+        return heldMode(tid, rid);
+    }
+
+    /** @return the mode tid holds the table in, or null */
+    public LockMode getTableLockMode(TransactionId tid, int tableId) {
+        return tableMode(tid, tableId);
+    }
+
+    /** @return the mode tid holds the table in, or null; takes no latch */
+    private LockMode tableMode(TransactionId tid, int tableId) {
+        Map<Integer, LockMode> modes = tableModes.get(tid);
+        return modes == null ? null : modes.get(tableId);
+    }
+
+    private LockMode heldMode(TransactionId tid, Object item) {
+        Stripe st = stripeFor(item);
+        st.latch.lock();
+        try {
+            ItemLock l = st.locks.get(item);
+            return l == null ? null : l.holders.get(tid);
+        } finally {
+            st.latch.unlock();
+        }
+    }
+
+    /** True if tid already holds the item in a mode that covers mode. */
+    private static boolean covers(ItemLock l, TransactionId tid, LockMode mode) {
+        LockMode held = l.holders.get(tid);
+        return held != null && held.covers(mode);
+    }
+
+    /**
+     * True if tid could hold the item in mode, converted with what it
+     * already holds, alongside every other holder. Ignores the queue.
+     */
+    private static boolean compatible(ItemLock l, TransactionId tid, LockMode mode) {
+        LockMode want = target(l, tid, mode);
+        for (Map.Entry<TransactionId, LockMode> h : l.holders.entrySet()) {
+            if (!h.getKey().equals(tid) && !want.isCompatibleWith(h.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the mode tid ends up holding if its request for mode is granted */
+    private static LockMode target(ItemLock l, TransactionId tid, LockMode mode) {
+        LockMode held = l.holders.get(tid);
+        return held == null ? mode : held.combine(mode);
+    }
+
+    private void grant(Object item, ItemLock l, TransactionId tid, LockMode mode) {
+        LockMode granted = target(l, tid, mode);
+        l.holders.put(tid, granted);
+        tidToItems.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(item);
+        if (item instanceof TableItem)
+            tableModes.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+                    .put(((TableItem) item).tableId, granted);
+    }
+
+    /** Upgrades go behind earlier upgrades but ahead of everything else. */
+    private static void enqueue(ItemLock l, Request r) {
+        if (!r.upgrade) {
+            l.waiters.addLast(r);
+            return;
+        }
+        ListIterator<Request> it = l.waiters.listIterator();
+        while (it.hasNext()) {
+            if (!it.next().upgrade) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(r);
+    }
+
+    /** Grant queued requests in order, stopping at the first that must wait. */
+    private void grantWaiters(Stripe st, Object item, ItemLock l) {
+        Iterator<Request> it = l.waiters.iterator();
+        while (it.hasNext()) {
+            Request r = it.next();
+            if (!compatible(l, r.tid, r.mode))
+                break;
+            it.remove();
+            grantTo(item, l, r);
+        }
+        if (mode == DeadlockMode.DETECT)
+            refreshEdges(l);
+        if (l.holders.isEmpty() && l.waiters.isEmpty())
+            st.locks.remove(item);
+    }
+
+    private void grantTo(Object item, ItemLock l, Request r) {
+        grant(item, l, r.tid, r.mode);
+        waitsFor.remove(r.tid);
+        r.granted = true;
+        r.ready.signal();
+    }
+
+    /** Withdraw a request that will not be granted and unblock those behind it. */
+    private void cancel(Stripe st, Object item, ItemLock l, Request r) {
+        l.waiters.remove(r);
+        waitsFor.remove(r.tid);
+        grantWaiters(st, item, l);
+    }
+
+    /**
+     * @return the transactions queued request r waits for: the other holders
+     *         and any conflicting request ahead of it
+     */
+    private static Set<TransactionId> blockersOf(ItemLock l, Request r) {
+        Set<TransactionId> blockers = new HashSet<>();
+        LockMode want = target(l, r.tid, r.mode);
+        for (Map.Entry<TransactionId, LockMode> h : l.holders.entrySet()) {
+            if (!want.isCompatibleWith(h.getValue()))
+                blockers.add(h.getKey());
+        }
+        for (Request a : l.waiters) {
+            if (a == r)
+                break;
+            if (!want.isCompatibleWith(target(l, a.tid, a.mode)))
+                blockers.add(a.tid);
+        }
+        blockers.remove(r.tid);
+        return blockers;
+    }
+
+    /** Recompute the waits-for edges of every request queued on l. */
+    private void refreshEdges(ItemLock l) {
+        for (Request r : l.waiters)
+            waitsFor.put(r.tid, new Waits(r, blockersOf(l, r)));
+    }
+
+    /** Start the detector thread unless it is already running. */
+    private synchronized void startDetector() {
+        if (detector != null)
+            return;
+        detector = new Thread("deadlock detector") {
+            public void run() {
+                runDetector();
+            }
+        };
+        detector.setDaemon(true);
+        detector.start();
+    }
+
+    /** Detector loop; the thread exits once nothing is waiting. */
+    private void runDetector() {
+        while (true) {
+            try {
+                Thread.sleep(detectionInterval);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    detector = null;
+                }
+                return;
+            }
+            synchronized (this) {
+                // a waiter registers before calling startDetector, so it
+                // either is seen here or starts a new thread
+                if (waiting.isEmpty()) {
+                    detector = null;
+                    return;
+                }
+            }
+            detectDeadlocks();
+        }
+    }
+
+    /**
+     * Look for cycles in a snapshot of the waits-for graph and abort one
+     * waiting transaction in each. Called periodically by the detector
+     * thread.
+     *
+     * @return the number of transactions aborted
+     */
+    public int detectDeadlocks() {
+        return abortCycles(waitsForSnapshot());
+    }
+
+    /** @return a copy of the waits-for graph */
+    Map<TransactionId, Waits> waitsForSnapshot() {
+        return new HashMap<>(waitsFor);
+    }
+
+    /**
+     * Abort one waiting transaction in each cycle of a snapshot of the
+     * waits-for graph. A victim is aborted only if the request its edges
+     * were built from is still pending: a transaction granted that lock
+     * since, and maybe waiting on another by now, is left alone.
+     *
+     * @return the number of transactions aborted
+     */
+    int abortCycles(Map<TransactionId, Waits> snapshot) {
+        Map<TransactionId, Set<TransactionId>> graph = new HashMap<>();
+        for (Map.Entry<TransactionId, Waits> e : snapshot.entrySet())
+            graph.put(e.getKey(), e.getValue().blockers);
+        int aborted = 0;
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            TransactionId victim = chooseVictim(cycle);
+            // without its outgoing edges the victim is on no other cycle
+            graph.remove(victim);
+            if (abortRequest(snapshot.get(victim).request))
+                aborted++;
+        }
+        return aborted;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        for (TransactionId t : cycle) {
+            if (victim == null || worseVictim(victim, t))
+                victim = t;
+        }
+        return victim;
+    }
+
+    /** True if t is a better choice of victim than current. */
+    private boolean worseVictim(TransactionId current, TransactionId t) {
+        switch (victimPolicy) {
+        case OLDEST:
+            return t.getId() < current.getId();
+        case FEWEST_LOCKS:
+            int n = numLocks(t), m = numLocks(current);
+            if (n != m)
+                return n < m;
+            return t.getId() > current.getId();
+        default:
+            return t.getId() > current.getId();
+        }
+    }
+
+    private int numLocks(TransactionId tid) {
+        Set<Object> held = tidToItems.get(tid);
+        return held == null ? 0 : held.size();
+    }
+
+    /**
+     * Abort tid's pending request, if it is still waiting. The caller must
+     * not hold a stripe latch.
+     *
+     * @return false if tid is not waiting
+     */
+    private boolean abortWaiter(TransactionId tid) {
+        Request r = waiting.get(tid);
+        return r != null && abortRequest(r);
+    }
+
+    /**
+     * Abort request r, if it is still pending. The caller must not hold a
+     * stripe latch.
+     *
+     * @return false if r has been granted or given up on
+     */
+    private boolean abortRequest(Request r) {
+        r.stripe.latch.lock();
+        try {
+            // a request withdrawn by its own thread is no longer queued
+            if (r.granted || r.aborted || !r.lock.waiters.contains(r))
+                return false;
+            r.aborted = true;
+            cancel(r.stripe, r.item, r.lock, r);
+            r.ready.signal();
+            return true;
+        } finally {
+            r.stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Find a cycle with an iterative depth-first search.
+     *
+     * @return the transactions on some cycle of graph, or null if it is acyclic
+     */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph) {
+        Set<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            if (done.contains(start))
+                continue;
+            // the current DFS path, each node's position on it, and the
+            // edges of each node on it that are still to be explored
+            List<TransactionId> path = new ArrayList<>();
+            Map<TransactionId, Integer> onPath = new HashMap<>();
+            Deque<Iterator<TransactionId>> edges = new ArrayDeque<>();
+            visit(graph, start, path, onPath, edges);
+            while (!edges.isEmpty()) {
+                Iterator<TransactionId> it = edges.peek();
+                if (!it.hasNext()) {
+                    edges.pop();
+                    TransactionId t = path.remove(path.size() - 1);
+                    onPath.remove(t);
+                    done.add(t);
+                    continue;
+                }
+                TransactionId next = it.next();
+                Integer i = onPath.get(next);
+                if (i != null)
+                    return new ArrayList<>(path.subList(i, path.size()));
+                if (!done.contains(next))
+                    visit(graph, next, path, onPath, edges);
+            }
+        }
+        return null;
+    }
+
+    private static void visit(Map<TransactionId, Set<TransactionId>> graph, TransactionId t,
+            List<TransactionId> path, Map<TransactionId, Integer> onPath,
+            Deque<Iterator<TransactionId>> edges) {
+        onPath.put(t, path.size());
+        path.add(t);
+        Set<TransactionId> next = graph.get(t);
+        edges.push(next == null ? Collections.<TransactionId>emptyIterator() : next.iterator());
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+/**
+ * LockMode is the mode of a lock in the multiple-granularity locking
+ * protocol: shared (S) and exclusive (X) locks on the item itself, and
+ * intention locks (IS, IX, SIX) that a transaction takes on a table or
+ * page before it locks something inside it.
+ * <p>
+ * Page locks requested through {@link Permissions} map to S and X.
+ */
+public enum LockMode {
+    /** Intention to read items inside this one. */
+    IS,
+    /** Intention to write items inside this one. */
+    IX,
+    /** Read this item and everything inside it. */
+    S,
+    /** S, plus the intention to write items inside this one. */
+    SIX,
+    /** Read and write this item and everything inside it. */
+    X;
+
+    private static final boolean[][] COMPATIBLE = {
+        //          IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    /** @return true if two transactions may hold this and other at once */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return true if holding this mode grants everything other grants */
+    public boolean covers(LockMode other) {
+        if (this == other || this == X)
+            return true;
+        switch (other) {
+        case IS:
+            return true;
+        case IX:
+        case S:
+            return this == SIX;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return the weakest mode that covers both this and other, i.e. the
+     *         mode a holder of this is converted to when it requests other
+     */
+    public LockMode combine(LockMode other) {
+        if (covers(other))
+            return this;
+        if (other.covers(this))
+            return other;
+        // S and IX are the only incomparable pair
+        return SIX;
+    }
+
+    /**
+     * @return true if holding this on a table or page implicitly locks every
+     *         item inside it in child mode, so the child needs no lock of its own
+     */
+    public boolean coversChildren(LockMode child) {
+        switch (this) {
+        case X:
+            return true;
+        case S:
+        case SIX:
+            return child == IS || child == S;
+        default:
+            return false;
+        }
+    }
+
+    /** @return the intention mode to take on the parents of an item locked in this mode */
+    public LockMode intention() {
+        return this == IS || this == S ? IS : IX;
+    }
+
+    /** @return S for READ_ONLY and X for READ_WRITE */
+    public static LockMode forPermissions(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+}
@@ -93,6 +93,9 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // offset of the last update record of each page: its LSN //protected by this
+    HashMap<PageId,Long> pageLsn = new HashMap<PageId,Long>();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -138,6 +141,13 @@ public class LogFile {
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the offset of the last update record of pid this log
+        holds, or -1 if there is none */
+    public synchronized long getPageLsn(PageId pid) {
+        Long lsn = pageLsn.get(pid);
+        return lsn == null ? -1 : lsn;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -212,6 +222,7 @@ public class LogFile {
         writePageData(raf,before);
         writePageData(raf,after);
         raf.writeLong(currentOffset);
+        pageLsn.put(after.getId(), currentOffset);
         currentOffset = raf.getFilePointer();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
@@ -264,7 +275,8 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            // the public constructor from a page id and the page's bytes
+            Constructor<?> pageConst = pageClass.getConstructor(idClass, byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -274,12 +286,15 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         } catch (InstantiationException e) {
             e.printStackTrace();
             throw new IOException();
@@ -394,6 +409,7 @@ public class LogFile {
         logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
 
         raf.seek(minLogRecord);
+        pageLsn.clear();
 
         //have to rewrite log records since offsets are different after truncation
         while (true) {
@@ -414,6 +430,7 @@ public class LogFile {
 
                     writePageData(logNew, before);
                     writePageData(logNew, after);
+                    pageLsn.put(after.getId(), newStart);
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
@@ -452,6 +469,91 @@ public class LogFile {
         //print();
     }
 
+    /** Find the latest image of the specified page in the log whose
+        CRC32C is checksum: the after image of an update record of the
+        page, or its before image, which rollback and recovery write
+        back.  The record at the page's LSN is tried first; it may no
+        longer be there, e.g. after the log was truncated.
+
+        @param pid The page
+        @param lsn The page's LSN, or -1
+        @param checksum The CRC32C of the image
+        @return the bytes of the image, or null if there is none
+        @see PageChecksums
+    */
+    public synchronized byte[] findPageImage(PageId pid, long lsn, int checksum)
+        throws IOException {
+        long lastOffset = raf.getFilePointer();
+        int[] id = pid.serialize();
+        try {
+            if (lsn > LONG_SIZE && lsn < raf.length()) {
+                try {
+                    raf.seek(lsn);
+                    byte[] image = readUpdateImage(id, checksum);
+                    if (image != null)
+                        return image;
+                } catch (IOException e) {
+                    // not the start of a record any more
+                }
+            }
+            long offset = raf.length();
+            while (offset > LONG_SIZE) {
+                offset -= LONG_SIZE;
+                raf.seek(offset);
+                offset = raf.readLong();
+                raf.seek(offset);
+                byte[] image = readUpdateImage(id, checksum);
+                if (image != null)
+                    return image;
+            }
+            return null;
+        } finally {
+            raf.seek(lastOffset);
+        }
+    }
+
+    /** @return the after image, or else the before image, of the update
+        record at the file pointer if it is of the page with serialized
+        id and its CRC32C is checksum, or null */
+    private byte[] readUpdateImage(int[] id, int checksum) throws IOException {
+        if (raf.readInt() != UPDATE_RECORD)
+            return null;
+        raf.readLong();
+        byte[] before = readImageData(id);
+        byte[] after = readImageData(id);
+        if (after != null && PageChecksums.checksum(after) == checksum)
+            return after;
+        if (before != null && PageChecksums.checksum(before) == checksum)
+            return before;
+        return null;
+    }
+
+    /** Read page data (see writePageData) without making a page of it.
+        @return the page's bytes, or null if it is not the page with
+        serialized id */
+    private byte[] readImageData(int[] id) throws IOException {
+        raf.readUTF();
+        raf.readUTF();
+        int n = raf.readInt();
+        if (n < 0 || n > raf.length() - raf.getFilePointer())
+            throw new IOException("not page data");
+        boolean match = n == id.length;
+        for (int i = 0; i < n; i++) {
+            int v = raf.readInt();
+            match = match && v == id[i];
+        }
+        int length = raf.readInt();
+        if (length < 0 || length > raf.length() - raf.getFilePointer())
+            throw new IOException("not page data");
+        if (!match) {
+            raf.seek(raf.getFilePointer() + length);
+            return null;
+        }
+        byte[] data = new byte[length];
+        raf.readFully(data);
+        return data;
+    }
+
     /** Rollback the specified transaction, setting the state of any
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
@@ -468,6 +570,13 @@ public class LogFile {
                 if (!tidToFirstLogRecord.containsKey(tid.getId())) {
                 	throw new NoSuchElementException("tid not found");
                 }
+                if (Database.getBufferPool().getLockGranularity()
+                		== BufferPool.LockGranularity.RECORD) {
+                	// pages may hold other transactions' changes too; the
+                	// buffer pool undoes tid's record changes logically, in
+                	// memory, as it neither logs nor writes them before commit
+                	return;
+                }
                 long firstOffset = tidToFirstLogRecord.get(tid.getId());
                 long lastOffset = raf.getFilePointer();
                 long tempOffset = currentOffset;
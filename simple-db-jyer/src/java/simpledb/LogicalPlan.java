@@ -2,10 +2,12 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -22,6 +24,12 @@ import java.util.NoSuchElementException;
  * best implementations for joins.
  */
 public class LogicalPlan {
+    /**
+     * Scans of tables larger than this fraction of the buffer pool read
+     * through a {@link ScanRing} instead of the shared pool.
+     */
+    public static final double SCAN_RING_THRESHOLD = 0.25;
+
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
@@ -271,6 +279,51 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return the quantified names of the fields the plan reads, or null if
+     *         it reads every field (a select of *)
+     */
+    private Set<String> referencedFields() {
+        Set<String> fields = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            fields.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters)
+            fields.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            fields.add(lj.f1QuantifiedName);
+            fields.add(lj.f2QuantifiedName);
+        }
+        if (hasAgg)
+            fields.add(aggField);
+        if (groupByField != null)
+            fields.add(groupByField);
+        if (hasOrderBy)
+            fields.add(oByField);
+        return fields;
+    }
+
+    /**
+     * @return the indexes of the fields of td that are in fields when
+     *         quantified with alias; the first field if there are none, as a
+     *         scan must return some field to count the rows
+     */
+    private static int[] usedColumns(TupleDesc td, String alias, Set<String> fields) {
+        ArrayList<Integer> used = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (fields.contains(alias + "." + td.getFieldName(i)))
+                used.add(i);
+        }
+        if (used.isEmpty())
+            used.add(0);
+        int[] columns = new int[used.size()];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = used.get(i);
+        return columns;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -289,15 +342,32 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        // the columns scanned of each alias whose scan does not return them all
+        HashMap<String,int[]> projections = new HashMap<String,int[]>();
+        Set<String> usedFields = referencedFields();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
+            DbFile file;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 file = Database.getCatalog().getDatabaseFile(table.t);
+                 ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
+            BufferPool bp = Database.getBufferPool();
+            if (file instanceof HeapFile
+                    && ((HeapFile) file).numPages() > SCAN_RING_THRESHOLD * bp.getNumPages()) {
+                // a scan this large would flush everybody else's pages
+                ss.setScanRing(ScanRing.forPool(bp));
+            }
+            if (file instanceof ColumnarFile && usedFields != null) {
+                // read only the columns the query uses
+                int[] columns = usedColumns(file.getTupleDesc(), table.alias, usedFields);
+                ss.setColumns(columns);
+                projections.put(table.alias, columns);
+            }
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
@@ -338,7 +408,10 @@ public class LogicalPlan {
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            int statsField = subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName);
+            if (projections.containsKey(lf.tableAlias))
+                statsField = projections.get(lf.tableAlias)[statsField];
+            double sel= s.estimateSelectivity(statsField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -4,10 +4,26 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It sorts in memory up to a budget, given in buffer pool pages. A child
+ * with more tuples than that is sorted externally: each budget's worth is
+ * sorted and written to a spill file (see {@link SpillManager}), and the
+ * sorted runs are merged, as many at a time as the budget has pages for
+ * their read buffers, until one merge is left to read the tuples from.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** System property with the default memory budget, in pages. */
+    public static final String MEMORY_PAGES_PROPERTY = "simpledb.sortPages";
+
+    /** Default memory budget: 64 pages. */
+    public static final int DEFAULT_MEMORY_PAGES = 64;
+
+    private static volatile int defaultMemoryPages = Integer.getInteger(MEMORY_PAGES_PROPERTY,
+            DEFAULT_MEMORY_PAGES);
+
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
@@ -15,6 +31,10 @@ public class OrderBy extends Operator {
     private String orderByFieldName;
     private Iterator<Tuple> it;
     private boolean asc;
+    private final int memoryPages;
+    // the sorted runs left to merge, null if the child fit in memory
+    private ArrayList<SpillManager.SpillFile> runs;
+    private Merge merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +47,43 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, child, defaultMemoryPages);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts up to memoryPages pages of tuples
+     * in memory, and at least two pages' worth.
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, int memoryPages) {
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memoryPages = Math.max(memoryPages, 2);
+    }
+
+    /** @return the memory budget of sorts created without one, in pages */
+    public static int getDefaultMemoryPages() {
+        return defaultMemoryPages;
+    }
+
+    /**
+     * Set the memory budget of sorts created without one, in pages. The
+     * default comes from the system property {@value #MEMORY_PAGES_PROPERTY}.
+     */
+    public static void setDefaultMemoryPages(int pages) {
+        defaultMemoryPages = pages;
+    }
+
+    /** @return the number of tuples sorted in memory at most */
+    public int getMemoryTuples() {
+        return BlockNestedLoopJoin.tuplesPerBlock(td, memoryPages);
+    }
+
+    /** @return true if the child did not fit in memory and was sorted externally */
+    public boolean isExternal() {
+        return runs != null;
     }
     
     public boolean isASC()
@@ -57,20 +109,136 @@ public class OrderBy extends Operator {
             TransactionAbortedException {
         child.open();
         // load all the tuples in a collection, and sort it
-        while (child.hasNext())
+        childTups.clear();
+        discard();
+        int capacity = getMemoryTuples();
+        while (child.hasNext()) {
             childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            if (childTups.size() >= capacity)
+                spillRun();
+        }
+        if (runs == null) {
+            Collections.sort(childTups, new TupleComparator(orderByField, asc));
+            it = childTups.iterator();
+        } else {
+            if (!childTups.isEmpty())
+                spillRun();
+            mergeRuns();
+            merge = new Merge(runs);
+        }
         super.open();
     }
 
     public void close() {
         super.close();
         it = null;
+        discard();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (runs == null) {
+            it = childTups.iterator();
+        } else {
+            merge.close();
+            merge = new Merge(runs);
+        }
+    }
+
+    /** Sort the tuples in memory and write them out as a run */
+    private void spillRun() throws DbException {
+        Collections.sort(childTups, new TupleComparator(orderByField, asc));
+        SpillManager.SpillFile run = Database.getSpillManager().create(td);
+        for (Tuple t : childTups)
+            run.add(t);
+        childTups.clear();
+        if (runs == null)
+            runs = new ArrayList<SpillManager.SpillFile>();
+        runs.add(run);
+    }
+
+    /** Merge the runs into longer ones until they can all be merged at once */
+    private void mergeRuns() throws DbException, TransactionAbortedException {
+        int fanIn = Math.max(memoryPages - 1, 2);
+        while (runs.size() > fanIn) {
+            ArrayList<SpillManager.SpillFile> merged = new ArrayList<SpillManager.SpillFile>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillManager.SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                SpillManager.SpillFile run = Database.getSpillManager().create(td);
+                Merge m = new Merge(group);
+                while (m.hasNext())
+                    run.add(m.next());
+                m.close();
+                for (SpillManager.SpillFile f : group)
+                    f.delete();
+                merged.add(run);
+            }
+            runs = merged;
+        }
+    }
+
+    /** Delete the runs of an external sort */
+    private void discard() {
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        if (runs != null) {
+            for (SpillManager.SpillFile f : runs)
+                f.delete();
+            runs = null;
+        }
+    }
+
+    /** The next tuple of a run being merged */
+    private static class Head {
+        final Tuple tuple;
+        final OpIterator run;
+
+        Head(Tuple tuple, OpIterator run) {
+            this.tuple = tuple;
+            this.run = run;
+        }
+    }
+
+    /** Reads sorted runs back as one sorted stream */
+    private class Merge {
+        private final ArrayList<OpIterator> in = new ArrayList<OpIterator>();
+        private final PriorityQueue<Head> heads;
+
+        Merge(List<SpillManager.SpillFile> runs) throws DbException, TransactionAbortedException {
+            final TupleComparator order = new TupleComparator(orderByField, asc);
+            heads = new PriorityQueue<Head>(Math.max(runs.size(), 1), new Comparator<Head>() {
+                public int compare(Head a, Head b) {
+                    return order.compare(a.tuple, b.tuple);
+                }
+            });
+            for (SpillManager.SpillFile run : runs) {
+                OpIterator i = run.iterator();
+                i.open();
+                in.add(i);
+                advance(i);
+            }
+        }
+
+        private void advance(OpIterator i) throws DbException, TransactionAbortedException {
+            if (i.hasNext())
+                heads.add(new Head(i.next(), i));
+        }
+
+        boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            Head head = heads.poll();
+            advance(head.run);
+            return head.tuple;
+        }
+
+        void close() {
+            for (OpIterator i : in)
+                i.close();
+        }
     }
 
     /**
@@ -82,6 +250,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null)
+            return merge.hasNext() ? merge.next() : null;
         if (it != null && it.hasNext()) {
             return it.next();
         } else
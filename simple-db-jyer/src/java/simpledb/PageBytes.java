@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+/**
+ * PageBytes holds the bytes of a page as it was read, shared by the
+ * {@link HeapPage} and by the tuples decoded from them on demand. The
+ * bytes are either an array of their own or a read-only slice of a
+ * memory-mapped {@link HeapFile}, so that a page read through the mapping
+ * is not copied.
+ * <p>
+ * A write of the page to the file shows through the mapping, so the
+ * HeapFile {@link #detach detaches} mapped bytes before it overwrites
+ * them: they are then copied into an array of their own, once. A read
+ * that overlaps a detach is done again on the copy.
+ */
+class PageBytes {
+
+    // the bytes, with position 0 and limit the page size
+    private volatile ByteBuffer bytes;
+    // taken by detach(); null if the bytes are not mapped
+    private final StampedLock lock;
+
+    /** @param data the bytes of a page, which must not be modified afterwards */
+    PageBytes(byte[] data) {
+        bytes = ByteBuffer.wrap(data);
+        lock = null;
+    }
+
+    /** @param mapped a slice of a memory mapping holding the bytes of a page */
+    PageBytes(ByteBuffer mapped) {
+        bytes = mapped;
+        lock = new StampedLock();
+    }
+
+    /** @return true if the bytes are still read from a memory mapping */
+    boolean isMapped() {
+        return bytes.isDirect();
+    }
+
+    /** @return the number of bytes */
+    int length() {
+        return bytes.capacity();
+    }
+
+    /**
+     * Copy the bytes into an array of their own if they are mapped. Must be
+     * called before the page is overwritten in the file.
+     */
+    void detach() {
+        if (lock == null)
+            return;
+        long stamp = lock.writeLock();
+        try {
+            ByteBuffer b = bytes;
+            if (b.isDirect()) {
+                byte[] copy = new byte[b.capacity()];
+                b.duplicate().get(copy);
+                bytes = ByteBuffer.wrap(copy);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return what f reads from the bytes; f is run again on the copy if
+     *         the bytes are detached meanwhile
+     */
+    <T> T read(Function<ByteBuffer, T> f) {
+        if (lock == null)
+            return f.apply(bytes);
+        long stamp = lock.tryOptimisticRead();
+        ByteBuffer b = bytes;
+        if (!b.isDirect())
+            return f.apply(b);
+        try {
+            T v = f.apply(b);
+            if (lock.validate(stamp))
+                return v;
+        } catch (RuntimeException e) {
+            // may have read bytes being overwritten
+            if (lock.validate(stamp))
+                throw e;
+        }
+        // once the detach is over, the bytes are a copy that never changes
+        stamp = lock.readLock();
+        try {
+            b = bytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return f.apply(b);
+    }
+
+    /** @return the unsigned big-endian short at offset */
+    int readShort(int offset) {
+        return read(b -> Type.readShort(b, offset));
+    }
+
+    /** Copy len bytes at offset into dst at dstOffset. */
+    void copy(int offset, byte[] dst, int dstOffset, int len) {
+        read(b -> {
+            ByteBuffer d = b.duplicate();
+            d.position(offset);
+            d.get(dst, dstOffset, len);
+            return null;
+        });
+    }
+
+    /** @return a copy of all the bytes */
+    byte[] toArray() {
+        byte[] data = new byte[length()];
+        copy(0, data, 0, data.length);
+        return data;
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * PageChecksums keeps, in a file beside a {@link HeapFile} (see {@link
+ * HeapFile#checksumFile}), an entry for each page written: the CRC32C of
+ * the page's bytes and the page's LSN, the offset in the log of the last
+ * update record of the page when it was written.
+ * <p>
+ * The entry is written before the page, so that a page left half-written
+ * by a crash no longer matches its checksum, and can be restored from the
+ * image the log holds of it (see {@link LogFile#findPageImage}). A page
+ * with no entry, e.g. one written by {@link HeapFileEncoder}, is not
+ * checked.
+ * <p>
+ * Like the {@link FreeSpaceMap}, the entries are read into memory when
+ * first used, so that checking a page costs no read of the file, and
+ * {@link #save} writes each entry through to the file.
+ */
+class PageChecksums {
+
+    // an entry: the checksum, the LSN and the checksum's complement, so
+    // that a zeroed entry, e.g. one never written, reads as absent
+    static final int ENTRY_SIZE = 16;
+
+    /** A page's entry. */
+    static class Entry {
+        final int checksum;
+        final long lsn;
+
+        Entry(int checksum, long lsn) {
+            this.checksum = checksum;
+            this.lsn = lsn;
+        }
+    }
+
+    private final File file;
+    // open channel to file, or null before the first write and after close()
+    private FileChannel channel;
+    // the entries as they are in the file, or null before first use and
+    // after close()
+    private byte[] entries;
+
+    /**
+     * @param file the file of the entries, which need not exist
+     */
+    PageChecksums(File file) {
+        this.file = file;
+    }
+
+    /** @return the CRC32C of page */
+    static int checksum(byte[] page) {
+        CRC32C crc = new CRC32C();
+        crc.update(page, 0, page.length);
+        return (int) crc.getValue();
+    }
+
+    /** @return the CRC32C of the bytes of page, e.g. a slice of a mapping */
+    static int checksum(ByteBuffer page) {
+        CRC32C crc = new CRC32C();
+        crc.update(page.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /** @return the entries, read from the file if they are not loaded */
+    private byte[] entries() throws IOException {
+        if (entries == null)
+            entries = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+        return entries;
+    }
+
+    /** @return the entry of page pageNo, or null if it has none */
+    synchronized Entry entry(int pageNo) throws IOException {
+        byte[] e = entries();
+        long start = (long) pageNo * ENTRY_SIZE;
+        if (start + ENTRY_SIZE > e.length)
+            return null;
+        ByteBuffer buf = ByteBuffer.wrap(e, (int) start, ENTRY_SIZE);
+        int checksum = buf.getInt();
+        long lsn = buf.getLong();
+        if (buf.getInt() != ~checksum)
+            return null;
+        return new Entry(checksum, lsn);
+    }
+
+    /** Write the entry of page pageNo, about to be written with the specified LSN. */
+    void save(int pageNo, byte[] page, long lsn) throws IOException {
+        int checksum = checksum(page);
+        ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+        buf.putInt(checksum).putLong(lsn).putInt(~checksum);
+        buf.flip();
+        int start = pageNo * ENTRY_SIZE;
+        FileChannel c;
+        synchronized (this) {
+            byte[] e = entries();
+            if (start + ENTRY_SIZE > e.length)
+                e = entries = Arrays.copyOf(e, Math.max(start + ENTRY_SIZE, e.length * 2));
+            System.arraycopy(buf.array(), 0, e, start, ENTRY_SIZE);
+            if (channel == null)
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            c = channel;
+        }
+        while (buf.hasRemaining())
+            c.write(buf, start + buf.position());
+    }
+
+    /**
+     * Close the file. The entries are read again if they are used after
+     * this.
+     */
+    synchronized void close() throws IOException {
+        entries = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * PageCompressor encodes the pages of a {@link CompressedPageStore}.
+ * <p>
+ * A page of fixed-size slots (see {@link HeapPage}) is encoded field by
+ * field, over the slots in use: the values of an int field as offsets from
+ * their minimum, in as few bits as the largest offset needs (frame of
+ * reference), and those of a string field as run-length encoded codes into
+ * a dictionary of the page's distinct values. Any page may instead be
+ * compressed as bytes, with an LZ77 coder in the manner of the LZ4 block
+ * format: sequences of literals and a copy of 4 or more bytes found earlier
+ * through a hash of the next 4 bytes.
+ * <p>
+ * The encoding starts with a byte naming its method. The smallest encoding
+ * is kept, or the page as it is if none saves space.
+ */
+class PageCompressor {
+
+    static final byte RAW = 0;
+    static final byte LZ = 1;
+    static final byte FIELDS = 2;
+
+    private static final int HASH_BITS = 12;
+    // LZ4's limits: the last match starts 12 bytes before the end at the
+    // latest, and the last 5 bytes are literals
+    private static final int MATCH_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MIN_MATCH = 4;
+
+    // the schema of pages of fixed-size slots, or null for other pages
+    private final TupleDesc td;
+
+    /**
+     * @param fixedSlots the schema of the tuples, if pages have fixed-size
+     *        slots, or null if pages are only to be compressed as bytes
+     */
+    PageCompressor(TupleDesc fixedSlots) {
+        this.td = fixedSlots;
+    }
+
+    /** @return the encoding of page */
+    byte[] compress(byte[] page) {
+        byte[] best = compressLz(page);
+        if (td != null) {
+            byte[] fields = encodeFields(page);
+            // slots not in use or bytes after the last slot that are not
+            // zero are lost by the field encoding
+            if (fields != null && fields.length < best.length
+                    && Arrays.equals(decodeFields(fields, page.length), page))
+                best = fields;
+        }
+        if (best.length > page.length) {
+            best = new byte[page.length + 1];
+            best[0] = RAW;
+            System.arraycopy(page, 0, best, 1, page.length);
+        }
+        return best;
+    }
+
+    /** @return the page of pageSize bytes encoded in data */
+    byte[] decompress(byte[] data, int pageSize) {
+        switch (data[0]) {
+        case RAW:
+            return Arrays.copyOfRange(data, 1, 1 + pageSize);
+        case LZ:
+            return decompressLz(data, 1, pageSize);
+        case FIELDS:
+            return decodeFields(data, pageSize);
+        default:
+            throw new IllegalArgumentException("unknown page encoding " + data[0]);
+        }
+    }
+
+    /** @return src compressed with the LZ method */
+    static byte[] compressLz(byte[] src) {
+        int len = src.length;
+        byte[] out = new byte[1 + len + len / 255 + 16];
+        out[0] = LZ;
+        int op = 1;
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int i = 0;
+        while (i < len - MATCH_LIMIT) {
+            int seq = readInt(src, i);
+            int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > 0xffff || readInt(src, ref) != seq) {
+                i++;
+                continue;
+            }
+            int m = MIN_MATCH;
+            while (i + m < len - LAST_LITERALS && src[ref + m] == src[i + m])
+                m++;
+            int litLen = i - anchor;
+            int ml = m - MIN_MATCH;
+            out[op++] = (byte) (Math.min(litLen, 15) << 4 | Math.min(ml, 15));
+            if (litLen >= 15)
+                op = writeLength(out, op, litLen - 15);
+            System.arraycopy(src, anchor, out, op, litLen);
+            op += litLen;
+            out[op++] = (byte) (i - ref);
+            out[op++] = (byte) ((i - ref) >>> 8);
+            if (ml >= 15)
+                op = writeLength(out, op, ml - 15);
+            i += m;
+            anchor = i;
+        }
+        int litLen = len - anchor;
+        out[op++] = (byte) (Math.min(litLen, 15) << 4);
+        if (litLen >= 15)
+            op = writeLength(out, op, litLen - 15);
+        System.arraycopy(src, anchor, out, op, litLen);
+        op += litLen;
+        return Arrays.copyOf(out, op);
+    }
+
+    private static int writeLength(byte[] out, int op, int n) {
+        for (; n >= 255; n -= 255)
+            out[op++] = (byte) 255;
+        out[op++] = (byte) n;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8
+                | (b[i + 3] & 0xff);
+    }
+
+    /** @return the len bytes compressed with the LZ method at from in data */
+    static byte[] decompressLz(byte[] data, int from, int len) {
+        byte[] out = new byte[len];
+        int ip = from, op = 0;
+        while (true) {
+            int token = data[ip++] & 0xff;
+            int litLen = token >>> 4;
+            if (litLen == 15) {
+                int b;
+                do {
+                    b = data[ip++] & 0xff;
+                    litLen += b;
+                } while (b == 255);
+            }
+            System.arraycopy(data, ip, out, op, litLen);
+            ip += litLen;
+            op += litLen;
+            if (ip >= data.length)
+                return out;
+            int offset = (data[ip++] & 0xff) | (data[ip++] & 0xff) << 8;
+            int ml = token & 15;
+            if (ml == 15) {
+                int b;
+                do {
+                    b = data[ip++] & 0xff;
+                    ml += b;
+                } while (b == 255);
+            }
+            ml += MIN_MATCH;
+            // the copy may overlap the bytes it produces
+            for (int k = 0; k < ml; k++)
+                out[op + k] = out[op - offset + k];
+            op += ml;
+        }
+    }
+
+    /** @return the slots in use, in order, given the header of page */
+    private static int[] usedSlots(byte[] header, int numSlots) {
+        int n = 0;
+        int[] used = new int[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            if ((header[i / 8] >> (i % 8) & 1) == 1)
+                used[n++] = i;
+        }
+        return Arrays.copyOf(used, n);
+    }
+
+    /**
+     * @return page encoded with the FIELDS method, or null if its slots
+     *         are too many to encode
+     */
+    private byte[] encodeFields(byte[] page) {
+        int size = td.getSize();
+        int numSlots = page.length * 8 / (size * 8 + 1);
+        if (numSlots > 0xffff)
+            return null;
+        int headerLen = (numSlots + 7) / 8;
+        int[] used = usedSlots(page, numSlots);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeByte(FIELDS);
+            out.write(page, 0, headerLen);
+            for (int j = 0; j < td.numFields(); j++) {
+                int start = headerLen + td.getFieldOffset(j);
+                if (td.getFieldType(j) == Type.INT_TYPE)
+                    encodeInts(page, start, size, used, out);
+                else
+                    encodeStrings(page, start, size, td.getFieldType(j).getLen(td.getMaxLength(j)),
+                            used, out);
+            }
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    private static void encodeInts(byte[] page, int start, int size, int[] used,
+            DataOutputStream out) throws IOException {
+        long min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int slot : used) {
+            int v = readInt(page, start + slot * size);
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        int bits = used.length == 0 ? 0 : 64 - Long.numberOfLeadingZeros(max - min);
+        out.writeInt((int) min);
+        out.writeByte(bits);
+        long acc = 0;
+        int accBits = 0;
+        for (int slot : used) {
+            acc = acc << bits | (readInt(page, start + slot * size) - min);
+            for (accBits += bits; accBits >= 8; accBits -= 8)
+                out.writeByte((int) (acc >>> (accBits - 8)));
+        }
+        if (accBits > 0)
+            out.writeByte((int) (acc << (8 - accBits)));
+    }
+
+    private static void encodeStrings(byte[] page, int start, int size, int len, int[] used,
+            DataOutputStream out) throws IOException {
+        // a value is the bytes of its field, but the zeroes at the end
+        Map<String, Integer> codes = new LinkedHashMap<String, Integer>();
+        int[] code = new int[used.length];
+        for (int k = 0; k < used.length; k++) {
+            int from = start + used[k] * size;
+            int end = from + len;
+            while (end > from && page[end - 1] == 0)
+                end--;
+            String value = new String(page, from, end - from, StandardCharsets.ISO_8859_1);
+            Integer c = codes.get(value);
+            if (c == null) {
+                c = codes.size();
+                codes.put(value, c);
+            }
+            code[k] = c;
+        }
+        out.writeShort(codes.size());
+        for (String value : codes.keySet()) {
+            out.writeShort(value.length());
+            out.write(value.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        int runs = 0;
+        for (int k = 0; k < code.length; k++) {
+            if (k == 0 || code[k] != code[k - 1])
+                runs++;
+        }
+        out.writeShort(runs);
+        for (int k = 0; k < code.length;) {
+            int run = 1;
+            while (k + run < code.length && code[k + run] == code[k])
+                run++;
+            out.writeShort(code[k]);
+            out.writeShort(run);
+            k += run;
+        }
+    }
+
+    /** @return the page of pageSize bytes encoded in data by encodeFields */
+    private byte[] decodeFields(byte[] data, int pageSize) {
+        byte[] page = new byte[pageSize];
+        int size = td.getSize();
+        int numSlots = pageSize * 8 / (size * 8 + 1);
+        int headerLen = (numSlots + 7) / 8;
+        ByteBuffer in = ByteBuffer.wrap(data, 1, data.length - 1);
+        in.get(page, 0, headerLen);
+        int[] used = usedSlots(page, numSlots);
+        for (int j = 0; j < td.numFields(); j++) {
+            int start = headerLen + td.getFieldOffset(j);
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                int min = in.getInt();
+                int bits = in.get() & 0xff;
+                long acc = 0;
+                int accBits = 0;
+                long mask = (1L << bits) - 1;
+                for (int slot : used) {
+                    while (accBits < bits) {
+                        acc = acc << 8 | (in.get() & 0xff);
+                        accBits += 8;
+                    }
+                    accBits -= bits;
+                    int v = (int) (min + (acc >>> accBits & mask));
+                    int at = start + slot * size;
+                    page[at] = (byte) (v >>> 24);
+                    page[at + 1] = (byte) (v >>> 16);
+                    page[at + 2] = (byte) (v >>> 8);
+                    page[at + 3] = (byte) v;
+                }
+            } else {
+                byte[][] values = new byte[in.getShort() & 0xffff][];
+                for (int c = 0; c < values.length; c++) {
+                    values[c] = new byte[in.getShort() & 0xffff];
+                    in.get(values[c]);
+                }
+                int runs = in.getShort() & 0xffff;
+                for (int r = 0, k = 0; r < runs; r++) {
+                    byte[] value = values[in.getShort() & 0xffff];
+                    for (int run = in.getShort() & 0xffff; run > 0; run--, k++)
+                        System.arraycopy(value, 0, page, start + used[k] * size, value.length);
+                }
+            }
+        }
+        return page;
+    }
+}
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * ReadAhead drives the asynchronous read-ahead of one sequential scan. When
+ * the scan reaches page k, pages k+1..k+W are read into the buffer pool in
+ * the background, so that the scan finds them resident instead of waiting
+ * on each miss. No locks are taken early; the scan locks every page as
+ * usual when it gets there.
+ * <p>
+ * The window W adapts to the scan. It starts small and doubles whenever
+ * the scan catches up with a page that is still being read, i.e. the scan
+ * consumes pages faster than they arrive. It halves when a prefetched page
+ * was evicted before the scan reached it, i.e. the read-ahead ran further
+ * ahead than the pool could hold. W never exceeds the pool's
+ * {@link BufferPool#getPrefetchWindow() limit}, a quarter of the pool, or,
+ * for a ring scan, what fits in the ring beside the current page.
+ */
+class ReadAhead {
+
+    /** Window a scan starts with. */
+    static final int INITIAL_WINDOW = 2;
+
+    private final BufferPool bp;
+    private final int tableId;
+    private final ScanRing ring;
+    private final int maxWindow;
+    private int window;
+    // first page not yet prefetched
+    private int next;
+    // reads started for pages the scan has not reached yet
+    private final Map<Integer, Future<?>> pending = new HashMap<>();
+
+    /**
+     * @param ring the scan's ring, or null
+     */
+    ReadAhead(BufferPool bp, int tableId, ScanRing ring) {
+        this.bp = bp;
+        this.tableId = tableId;
+        this.ring = ring;
+        int max = Math.min(bp.getPrefetchWindow(), bp.getNumPages() / 4);
+        if (ring != null)
+            max = Math.min(max, ring.size() - 2);
+        maxWindow = Math.max(0, max);
+        window = Math.min(INITIAL_WINDOW, maxWindow);
+    }
+
+    /** @return the number of pages currently read ahead */
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * Called when the scan is about to read pageNo of a file of numPages
+     * pages. Waits for the page if it is still being read.
+     */
+    void reached(int pageNo, int numPages) {
+        if (maxWindow == 0)
+            return;
+        Future<?> f = pending.remove(pageNo);
+        if (f != null) {
+            if (!f.isDone()) {
+                window = Math.min(window * 2, maxWindow);
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // the scan reads the page itself
+                }
+            } else if (!bp.isResident(new HeapPageId(tableId, pageNo))) {
+                window = Math.max(window / 2, 1);
+            }
+        }
+        next = Math.max(next, pageNo + 1);
+        while (next <= pageNo + window && next < numPages) {
+            Future<?> g = bp.prefetch(new HeapPageId(tableId, next), ring);
+            if (g != null)
+                pending.put(next, g);
+            next++;
+        }
+    }
+}
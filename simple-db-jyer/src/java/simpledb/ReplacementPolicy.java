@@ -0,0 +1,70 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs a free frame. The BufferPool reports every hit, every page it
+ * brings in and every page it drops; the policy answers with a victim when
+ * asked.
+ * <p>
+ * Implementations must be safe to call from several threads at once, since
+ * BufferPool.getPage is not synchronized.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /** Name of the least-recently-used policy, the default. */
+    public static final String LRU = "lru";
+    /** Name of the CLOCK (second chance) policy. */
+    public static final String CLOCK = "clock";
+    /** Name of the LRU-K policy, with K = 2. */
+    public static final String LRU_K = "lru-k";
+    /** Name of the 2Q policy. */
+    public static final String TWO_Q = "2q";
+
+    /**
+     * Called when a resident page is requested again (a buffer pool hit).
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page becomes resident in the buffer pool.
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool, whether it was evicted,
+     * discarded by recovery or dropped on abort. Unknown pages are ignored.
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page that should be evicted next. The page stays tracked
+     * until the BufferPool reports it through {@link #pageRemoved}.
+     *
+     * @param evictable tells the policy which resident pages may be chosen
+     * @return the page to evict, or null if no tracked page is evictable
+     */
+    public PageId victim(java.util.function.Predicate<PageId> evictable);
+
+    /**
+     * Create the policy with the specified name.
+     *
+     * @param name one of {@link #LRU}, {@link #CLOCK}, {@link #LRU_K} or
+     *        {@link #TWO_Q} (case insensitive)
+     * @param numPages the capacity of the buffer pool that will use it
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static ReplacementPolicy forName(String name, int numPages) {
+        String n = name.trim().toLowerCase();
+        if (n.equals(LRU))
+            return new LRUPolicy();
+        if (n.equals(CLOCK))
+            return new ClockPolicy();
+        if (n.equals(LRU_K))
+            return new LRUKPolicy(LRUKPolicy.DEFAULT_K, numPages);
+        if (n.equals(TWO_Q))
+            return new TwoQPolicy(numPages);
+        throw new IllegalArgumentException("Unknown replacement policy " + name);
+    }
+}
@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * ScanRing is a small, bounded ring of buffer pool frames owned by one
+ * sequential scan, modelled on PostgreSQL's ring buffer access strategy.
+ * Once the ring is full, each page the scan reads replaces the oldest page
+ * the scan itself brought in, rather than a page chosen by the replacement
+ * policy. A full scan of a large table therefore uses at most ring-size
+ * frames and leaves the rest of the pool alone.
+ * <p>
+ * A ring page that another (non-scan) request asks for is promoted to an
+ * ordinary page and is no longer recycled by the ring.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, ScanRing)
+ */
+public class ScanRing {
+
+    /** Default number of frames in a ring. */
+    public static final int DEFAULT_PAGES = 8;
+
+    private final int size;
+    private final ArrayDeque<PageId> frames;
+
+    /**
+     * @param size the number of frames in the ring; must be positive
+     */
+    public ScanRing(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("ring size must be positive");
+        this.size = size;
+        this.frames = new ArrayDeque<PageId>(size);
+    }
+
+    /**
+     * Create a ring suitable for the specified buffer pool: DEFAULT_PAGES
+     * frames, but never more than a quarter of the pool.
+     */
+    public static ScanRing forPool(BufferPool bp) {
+        return new ScanRing(Math.max(1, Math.min(DEFAULT_PAGES, bp.getNumPages() / 4)));
+    }
+
+    /** @return the number of frames in this ring */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Record that the scan brought pid into the pool.
+     *
+     * @return the page that falls out of the ring and whose frame should be
+     *         reused, or null if the ring is not yet full
+     */
+    synchronized PageId add(PageId pid) {
+        frames.addLast(pid);
+        if (frames.size() > size)
+            return frames.pollFirst();
+        return null;
+    }
+}
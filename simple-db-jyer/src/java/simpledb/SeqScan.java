@@ -15,6 +15,9 @@ public class SeqScan implements OpIterator {
     private DbFile f;
     private DbFileIterator fIter;
     private String tableAlias;
+    private ScanRing ring;
+    private Predicate predicate;
+    private int[] columns;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -36,17 +39,81 @@ public class SeqScan implements OpIterator {
     	this.tid = tid;
     	this.tableAlias = tableAlias;
     	f = Database.getCatalog().getDatabaseFile(tableid);
-    	fIter = f.iterator(tid);
+    	fIter = createIterator();
         // some code goes here
     }
 
+    /**
+     * Read the table through the specified ring of buffer pool frames rather
+     * than the shared pool, so that scanning a large table does not evict
+     * the working set of other queries. Has no effect on files other than
+     * HeapFiles and ColumnarFiles. Must be called before open().
+     *
+     * @param ring the ring to read through, or null to use the shared pool
+     */
+    public void setScanRing(ScanRing ring) {
+    	this.ring = ring;
+    	fIter = createIterator();
+    }
+
+    /** @return the ring this scan reads through, or null */
+    public ScanRing getScanRing() {
+    	return ring;
+    }
+
+    /**
+     * Return only the tuples that satisfy the specified predicate. A HeapFile
+     * evaluates it on the encoded tuples, so that the rows it rejects are
+     * never decoded; other files do not support this. Must be called before
+     * open().
+     *
+     * @param p the predicate, or null to return every tuple
+     * @return true if the scan returns only tuples that satisfy p
+     */
+    public boolean setPredicate(Predicate p) {
+    	if (!(f instanceof HeapFile))
+    		return p == null;
+    	predicate = p;
+    	fIter = createIterator();
+    	return true;
+    }
+
+    /**
+     * Return only the specified columns of the table, in the order given. A
+     * ColumnarFile then reads only the pages of those columns; other files
+     * do not support this. Must be called before open().
+     *
+     * @param columns the indexes of the columns to return, or null to
+     *        return them all
+     * @return true if the scan returns only the specified columns
+     */
+    public boolean setColumns(int[] columns) {
+    	if (!(f instanceof ColumnarFile))
+    		return columns == null;
+    	this.columns = columns;
+    	fIter = createIterator();
+    	return true;
+    }
+
+    private DbFileIterator createIterator() {
+    	if (columns != null && f instanceof ColumnarFile)
+    		return ((ColumnarFile) f).iterator(tid, ring, columns);
+    	if (predicate != null && f instanceof HeapFile)
+    		return ((HeapFile) f).iterator(tid, ring, predicate);
+    	if (ring != null && f instanceof HeapFile)
+    		return ((HeapFile) f).iterator(tid, ring);
+    	if (ring != null && f instanceof ColumnarFile)
+    		return ((ColumnarFile) f).iterator(tid, ring);
+    	return f.iterator(tid);
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(f.getId());
     }
 
     /**
@@ -74,7 +141,9 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
     	this.tableAlias = tableAlias;
         f = Database.getCatalog().getDatabaseFile(tableid);
-        fIter = f.iterator(tid);
+        predicate = null;
+        columns = null;
+        fIter = createIterator();
         }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -98,14 +167,18 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-    	int len = f.getTupleDesc().numFields();
+    	TupleDesc td = columns != null ? ((ColumnarFile) f).getTupleDesc(columns)
+    			: f.getTupleDesc();
+    	int len = td.numFields();
         Type[] types = new Type[len];
         String[] fields = new String[len];
+        int[] maxLengths = new int[len];
         for (int i = 0; i < len; i++) {
-        	types[i] = f.getTupleDesc().getFieldType(i);
-        	fields[i] = tableAlias + "." + f.getTupleDesc().getFieldName(i);
+        	types[i] = td.getFieldType(i);
+        	fields[i] = tableAlias + "." + td.getFieldName(i);
+        	maxLengths[i] = td.getMaxLength(i);
         }
-        return new TupleDesc(types, fields);
+        return new TupleDesc(types, fields, maxLengths);
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
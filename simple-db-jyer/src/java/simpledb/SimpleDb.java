@@ -7,6 +7,19 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
+            // trailing "columnar" and "compressed" options convert to a
+            // ColumnarFile, and compress the pages
+            boolean columnar = false, compressed = false;
+            while (args.length > 3 && (args[args.length - 1].equals("columnar")
+                    || args[args.length - 1].equals("compressed"))) {
+                if (args[args.length - 1].equals("columnar"))
+                    columnar = true;
+                else
+                    compressed = true;
+                String[] newargs = new String[args.length - 1];
+                System.arraycopy(args, 0, newargs, 0, newargs.length);
+                args = newargs;
+            }
             if (args.length<3 || args.length>5){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
@@ -43,8 +56,37 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+            if (!columnar && !compressed) {
+                HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+            } else {
+                // encode a heap file first, then write its tuples by column
+                // or its pages compressed
+                File heapFile = File.createTempFile("convert", ".dat");
+                HeapFileEncoder.convert(sourceTxtFile,heapFile,
                         BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+                HeapFile hf = new HeapFile(heapFile, new TupleDesc(ts));
+                Database.getCatalog().addTable(hf, heapFile.getName());
+                TransactionId tid = new TransactionId();
+                if (columnar) {
+                    ColumnarFile.write(targetDatFile, hf.getTupleDesc(), hf.iterator(tid),
+                            compressed);
+                } else {
+                    targetDatFile.delete();
+                    CompressedPageStore.mapFile(targetDatFile).delete();
+                    HeapFile.freeSpaceMapFile(targetDatFile).delete();
+                    HeapFile.checksumFile(targetDatFile).delete();
+                    HeapFile target = new HeapFile(targetDatFile, hf.getTupleDesc(),
+                            HeapFile.PageFormat.FIXED, true);
+                    for (int i = 0; i < hf.numPages(); i++)
+                        target.writePage(hf.readPage(new HeapPageId(hf.getId(), i)));
+                    target.close();
+                }
+                Database.getBufferPool().transactionComplete(tid);
+                hf.close();
+                heapFile.delete();
+                HeapFile.freeSpaceMapFile(heapFile).delete();
+            }
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
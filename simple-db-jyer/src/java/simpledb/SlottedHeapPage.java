@@ -0,0 +1,296 @@
+package simpledb;
+
+import java.io.*;
+import java.util.function.IntPredicate;
+
+/**
+ * SlottedHeapPage is a HeapPage whose tuples are stored in variable-length
+ * records, so that strings take only the bytes they need rather than their
+ * maximum length. It is the page format of HeapFiles created with
+ * {@link HeapFile.PageFormat#SLOTTED}.
+ * <p>
+ * The page starts with a two-byte count of slots, followed by the slot
+ * directory: for each slot, the two-byte offset and length of its record.
+ * The records are packed at the end of the page, in the variable-length
+ * record format of {@link Type#serialize} with pad false, and the free
+ * space lies between the directory and the records. A slot with offset 0
+ * is empty; if its length is not 0, that many bytes stay reserved for
+ * the tuple deleted from it, so that the delete can be undone. All numbers
+ * are unsigned and big-endian, so pages of up to 64 KB are supported, and
+ * a page of zeroes is empty.
+ * <p>
+ * A tuple keeps its slot, and so its RecordId, for as long as it is on the
+ * page. Deleting it frees its record's space at once; the records are
+ * compacted when the page is written, which also drops the empty slots at
+ * the end of the directory.
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    static final int HEADER_SIZE = 2;
+    static final int SLOT_SIZE = 4;
+
+    // number of slots in the directory
+    private int slotCount;
+    // the record of each used slot is recLen[i] bytes at recOff[i] in
+    // recData[i], which is data for records not changed since the page was
+    // read; null in empty slots
+    private final PageBytes[] recData;
+    private final int[] recOff;
+    private final int[] recLen;
+    // bytes reserved for the tuple deleted from each empty slot
+    private final int[] reserved;
+    // bytes not taken by the directory, records or reservations
+    private int free;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     * As with {@link HeapPage#HeapPage(HeapPageId, byte[])}, data is kept
+     * rather than copied, and tuples are decoded only when accessed.
+     *
+     * @throws IOException if data is not a slotted page
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, new PageBytes(data));
+    }
+
+    /**
+     * Create a SlottedHeapPage from data, e.g. a slice of a memory-mapped
+     * file, without copying it.
+     */
+    SlottedHeapPage(HeapPageId id, PageBytes data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    private SlottedHeapPage(HeapPageId id, TupleDesc td, PageBytes data) throws IOException {
+        super(id, td, data, maxSlots(td));
+        int pageSize = BufferPool.getPageSize();
+        if (pageSize > 1 << 16)
+            throw new IOException("slotted pages are at most 64 KB");
+        recData = new PageBytes[numSlots];
+        recOff = new int[numSlots];
+        recLen = new int[numSlots];
+        reserved = new int[numSlots];
+        slotCount = data.readShort(0);
+        if (slotCount > numSlots)
+            throw new IOException("not a slotted page: " + slotCount + " slots");
+        free = pageSize - HEADER_SIZE - slotCount * SLOT_SIZE;
+        for (int i = 0; i < slotCount; i++) {
+            int off = data.readShort(HEADER_SIZE + i * SLOT_SIZE);
+            int len = data.readShort(HEADER_SIZE + i * SLOT_SIZE + 2);
+            if (off == 0) {
+                reserved[i] = len;
+            } else {
+                if (off + len > pageSize)
+                    throw new IOException("record " + i + " lies past the end of the page");
+                recData[i] = data;
+                recOff[i] = off;
+                recLen[i] = len;
+            }
+            free -= len;
+        }
+    }
+
+    /**
+     * @return the most tuples of td a page can hold; each field takes two
+     *         bytes at least
+     */
+    private static int maxSlots(TupleDesc td) {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / (SLOT_SIZE + 2 * td.numFields());
+    }
+
+    @Override
+    HeapPage withData(PageBytes data) throws IOException {
+        return new SlottedHeapPage(pid, td, data);
+    }
+
+    @Override
+    Tuple getTuple(int i) {
+        Tuple t = tuples[i];
+        if (t != null)
+            return t;
+        synchronized (this) {
+            if (tuples[i] == null) {
+                t = new Tuple(td, recData[i], recOff[i], true);
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+            }
+            return tuples[i];
+        }
+    }
+
+    @Override
+    boolean matches(int i, Predicate p) {
+        PageBytes d;
+        int off;
+        synchronized (this) {
+            d = recData[i];
+            off = recOff[i];
+        }
+        int f = p.getField();
+        return d.read(b -> td.getFieldType(f).compare(p.getOp(), b,
+                td.getVarFieldOffset(b, off, f), p.getOperand()));
+    }
+
+    /** @return t in the variable-length record format */
+    private byte[] encode(Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                td.getFieldType(j).serialize(t.getField(j), td.getMaxLength(j), false, dos);
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * the records packed at the end of the page in slot order.
+     *
+     * @see #SlottedHeapPage
+     */
+    @Override
+    public synchronized byte[] getPageData() {
+        int pageSize = BufferPool.getPageSize();
+        byte[] page = new byte[pageSize];
+        int n = slotCount;
+        while (n > 0 && recData[n - 1] == null && reserved[n - 1] == 0)
+            n--;
+        writeShort(page, 0, n);
+        int end = pageSize;
+        for (int i = 0; i < n; i++) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            if (recData[i] == null) {
+                writeShort(page, slot + 2, reserved[i]);
+                continue;
+            }
+            end -= recLen[i];
+            recData[i].copy(recOff[i], page, end, recLen[i]);
+            writeShort(page, slot, end);
+            writeShort(page, slot + 2, recLen[i]);
+        }
+        return page;
+    }
+
+    private static void writeShort(byte[] data, int offset, int v) {
+        data[offset] = (byte) (v >> 8);
+        data[offset + 1] = (byte) v;
+    }
+
+    @Override
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        deleteTuple(t, false);
+    }
+
+    @Override
+    synchronized void deleteTuple(Tuple t, boolean keepSpace) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (!rid.getPageId().equals(pid))
+            throw new DbException("tuple is not on this page");
+        int i = rid.getTupleNumber();
+        if (!isSlotUsed(i))
+            throw new DbException("slot is already empty");
+        if (keepSpace)
+            reserved[i] = recLen[i];
+        else
+            free += recLen[i];
+        clear(i);
+    }
+
+    private void clear(int i) {
+        recData[i] = null;
+        recOff[i] = 0;
+        recLen[i] = 0;
+        tuples[i] = null;
+    }
+
+    private void place(int i, Tuple t, byte[] rec) {
+        recData[i] = new PageBytes(rec);
+        recOff[i] = 0;
+        recLen[i] = rec.length;
+        free -= rec.length;
+        tuples[i] = t;
+        t.setRecordId(new RecordId(pid, i));
+    }
+
+    /**
+     * Adds the specified tuple to the first empty slot that usable accepts,
+     * or to a new slot at the end of the directory if there is none. A slot
+     * usable accepts gives up the space reserved in it, since the delete
+     * that reserved it can no longer be undone.
+     *
+     * @return false if the tuple does not fit or no slot was usable
+     */
+    @Override
+    synchronized boolean insertTuple(Tuple t, IntPredicate usable) {
+        byte[] rec = encode(t);
+        int slot = -1;
+        for (int i = 0; i < slotCount && (slot < 0 || free < rec.length); i++) {
+            if (recData[i] == null && usable.test(i)) {
+                free += reserved[i];
+                reserved[i] = 0;
+                if (slot < 0)
+                    slot = i;
+            }
+        }
+        if (slot < 0) {
+            if (slotCount == numSlots || free < SLOT_SIZE + rec.length
+                    || !usable.test(slotCount))
+                return false;
+            slot = slotCount++;
+            free -= SLOT_SIZE;
+        } else if (free < rec.length) {
+            return false;
+        }
+        place(slot, t, rec);
+        return true;
+    }
+
+    @Override
+    synchronized void restoreTuple(int slot, Tuple t) {
+        byte[] rec = encode(t);
+        if (slot >= slotCount) {
+            // the slot was dropped from the end of the directory
+            free -= (slot + 1 - slotCount) * SLOT_SIZE;
+            slotCount = slot + 1;
+        }
+        free += reserved[slot];
+        reserved[slot] = 0;
+        if (free < rec.length)
+            throw new IllegalStateException("no room to restore tuple " + slot + " of " + pid);
+        place(slot, t, rec);
+    }
+
+    @Override
+    synchronized void clearSlot(int slot) {
+        free += recLen[slot];
+        clear(slot);
+    }
+
+    /**
+     * Returns an estimate of the number of tuples that still fit on this
+     * page: the free space, counting the reserved space, in records of the
+     * average size of those on the page, each with a new slot.
+     */
+    @Override
+    public synchronized int getNumEmptySlots() {
+        int records = 0, bytes = 0, room = free;
+        for (int i = 0; i < slotCount; i++) {
+            if (recData[i] != null) {
+                records++;
+                bytes += recLen[i];
+            }
+            room += reserved[i];
+        }
+        int size = SLOT_SIZE + (records == 0 ? 2 * td.numFields() : bytes / records);
+        return Math.min(numSlots - records, room / size);
+    }
+
+    @Override
+    public boolean isSlotUsed(int i) {
+        return recData[i] != null;
+    }
+
+}
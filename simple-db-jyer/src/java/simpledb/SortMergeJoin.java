@@ -0,0 +1,316 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs sorted on their join fields by merging
+ * them. Inputs that are not sorted in ascending order on the join field
+ * already, e.g. by an {@link OrderBy} or another merge join, are sorted
+ * through an OrderBy first, with the join's memory budget, past which it
+ * sorts externally.
+ * <p>
+ * The inner input is kept, and the outer input is streamed. As the outer
+ * join key only grows, the inner tuples that match each outer tuple are a
+ * range that only moves forward: the run of equal keys for
+ * {@link Predicate.Op#EQUALS}, the tuples with a greater key for
+ * {@link Predicate.Op#LESS_THAN}, those with a smaller one for
+ * {@link Predicate.Op#GREATER_THAN}, and so on. The merge thus never applies
+ * the predicate to a pair that does not match.
+ * <p>
+ * The inner tuples are held to a memory budget, given in buffer pool
+ * pages. Past it they are written to a spill file (see
+ * {@link SpillManager}), and the range of each outer tuple is read back
+ * from there, starting at its first tuple.
+ */
+public class SortMergeJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    /** System property with the default memory budget, in pages. */
+    public static final String MEMORY_PAGES_PROPERTY = "simpledb.mergeJoinPages";
+
+    /** Default memory budget: 64 pages. */
+    public static final int DEFAULT_MEMORY_PAGES = 64;
+
+    // a cursor on the spill file reads this far ahead rather than seek
+    private static final int READ_AHEAD = 64;
+
+    private static volatile int defaultMemoryPages = Integer.getInteger(MEMORY_PAGES_PROPERTY,
+            DEFAULT_MEMORY_PAGES);
+
+    private final int memoryPages;
+    // the inner tuples, by join field: in memory, or in innerFile once they
+    // outgrow the budget
+    private final ArrayList<Tuple> inner = new ArrayList<Tuple>();
+    private SpillManager.SpillFile innerFile;
+    private int innerSize;
+    // the first inner tuple with a key at least, and greater than, that of
+    // the outer tuple
+    private Cursor ge, gt;
+    // the outer tuple being joined, and its inner tuples left to return
+    private Tuple outer;
+    private Cursor pos;
+    private int end;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on, which must be one {@link #isMergeable} accepts.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, defaultMemoryPages);
+    }
+
+    /**
+     * Constructor, keeping up to memoryPages pages of inner tuples in
+     * memory, one tuple at least, and sorting each input within as many.
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            int memoryPages) {
+        super(p, sorted(child1, p.getField1(), memoryPages),
+                sorted(child2, p.getField2(), memoryPages));
+        if (!isMergeable(p.getOperator()))
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        this.memoryPages = memoryPages;
+    }
+
+    /** @return the memory budget of joins created without one, in pages */
+    public static int getDefaultMemoryPages() {
+        return defaultMemoryPages;
+    }
+
+    /**
+     * Set the memory budget of joins created without one, in pages. The
+     * default comes from the system property {@value #MEMORY_PAGES_PROPERTY}.
+     */
+    public static void setDefaultMemoryPages(int pages) {
+        defaultMemoryPages = pages;
+    }
+
+    /** @return the number of inner tuples kept in memory at most */
+    public int getMemoryTuples() {
+        return BlockNestedLoopJoin.tuplesPerBlock(child2.getTupleDesc(), memoryPages);
+    }
+
+    /** @return true if the inner tuples did not fit in memory and were spilled */
+    public boolean isSpilled() {
+        return innerFile != null;
+    }
+
+    /** @return true if a join on op can be computed by merging sorted inputs */
+    public static boolean isMergeable(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the tuples of it come in ascending order of field: it
+     *         is an OrderBy on field, or a merge join whose output is sorted
+     *         on it
+     */
+    public static boolean isSortedOn(OpIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof SortMergeJoin) {
+            // the output follows the outer input, and for an equality also
+            // the inner one, whose key is the same
+            JoinPredicate p = ((SortMergeJoin) it).getJoinPredicate();
+            int n1 = ((SortMergeJoin) it).child1.getTupleDesc().numFields();
+            return field == p.getField1()
+                    || (p.getOperator() == Predicate.Op.EQUALS && field == n1 + p.getField2());
+        }
+        return false;
+    }
+
+    /**
+     * @return it, or it sorted on field within memoryPages pages if it is not
+     *         sorted on it yet
+     */
+    private static OpIterator sorted(OpIterator it, int field, int memoryPages) {
+        return isSortedOn(it, field) ? it : new OrderBy(field, true, it, memoryPages);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        discard();
+        int capacity = getMemoryTuples();
+        while (child2.hasNext()) {
+            Tuple t = child2.next();
+            innerSize++;
+            if (innerFile != null) {
+                innerFile.add(t);
+                continue;
+            }
+            inner.add(t);
+            if (inner.size() > capacity) {
+                innerFile = Database.getSpillManager().create(child2.getTupleDesc());
+                for (Tuple u : inner)
+                    innerFile.add(u);
+                inner.clear();
+            }
+        }
+        ge = new Cursor();
+        gt = new Cursor();
+        pos = new Cursor();
+        start();
+    }
+
+    public void close() {
+        super.close();
+        discard();
+        outer = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the inner tuples are kept
+        child1.rewind();
+        start();
+    }
+
+    private void start() {
+        outer = null;
+        ge.reset();
+        gt.reset();
+        pos.reset();
+        end = 0;
+    }
+
+    /** Drop the inner tuples */
+    private void discard() {
+        for (Cursor c : new Cursor[] { ge, gt, pos })
+            if (c != null)
+                c.reset();
+        ge = gt = pos = null;
+        inner.clear();
+        if (innerFile != null) {
+            innerFile.delete();
+            innerFile = null;
+        }
+        innerSize = 0;
+    }
+
+    /**
+     * A position in the inner tuples, and the tuple there. Spilled tuples
+     * are read from the file as the cursor moves on.
+     */
+    private class Cursor {
+        int at;
+        // reads the spilled tuples from at on, or from at + 1 once the
+        // tuple at has been read into current
+        private OpIterator in;
+        private Tuple current;
+
+        /** Move to the ith inner tuple */
+        void seek(int i) throws DbException, TransactionAbortedException {
+            if (in != null && i >= at && i - at <= READ_AHEAD) {
+                while (at < i)
+                    advance();
+                return;
+            }
+            reset();
+            at = i;
+        }
+
+        Tuple get() throws DbException, TransactionAbortedException {
+            if (innerFile == null)
+                return inner.get(at);
+            if (current == null) {
+                if (in == null) {
+                    in = innerFile.iterator(at);
+                    in.open();
+                }
+                current = in.next();
+            }
+            return current;
+        }
+
+        Field key() throws DbException, TransactionAbortedException {
+            return get().getField(p.getField2());
+        }
+
+        void advance() throws DbException, TransactionAbortedException {
+            if (in != null && current == null)
+                in.next();
+            current = null;
+            at++;
+        }
+
+        /** Move back to the first inner tuple */
+        void reset() {
+            if (in != null)
+                in.close();
+            in = null;
+            current = null;
+            at = 0;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The output comes in the order of the outer input, that is
+     * in ascending order of its join field, and for each outer tuple in the
+     * order of the inner one.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (pos.at < end) {
+                Tuple t = pos.get();
+                pos.advance();
+                return merge(outer, t);
+            }
+            if (!child1.hasNext())
+                return null;
+            outer = child1.next();
+            Field key = outer.getField(p.getField1());
+            // both only move forward, as the outer keys only grow
+            while (ge.at < innerSize && ge.key().compare(Predicate.Op.LESS_THAN, key))
+                ge.advance();
+            if (gt.at < ge.at)
+                gt.seek(ge.at);
+            while (gt.at < innerSize && !gt.key().compare(Predicate.Op.GREATER_THAN, key))
+                gt.advance();
+            switch (p.getOperator()) {
+            case EQUALS:
+                pos.seek(ge.at);
+                end = gt.at;
+                break;
+            case LESS_THAN:
+                pos.seek(gt.at);
+                end = innerSize;
+                break;
+            case LESS_THAN_OR_EQ:
+                pos.seek(ge.at);
+                end = innerSize;
+                break;
+            case GREATER_THAN:
+                pos.seek(0);
+                end = ge.at;
+                break;
+            default: // GREATER_THAN_OR_EQ
+                pos.seek(0);
+                end = gt.at;
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SpillManager creates the temporary files that operators write tuples to
+ * when their input does not fit in their memory budget, e.g. the partitions
+ * of a {@link HashEquiJoin}. Tuples are stored in the variable-length record
+ * format and read back in the order they were written. The operator that
+ * creates a file deletes it when done; the manager keeps count of the files
+ * still around and of the tuples spilled.
+ *
+ * @Threadsafe
+ */
+public class SpillManager {
+
+    /** System property with the directory of spill files; the default is java.io.tmpdir. */
+    public static final String SPILL_DIR_PROPERTY = "simpledb.spillDir";
+
+    private final File dir;
+    private final Set<File> files = Collections.synchronizedSet(new HashSet<File>());
+    private final AtomicLong spilledTuples = new AtomicLong();
+
+    /** Create a manager that spills to the configured directory */
+    public SpillManager() {
+        String dir = System.getProperty(SPILL_DIR_PROPERTY);
+        this.dir = dir == null ? null : new File(dir);
+    }
+
+    /**
+     * Create an empty spill file for tuples of td.
+     *
+     * @throws DbException if the file cannot be created
+     */
+    public SpillFile create(TupleDesc td) throws DbException {
+        try {
+            File f = File.createTempFile("spill", ".tmp", dir);
+            f.deleteOnExit();
+            files.add(f);
+            return new SpillFile(f, td);
+        } catch (IOException e) {
+            throw new DbException("cannot create spill file: " + e.getMessage());
+        }
+    }
+
+    /** @return the number of spill files created and not deleted yet */
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /** @return the number of tuples written to spill files so far */
+    public long getSpilledTuples() {
+        return spilledTuples.get();
+    }
+
+    // every how many tuples a spill file notes the offset to start reading at
+    private static final int SEEK_STRIDE = 64;
+
+    /**
+     * A temporary file of tuples, written with {@link #add} and then read
+     * back, as often as needed and from any tuple on, with {@link #iterator}.
+     */
+    public class SpillFile {
+        private final File file;
+        private final TupleDesc td;
+        private DataOutputStream out;
+        private int size;
+        private long bytes;
+        // the offset of tuples 0, SEEK_STRIDE, 2 * SEEK_STRIDE, ...
+        private final ArrayList<Long> marks = new ArrayList<Long>();
+
+        private SpillFile(File file, TupleDesc td) throws IOException {
+            this.file = file;
+            this.td = td;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    BufferPool.getPageSize()));
+        }
+
+        /** Append t, a tuple of the file's TupleDesc, to the file */
+        public void add(Tuple t) throws DbException {
+            if (out == null)
+                throw new IllegalStateException("spill file is already being read");
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            try {
+                for (int j = 0; j < td.numFields(); j++)
+                    td.getFieldType(j).serialize(t.getField(j), td.getMaxLength(j), false, dos);
+                out.writeInt(baos.size());
+                baos.writeTo(out);
+            } catch (IOException e) {
+                throw new DbException("cannot write spill file: " + e.getMessage());
+            }
+            if (size % SEEK_STRIDE == 0)
+                marks.add(bytes);
+            bytes += 4 + baos.size();
+            size++;
+            spilledTuples.incrementAndGet();
+        }
+
+        /** @return the number of tuples in the file */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return an iterator over the tuples of the file, in the order they
+         *         were added; no more can be added afterwards
+         */
+        public OpIterator iterator() throws DbException {
+            return iterator(0);
+        }
+
+        /**
+         * @return an iterator over the tuples of the file from the from-th
+         *         one on; no more can be added afterwards
+         */
+        public OpIterator iterator(int from) throws DbException {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    throw new DbException("cannot write spill file: " + e.getMessage());
+                }
+                out = null;
+            }
+            return new Scan(Math.min(Math.max(from, 0), size));
+        }
+
+        /** Delete the file */
+        public void delete() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // it is going away anyway
+                }
+                out = null;
+            }
+            file.delete();
+            files.remove(file);
+        }
+
+        /** Reads the tuples of the file back */
+        private class Scan extends Operator {
+
+            private static final long serialVersionUID = 1L;
+            private final int from;
+            private transient DataInputStream in;
+            private int read;
+
+            Scan(int from) {
+                this.from = from;
+            }
+
+            public void open() throws DbException, TransactionAbortedException {
+                try {
+                    FileInputStream f = new FileInputStream(file);
+                    read = from - from % SEEK_STRIDE;
+                    if (read < size)
+                        f.getChannel().position(marks.get(read / SEEK_STRIDE));
+                    in = new DataInputStream(new BufferedInputStream(f, BufferPool.getPageSize()));
+                    for (; read < from; read++)
+                        in.skipBytes(in.readInt());
+                } catch (IOException e) {
+                    throw new DbException("cannot read spill file: " + e.getMessage());
+                }
+                super.open();
+            }
+
+            public void close() {
+                super.close();
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // nothing was written through it
+                    }
+                    in = null;
+                }
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                open();
+            }
+
+            protected Tuple fetchNext() throws DbException {
+                if (read == size)
+                    return null;
+                try {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    read++;
+                    return new Tuple(td, data, 0, true);
+                } catch (IOException e) {
+                    throw new DbException("cannot read spill file: " + e.getMessage());
+                }
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public OpIterator[] getChildren() {
+                return new OpIterator[0];
+            }
+
+            public void setChildren(OpIterator[] children) {
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -56,6 +57,9 @@ public class TableStats {
             int tableid = tableIt.next();
             TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
             setTableStats(Database.getCatalog().getTableName(tableid), s);
+            if (s.getCompressionRatio() != 1)
+                System.out.printf("%s: compression ratio %.2f%n",
+                        Database.getCatalog().getTableName(tableid), s.getCompressionRatio());
         }
         System.out.println("Done.");
     }
@@ -77,13 +81,22 @@ public class TableStats {
      *            The cost per page of IO. This doesn't differentiate between
      *            sequential-scan IO and disk seeks.
      */
-    private HeapFile hf;
+    private DbFile hf;
     private int ioCostPerPage;
     private int tupleNum;
+    private double compressionRatio = 1;
     
     public TableStats(int tableid, int ioCostPerPage) {
-    	hf =(HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+    	hf = Database.getCatalog().getDatabaseFile(tableid);
     	this.ioCostPerPage = ioCostPerPage;
+    	try {
+    		if (hf instanceof HeapFile)
+    			compressionRatio = ((HeapFile) hf).getCompressionRatio();
+    		else if (hf instanceof ColumnarFile)
+    			compressionRatio = ((ColumnarFile) hf).getCompressionRatio();
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    	}
     	DbFileIterator ite = hf.iterator(new TransactionId());
     	try {
 			ite.open();
@@ -119,11 +132,31 @@ public class TableStats {
      * expensive to read as a full page. (Most real hard drives can't
      * efficiently address regions smaller than a page at a time.)
      * 
+     * A compressed table costs its pages' share of the bytes read.
+     * 
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
         // some code goes here
-        return hf.numPages() * ioCostPerPage;
+        return numPages() * ioCostPerPage / compressionRatio;
+    }
+
+    /**
+     * @return the size of the table's pages over the space they take on
+     *         disk; 1 unless the table is stored compressed
+     */
+    public double getCompressionRatio() {
+        return compressionRatio;
+    }
+
+    /**
+     * @return the number of pages of the table; for a ColumnarFile, of all
+     *         its columns, as a scan may read them all
+     */
+    private int numPages() {
+    	if (hf instanceof ColumnarFile)
+    		return ((ColumnarFile) hf).numPages();
+    	return ((HeapFile) hf).numPages();
     }
 
     /**
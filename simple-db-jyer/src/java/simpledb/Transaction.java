@@ -9,15 +9,27 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true for a transaction that only reads; it reads a
+     *        snapshot of the database as of start() and takes no locks
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly)
+            Database.getBufferPool().beginSnapshot(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,6 +41,11 @@ public class Transaction {
         return tid;
     }
 
+    /** @return true if this transaction reads a snapshot and cannot write */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -49,14 +66,15 @@ public class Transaction {
             } 
 
             // Release locks and flush pages if needed
+            boolean logged = false;
             try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+                logged = Database.getBufferPool().transactionComplete(tid, !abort); // release locks
             } catch (IOException e) {
                 e.printStackTrace();
             }
             
-            // write commit log record
-            if (!abort) {
+            // write commit log record, unless the buffer pool had to already
+            if (!abort && !logged) {
             	Database.getLogFile().logCommit(tid);
             }
 
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import java.util.Arrays;
@@ -19,6 +21,12 @@ public class Tuple implements Serializable {
     private Field[] fields;
     private TupleDesc TD;
     private RecordId rid;
+    // encoded fields not decoded yet, or null
+    private transient PageBytes data;
+    private int offset;
+    // whether data holds the variable-length record format
+    private transient boolean varLength;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -32,6 +40,51 @@ public class Tuple implements Serializable {
         // some code goes here
     }
 
+    /**
+     * Create a tuple whose fields are encoded at offset in data, e.g. in the
+     * raw data of a page. Each field is decoded when it is first read.
+     */
+    Tuple(TupleDesc td, PageBytes data, int offset) {
+    	this(td, data, offset, false);
+    }
+
+    /**
+     * Create a tuple encoded at offset in data, in the variable-length record
+     * format if varLength is true; data must not change while it is in use.
+     *
+     * @see TupleDesc#getVarFieldOffset
+     */
+    Tuple(TupleDesc td, byte[] data, int offset, boolean varLength) {
+    	this(td, new PageBytes(data), offset, varLength);
+    }
+
+    /**
+     * Create a tuple encoded at offset in data, in the variable-length record
+     * format if varLength is true.
+     */
+    Tuple(TupleDesc td, PageBytes data, int offset, boolean varLength) {
+    	this(td);
+    	this.data = data;
+    	this.offset = offset;
+    	this.varLength = varLength;
+    }
+
+    /**
+     * @return true if this tuple's fields are still exactly the ones encoded
+     *         in data
+     */
+    boolean isEncodedIn(PageBytes data) {
+    	return data != null && this.data == data;
+    }
+
+    private void decodeAll() {
+    	if (data == null)
+    		return;
+    	for (int i = 0; i < fields.length; i++)
+    		getField(i);
+    	data = null;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -69,6 +122,7 @@ public class Tuple implements Serializable {
      *            new value for the field.
      */
     public void setField(int i, Field f) {
+    	decodeAll();
     	fields[i] = f;
         // some code goes here
     }
@@ -81,7 +135,14 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields[i];
+    	Field f = fields[i];
+    	PageBytes d = data;
+    	if (f == null && d != null) {
+    		f = d.read(b -> TD.getFieldType(i).parse(b, varLength
+    				? TD.getVarFieldOffset(b, offset, i) : offset + TD.getFieldOffset(i)));
+    		fields[i] = f;
+    	}
+        return f;
     }
 
     /**
@@ -94,6 +155,7 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
+    	decodeAll();
     	String s = "";
     	int i = 0;
         while (i < fields.length - 1) {
@@ -111,6 +173,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+    	decodeAll();
         return Arrays.asList(fields).iterator();
     }
 
@@ -119,8 +182,14 @@ public class Tuple implements Serializable {
      * */
     public void resetTupleDesc(TupleDesc td)
     {
+    	decodeAll();
     	TD = td;
         // some code goes here
     }
-    
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+    	decodeAll();
+    	out.defaultWriteObject();
+    }
+
 }
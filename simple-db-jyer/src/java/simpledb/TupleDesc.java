@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -26,9 +27,20 @@ public class TupleDesc implements Serializable {
          * */
         public final String fieldName;
 
+        /**
+         * The maximum number of characters of a string field, e.g. n for a
+         * VARCHAR(n) column
+         * */
+        public final int maxLength;
+
         public TDItem(Type t, String n) {
+            this(t, n, Type.STRING_LEN);
+        }
+
+        public TDItem(Type t, String n, int maxLength) {
             this.fieldName = n;
             this.fieldType = t;
+            this.maxLength = maxLength;
         }
 
         public String toString() {
@@ -69,6 +81,20 @@ public class TupleDesc implements Serializable {
         // some code goes here
     }
 
+    /**
+     * Create a new TupleDesc with typeAr.length fields with fields of the
+     * specified types, names and maximum string lengths, e.g. n for a
+     * {@link Type#VARCHAR_TYPE} field declared VARCHAR(n).
+     */
+    public TupleDesc(Type[] typeAr, String[] fieldAr, int[] maxLengthAr) {
+    	if (typeAr.length != fieldAr.length || typeAr.length != maxLengthAr.length)
+    		throw new IllegalArgumentException();
+    	items = new ArrayList<TDItem>();
+    	for (int i = 0; i < typeAr.length; i++) {
+    		items.add(new TDItem(typeAr[i], fieldAr[i], maxLengthAr[i]));
+    	}
+    }
+
     /**
      * Constructor. Create a new tuple desc with typeAr.length fields with
      * fields of the specified types, with anonymous (unnamed) fields.
@@ -122,6 +148,14 @@ public class TupleDesc implements Serializable {
         return items.get(i).fieldType;
     }
 
+    /**
+     * @return the maximum number of characters of the ith field, if it is a
+     *         string; {@link Type#STRING_LEN} unless specified
+     */
+    public int getMaxLength(int i) {
+        return items.get(i).maxLength;
+    }
+
     /**
      * Find the index of the field with a given name.
      * 
@@ -142,17 +176,48 @@ public class TupleDesc implements Serializable {
 
     /**
      * @return The size (in bytes) of tuples corresponding to this TupleDesc.
-     *         Note that tuples from a given TupleDesc are of a fixed size.
+     *         Note that tuples from a given TupleDesc are of a fixed size
+     *         in a fixed-size slot; strings are padded to their maximum length.
      */
     public int getSize() {
     	int size = 0;
     	for (TDItem item : items) {
-    		size += item.fieldType.getLen();
+    		size += item.fieldType.getLen(item.maxLength);
     	}
         // some code goes here
         return size;
     }
 
+    /**
+     * @return The offset (in bytes) of the ith field within a serialized
+     *         tuple of this TupleDesc.
+     */
+    public int getFieldOffset(int i) {
+        int offset = 0;
+        for (int j = 0; j < i; j++)
+            offset += getFieldType(j).getLen(getMaxLength(j));
+        return offset;
+    }
+
+    /**
+     * @return The offset in data of the ith field of the tuple encoded at
+     *         offset in the variable-length record format.
+     * @see Type#getVarLen
+     */
+    public int getVarFieldOffset(byte[] data, int offset, int i) {
+        return getVarFieldOffset(ByteBuffer.wrap(data), offset, i);
+    }
+
+    /**
+     * As {@link #getVarFieldOffset(byte[], int, int)}, for a tuple at
+     * absolute offset in a buffer, e.g. a slice of a memory-mapped file.
+     */
+    public int getVarFieldOffset(ByteBuffer data, int offset, int i) {
+        for (int j = 0; j < i; j++)
+            offset += getFieldType(j).getVarLen(data, offset);
+        return offset;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -167,15 +232,18 @@ public class TupleDesc implements Serializable {
     	int num = td1.numFields() + td2.numFields();
     	Type[] typeAr = new Type[num];
     	String[] fieldAr = new String[num];
+    	int[] maxLengthAr = new int[num];
     	for (int i = 0; i < td1.numFields(); i++) {
     		typeAr[i] = td1.getFieldType(i);
     		fieldAr[i] = td1.getFieldName(i);
+    		maxLengthAr[i] = td1.getMaxLength(i);
     	}
     	for (int i = td1.numFields(), j = 0; i < num; i++, j++) {
     		typeAr[i] = td2.getFieldType(j);
     		fieldAr[i] = td2.getFieldName(j);	
+    		maxLengthAr[i] = td2.getMaxLength(j);
     	}
-    	return new TupleDesc(typeAr, fieldAr);
+    	return new TupleDesc(typeAr, fieldAr, maxLengthAr);
     	
     }
 
@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TwoQPolicy implements the full 2Q algorithm (Johnson and Shasha). Pages
+ * seen for the first time enter a FIFO queue, A1in. When they are evicted
+ * from there only their ids are remembered in a ghost queue, A1out. A page
+ * that comes back while still in A1out has proven it is hot and is promoted
+ * to the main LRU queue, Am. Pages touched once by a scan thus cycle through
+ * A1in without disturbing Am.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    // FIFO order, oldest first
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    // ids only; the pages themselves are no longer resident
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    // LRU order, least recently used first
+    private final LinkedHashMap<PageId, Boolean> am =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    /**
+     * @param numPages capacity of the buffer pool; A1in is sized to a quarter
+     *        of it and A1out remembers half as many page ids
+     */
+    public TwoQPolicy(int numPages) {
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // a hit in A1in is deliberately ignored: it is likely correlated
+        am.get(pid);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (a1in.contains(pid) || am.containsKey(pid))
+            return;
+        if (a1out.remove(pid))
+            am.put(pid, Boolean.TRUE);
+        else
+            a1in.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId victim(java.util.function.Predicate<PageId> evictable) {
+        PageId pid = null;
+        if (a1in.size() > kin || am.isEmpty())
+            pid = first(a1in, evictable);
+        if (pid == null)
+            pid = first(am.keySet(), evictable);
+        if (pid == null)
+            pid = first(a1in, evictable);
+        return pid;
+    }
+
+    private static PageId first(Collection<PageId> queue,
+            java.util.function.Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid))
+                return pid;
+        }
+        return null;
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,44 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer data, int offset) {
+            return new IntField(data.getInt(offset));
+        }
+
+        @Override
+        public boolean compare(Predicate.Op op, ByteBuffer data, int offset, Field operand) {
+            int v = data.getInt(offset);
+            int w = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                return v == w;
+            case NOT_EQUALS:
+                return v != w;
+            case GREATER_THAN:
+                return v > w;
+            case GREATER_THAN_OR_EQ:
+                return v >= w;
+            case LESS_THAN:
+                return v < w;
+            case LESS_THAN_OR_EQ:
+                return v <= w;
+            }
+            return false;
+        }
+
+        @Override
+        public int getVarLen(ByteBuffer data, int offset) {
+            return 4;
+        }
+
+        @Override
+        public void serialize(Field f, int maxLength, boolean pad, DataOutputStream dos)
+                throws IOException {
+            f.serialize(dos);
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +81,84 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer data, int offset) {
+            int strLen = data.getInt(offset);
+            return new StringField(readString(data, offset + 4, strLen), STRING_LEN);
+        }
+
+        @Override
+        public boolean compare(Predicate.Op op, ByteBuffer data, int offset, Field operand) {
+            return compareString(op, data, offset + 4, data.getInt(offset), operand);
+        }
+
+        @Override
+        public int getVarLen(ByteBuffer data, int offset) {
+            return 4 + data.getInt(offset);
+        }
+
+        @Override
+        public void serialize(Field f, int maxLength, boolean pad, DataOutputStream dos)
+                throws IOException {
+            String s = ((StringField) f).getValue();
+            if (s.length() > STRING_LEN)
+                s = s.substring(0, STRING_LEN);
+            dos.writeInt(s.length());
+            dos.writeBytes(s);
+            for (int i = s.length(); pad && i < STRING_LEN; i++)
+                dos.write(0);
+        }
+
+    }, VARCHAR_TYPE() {
+        @Override
+        public int getLen() {
+            return getLen(STRING_LEN);
+        }
+
+        @Override
+        public int getLen(int maxLength) {
+            return maxLength + 2;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                byte bs[] = new byte[dis.readUnsignedShort()];
+                dis.readFully(bs);
+                return new StringField(new String(bs), bs.length);
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public Field parse(ByteBuffer data, int offset) {
+            int strLen = readShort(data, offset);
+            return new StringField(readString(data, offset + 2, strLen), strLen);
+        }
+
+        @Override
+        public boolean compare(Predicate.Op op, ByteBuffer data, int offset, Field operand) {
+            return compareString(op, data, offset + 2, readShort(data, offset), operand);
+        }
+
+        @Override
+        public int getVarLen(ByteBuffer data, int offset) {
+            return 2 + readShort(data, offset);
+        }
+
+        @Override
+        public void serialize(Field f, int maxLength, boolean pad, DataOutputStream dos)
+                throws IOException {
+            String s = ((StringField) f).getValue();
+            if (s.length() > maxLength)
+                s = s.substring(0, maxLength);
+            dos.writeShort(s.length());
+            dos.writeBytes(s);
+            for (int i = s.length(); pad && i < maxLength; i++)
+                dos.write(0);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -51,6 +168,39 @@ public enum Type implements Serializable {
    */
     public abstract int getLen();
 
+  /**
+   * @return the number of bytes required to store a field of this type in a
+   *   fixed-size slot of a column whose strings have at most maxLength
+   *   characters; only {@link #VARCHAR_TYPE} depends on maxLength.
+   */
+    public int getLen(int maxLength) {
+        return getLen();
+    }
+
+  /**
+   * @return the number of bytes of the field encoded at offset in data in
+   *   the variable-length record format, which leaves strings unpadded.
+   * @see #serialize
+   */
+    public int getVarLen(byte[] data, int offset) {
+        return getVarLen(ByteBuffer.wrap(data), offset);
+    }
+
+  /**
+   * As {@link #getVarLen(byte[], int)}, for a field at absolute offset in
+   *   a buffer, e.g. a slice of a memory-mapped file.
+   */
+    public abstract int getVarLen(ByteBuffer data, int offset);
+
+  /**
+   * Write f, a field of this type, to dos. Strings are cut to maxLength
+   * characters and, if pad is true, padded to the fixed length
+   * {@link #getLen(int)}; otherwise they take only the bytes they need.
+   * Either encoding can be read back with {@link #parse(byte[], int)}.
+   */
+    public abstract void serialize(Field f, int maxLength, boolean pad, DataOutputStream dos)
+            throws IOException;
+
   /**
    * @return a Field object of the same type as this object that has contents
    *   read from the specified DataInputStream.
@@ -60,4 +210,112 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified array, e.g. the raw data of a page.
+   * @param data The array to read from
+   * @param offset The offset of the field in data
+   */
+    public Field parse(byte[] data, int offset) {
+        return parse(ByteBuffer.wrap(data), offset);
+    }
+
+  /**
+   * As {@link #parse(byte[], int)}, for a field at absolute offset in a
+   *   buffer, e.g. a slice of a memory-mapped file.
+   */
+    public abstract Field parse(ByteBuffer data, int offset);
+
+  /**
+   * Compare the field encoded at offset in data to operand, as
+   * {@link Field#compare} would after parsing it, but without creating a
+   * Field when the encoded bytes suffice.
+   * @param op The operator
+   * @param data The array holding the encoded field
+   * @param offset The offset of the field in data
+   * @param operand The value to compare the field to; of this type
+   * @return Whether or not the comparison yields true.
+   */
+    public boolean compare(Predicate.Op op, byte[] data, int offset, Field operand) {
+        return compare(op, ByteBuffer.wrap(data), offset, operand);
+    }
+
+  /**
+   * As {@link #compare(Predicate.Op, byte[], int, Field)}, for a field at
+   *   absolute offset in a buffer, e.g. a slice of a memory-mapped file.
+   */
+    public abstract boolean compare(Predicate.Op op, ByteBuffer data, int offset, Field operand);
+
+    /**
+     * Compare the len string bytes at start in data to operand, a
+     * StringField, without decoding them where possible.
+     */
+    private static boolean compareString(Predicate.Op op, ByteBuffer data, int start, int len,
+            Field operand) {
+        String w = ((StringField) operand).getValue();
+        for (int i = start; i < start + len; i++) {
+            // only ASCII decodes to one char per byte
+            if (data.get(i) < 0)
+                return new StringField(readString(data, start, len), len).compare(op, operand);
+        }
+        if (op == Predicate.Op.LIKE)
+            return indexOf(data, start, len, w) >= 0;
+        int cmp = len - w.length();
+        for (int i = 0; i < Math.min(len, w.length()); i++) {
+            if (data.get(start + i) != w.charAt(i)) {
+                cmp = data.get(start + i) - w.charAt(i);
+                break;
+            }
+        }
+        switch (op) {
+        case EQUALS:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        default:
+            return false;
+        }
+    }
+
+    private static int indexOf(ByteBuffer data, int start, int len, String w) {
+        outer:
+        for (int i = 0; i + w.length() <= len; i++) {
+            for (int j = 0; j < w.length(); j++) {
+                if (data.get(start + i + j) != w.charAt(j))
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /** Read a big-endian unsigned short. */
+    static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    /** Read a big-endian unsigned short at absolute offset in data. */
+    static int readShort(ByteBuffer data, int offset) {
+        return data.getShort(offset) & 0xffff;
+    }
+
+    /** @return the len bytes at absolute offset in data as a string */
+    private static String readString(ByteBuffer data, int offset, int len) {
+        if (data.hasArray())
+            return new String(data.array(), data.arrayOffset() + offset, len);
+        byte[] bs = new byte[len];
+        ByteBuffer d = data.duplicate();
+        d.position(offset);
+        d.get(bs);
+        return new String(bs);
+    }
+
 }
@@ -107,6 +107,9 @@ public class Utility {
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
         fos.close();
+        // and forget what was stored there before
+        HeapFile.freeSpaceMapFile(f).delete();
+        HeapFile.checksumFile(f).delete();
 
         HeapFile hf = openHeapFile(cols, f);
         HeapPageId pid = new HeapPageId(hf.getId(), 0);
@@ -0,0 +1,168 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the old committed versions of pages that read-only
+ * snapshot transactions may still need, so that they read a consistent
+ * snapshot of the database without taking locks.
+ * <p>
+ * Every writer commit takes the next commit timestamp. A snapshot begins
+ * at the last timestamp handed out and sees exactly the commits up to it.
+ * The committed version of a resident page is its before image, which
+ * BufferPool brings up to date at commit. When a commit replaces it while
+ * snapshots are running, the old image is kept here with the timestamp
+ * that superseded it; a snapshot reads the first version superseded after
+ * it began, or the current before image if there is none. Versions no
+ * running snapshot can see are dropped as snapshots end.
+ * <p>
+ * BufferPool may write a dirty page to disk before its writer commits, so
+ * the disk copy of a page is not always committed. Its committed image is
+ * then kept here ("stolen") until the page is read back in, when it
+ * becomes the before image again, or until the writer completes.
+ * <p>
+ * All methods are called by BufferPool and hold only this object's
+ * monitor, never another lock, while they run.
+ */
+class VersionStore {
+
+    /** A committed page image and the commit that replaced it. */
+    private static class Version {
+        final long supersededAt;
+        final Page image;
+
+        Version(long supersededAt, Page image) {
+            this.supersededAt = supersededAt;
+            this.image = image;
+        }
+    }
+
+    /** The committed image of a page flushed with tid's uncommitted changes. */
+    private static class Stolen {
+        final TransactionId tid;
+        final Page image;
+
+        Stolen(TransactionId tid, Page image) {
+            this.tid = tid;
+            this.image = image;
+        }
+    }
+
+    // timestamp of the last commit
+    private long clock;
+    // running snapshots and the timestamp each one reads at
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    // old versions of each page, oldest first
+    private final Map<PageId, LinkedList<Version>> versions = new HashMap<>();
+    private final Map<PageId, Stolen> stolen = new HashMap<>();
+
+    /** Start a snapshot for tid that sees every commit so far. */
+    public synchronized void begin(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /** @return true if tid is a running snapshot transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * End tid's snapshot and drop the versions no other snapshot can see.
+     *
+     * @return false if tid was not a snapshot transaction
+     */
+    public synchronized boolean end(TransactionId tid) {
+        if (snapshots.remove(tid) == null)
+            return false;
+        long oldest = Long.MAX_VALUE;
+        for (long ts : snapshots.values())
+            oldest = Math.min(oldest, ts);
+        Iterator<LinkedList<Version>> it = versions.values().iterator();
+        while (it.hasNext()) {
+            LinkedList<Version> chain = it.next();
+            while (!chain.isEmpty() && chain.getFirst().supersededAt <= oldest)
+                chain.removeFirst();
+            if (chain.isEmpty())
+                it.remove();
+        }
+        return true;
+    }
+
+    /**
+     * @param page the page as read through the buffer pool
+     * @return the version of page tid's snapshot sees
+     */
+    public synchronized Page read(TransactionId tid, Page page) {
+        Long ts = snapshots.get(tid);
+        LinkedList<Version> chain = versions.get(page.getId());
+        if (ts != null && chain != null) {
+            for (Version v : chain) {
+                if (v.supersededAt > ts)
+                    return v.image;
+            }
+        }
+        return page.getBeforeImage();
+    }
+
+    /**
+     * Publish tid's commit: each page's before image is replaced by its new
+     * committed image, and so are the images of tid's stolen pages, which
+     * are now committed on disk.
+     *
+     * @param images the pages tid changed, each with its new committed image,
+     *        or null if that is the page's current data
+     */
+    public synchronized void commit(TransactionId tid, Map<Page, byte[]> images) {
+        long ts = ++clock;
+        boolean keep = !snapshots.isEmpty();
+        for (Map.Entry<Page, byte[]> e : images.entrySet()) {
+            Page page = e.getKey();
+            if (keep)
+                retire(page.getId(), ts, page.getBeforeImage());
+            if (e.getValue() == null)
+                page.setBeforeImage();
+            else
+                ((HeapPage) page).setBeforeImage(e.getValue());
+        }
+        Iterator<Map.Entry<PageId, Stolen>> it = stolen.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PageId, Stolen> e = it.next();
+            if (e.getValue().tid.equals(tid)) {
+                if (keep)
+                    retire(e.getKey(), ts, e.getValue().image);
+                it.remove();
+            }
+        }
+    }
+
+    private void retire(PageId pid, long ts, Page image) {
+        versions.computeIfAbsent(pid, k -> new LinkedList<>()).addLast(new Version(ts, image));
+    }
+
+    /** Remember the committed image of page, which is about to be flushed dirty. */
+    public synchronized void steal(Page page) {
+        stolen.put(page.getId(), new Stolen(page.isDirty(), page.getBeforeImage()));
+    }
+
+    /**
+     * Forget the stolen images of tid's pages, which are committed or rolled
+     * back on disk.
+     */
+    public synchronized void forget(TransactionId tid) {
+        stolen.values().removeIf(s -> s.tid.equals(tid));
+    }
+
+    /**
+     * Give a page just read from disk its committed image, if it was
+     * stolen, and mark it dirty again. The caller adds it to the buffer pool
+     * under this object's monitor, so that no snapshot sees it in between.
+     */
+    public void restore(Page page) {
+        Stolen s = stolen.remove(page.getId());
+        if (s != null) {
+            ((HeapPage) page).setBeforeImage(s.image.getPageData());
+            page.markDirty(true, s.tid);
+        }
+    }
+}
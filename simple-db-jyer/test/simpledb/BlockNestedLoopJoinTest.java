@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BlockNestedLoopJoinTest extends SimpleDbTestBase {
+
+    /** A MockScan that counts how often it is rewound. */
+    private static class CountingScan extends TestUtil.MockScan {
+        int rewinds;
+
+        CountingScan(int low, int high, int width) {
+            super(low, high, width);
+        }
+
+        public void rewind() {
+            rewinds++;
+            super.rewind();
+        }
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /** The join returns the same tuples as Join, for any block size. */
+    @Test public void sameAsJoin() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN }) {
+            JoinPredicate pred = new JoinPredicate(0, op, 0);
+            for (int pages : new int[] { 0, 1, 16 }) {
+                Join expected = new Join(pred, new TestUtil.MockScan(0, 3000, 1),
+                        new TestUtil.MockScan(-50, 200, 2));
+                BlockNestedLoopJoin actual = new BlockNestedLoopJoin(pred,
+                        new TestUtil.MockScan(0, 3000, 1), new TestUtil.MockScan(-50, 200, 2), pages);
+                expected.open();
+                actual.open();
+                int n = count(expected);
+                assertEquals(n, count(actual));
+                if (op == Predicate.Op.EQUALS) {
+                    assertEquals(200, n);
+                    expected.rewind();
+                    TestUtil.matchAllTuples(expected, actual);
+                }
+                actual.rewind();
+                assertEquals(n, count(actual));
+                expected.close();
+                actual.close();
+            }
+        }
+    }
+
+    /** The inner input is scanned once per block of outer tuples. */
+    @Test public void innerScannedPerBlock() throws Exception {
+        TestUtil.MockScan outer = new TestUtil.MockScan(0, 10000, 1);
+        CountingScan inner = new CountingScan(0, 100, 1);
+        BlockNestedLoopJoin j = new BlockNestedLoopJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer, inner, 2);
+        int perBlock = j.getBlockTuples();
+        assertEquals(2 * (BufferPool.getPageSize() * 8 / (4 * 8 + 1)), perBlock);
+        j.open();
+        assertEquals(100, count(j));
+        int blocks = (10000 + perBlock - 1) / perBlock;
+        assertEquals(blocks - 1, inner.rewinds);
+        j.close();
+
+        // Join rescans it for every outer tuple
+        inner = new CountingScan(0, 100, 1);
+        Join nl = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TestUtil.MockScan(0, 10000, 1), inner);
+        nl.open();
+        count(nl);
+        assertTrue(inner.rewinds >= 10000 - 1);
+        nl.close();
+    }
+
+    /** The optimizer's cost counts one inner scan per block. */
+    @Test public void costPerBlock() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(1);
+        int perBlock = BlockNestedLoopJoin.tuplesPerBlock(td,
+                BlockNestedLoopJoin.getDefaultBlockPages());
+        assertTrue(perBlock > 1);
+        HeapFile hf = new HeapFile(File.createTempFile("block", ".dat"), td);
+        hf.getFile().deleteOnExit();
+        Database.getCatalog().addTable(hf, "t");
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "a");
+        lp.addScan(hf.getId(), "b");
+        LogicalJoinNode j = new LogicalJoinNode("a", "b", "a.field0", "b.field0",
+                Predicate.Op.NOT_EQUALS);
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+        assertEquals(10 + 3 * 100 + 3.0 * perBlock * 7,
+                jo.estimateJoinCost(j, 3 * perBlock, 7, 10, 100), 1e-6);
+        assertEquals(10 + 4 * 100 + (3.0 * perBlock + 1) * 7,
+                jo.estimateJoinCost(j, 3 * perBlock + 1, 7, 10, 100), 1e-6);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BlockNestedLoopJoinTest.class);
+    }
+}
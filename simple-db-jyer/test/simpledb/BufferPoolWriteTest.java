@@ -34,14 +34,14 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     			throws DbException, IOException, TransactionAbortedException {
     		ArrayList<Page> dirtypages = new ArrayList<Page>();
     		for(int i = 0; i < duplicates; i++) {
-    			// create a blank page
-    			BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(super.getFile(), true));
-                byte[] emptyData = HeapPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-    			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1), 
+    			// create a page holding the tuple; an empty page at the end
+    			// of the file would count as preallocated, not in use
+    			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages()), 
     					HeapPage.createEmptyPageData());
     	        p.insertTuple(t);
+    			BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(super.getFile(), true));
+                bw.write(p.getPageData());
+                bw.close();
     			dirtypages.add(p);
     		}
     		return dirtypages;
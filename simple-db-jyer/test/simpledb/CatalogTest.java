@@ -2,6 +2,8 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +95,27 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Unit test for Catalog.loadSchema() with VARCHAR fields and a slotted table
+     */
+    @Test public void loadSchemaSlotted() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        String table = "t" + SystemTestUtil.getUUID().replace("-", "");
+        try (PrintWriter out = new PrintWriter(schema)) {
+            out.println(table + " (id int pk, name varchar(40), note string) slotted");
+        }
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(table));
+        assertEquals(HeapFile.PageFormat.SLOTTED, hf.getPageFormat());
+        TupleDesc td = hf.getTupleDesc();
+        assertEquals(Type.VARCHAR_TYPE, td.getFieldType(1));
+        assertEquals(40, td.getMaxLength(1));
+        assertEquals(Type.STRING_TYPE, td.getFieldType(2));
+        assertEquals("id", Database.getCatalog().getPrimaryKey(hf.getId()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,75 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares the time to compute the CRC32C of a page, as every page read is
+ * checked against its checksum, with the time of a cold read of a page
+ * through the buffer pool, checksum included.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=ChecksumBenchmark</tt>;
+ * optional arguments are the number of rows and the number of scans.
+ */
+public class ChecksumBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        TupleDesc td = Utility.getTupleDesc(4);
+        File f = File.createTempFile("rows", ".dat");
+        f.deleteOnExit();
+        HeapFile.freeSpaceMapFile(f).deleteOnExit();
+        HeapFile.checksumFile(f).deleteOnExit();
+        HeapFile hf = new HeapFile(f, td);
+        Database.getCatalog().addTable(hf, "rows" + f.getName());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Random r = new Random(42);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(td);
+            for (int c = 0; c < td.numFields(); c++)
+                t.setField(c, new IntField(r.nextInt()));
+            bp.insertTuple(tid, hf.getId(), t);
+        }
+        bp.transactionComplete(tid);
+        bp.flushAllPages();
+        int pages = hf.numPages();
+
+        byte[][] data = new byte[pages][];
+        for (int i = 0; i < pages; i++)
+            data[i] = hf.readPage(new HeapPageId(hf.getId(), i)).getPageData();
+
+        System.out.println("pages\tcrc32c ns/page\tcold read ns/page");
+        for (int run = 0; run < 2; run++) { // the first run warms up
+            long start = System.nanoTime();
+            int sum = 0;
+            for (int s = 0; s < scans; s++) {
+                for (byte[] page : data)
+                    sum += PageChecksums.checksum(page);
+            }
+            double crcNanos = (System.nanoTime() - start) / (double) scans / pages;
+            start = System.nanoTime();
+            for (int s = 0; s < scans; s++)
+                scan(hf);
+            double readNanos = (System.nanoTime() - start) / (double) scans / pages;
+            if (run > 0)
+                System.out.printf("%d\t%.0f\t%.0f%n", pages, crcNanos, readNanos);
+            if (sum == 42)
+                System.out.println();
+        }
+        hf.close();
+    }
+
+    private static void scan(HeapFile hf) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
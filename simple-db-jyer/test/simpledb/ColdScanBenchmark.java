@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.io.File;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the throughput of cold sequential scans: every scan starts with
+ * an empty buffer pool, so each page is read from the HeapFile. The tables
+ * are small enough to stay in the operating system's cache, so the numbers
+ * show the per-page cost of HeapFile.readPage rather than the disk's. Two
+ * tables are scanned: one of full pages, where decoding the tuples costs
+ * most, and one of empty pages, where reading the page is nearly all.
+ * Each is scanned with read calls and through a memory mapping, with and
+ * without read-ahead. To measure reads from the disk itself, drop the
+ * operating system's page cache first and run a single scan.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=ColdScanBenchmark</tt>;
+ * optional arguments are the number of table pages and the number of scans.
+ * With a single scan there is no warm-up run.
+ */
+public class ColdScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numPages = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        // two int columns fill a page with 504 tuples
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, numPages * 504, null, null);
+        File f = File.createTempFile("empty", ".dat");
+        f.deleteOnExit();
+        HeapFile.freeSpaceMapFile(f).deleteOnExit();
+        HeapFile.checksumFile(f).deleteOnExit();
+        HeapFile empty = Utility.openHeapFile(2, f);
+        // written rather than preallocated, so that they count as pages
+        for (int i = 0; i < numPages; i++)
+            empty.writePage(new HeapPage(new HeapPageId(empty.getId(), i),
+                    HeapPage.createEmptyPageData()));
+
+        System.out.println("table\tmapped\tprefetch\tpages/s\ttuples/s");
+        for (boolean mapped : new boolean[] { false, true }) {
+            full.setMemoryMapped(mapped);
+            empty.setMemoryMapped(mapped);
+            for (int window : new int[] { 0, BufferPool.DEFAULT_PREFETCH_WINDOW }) {
+                String name = mapped + "\t" + window;
+                report("full\t" + name, full, scans, window);
+                report("empty\t" + name, empty, scans, window);
+            }
+        }
+    }
+
+    private static void report(String name, HeapFile hf, int scans, int window)
+            throws Exception {
+        prefetchWindow = window;
+        if (scans > 1)
+            scan(hf, scans / 4 + 1); // warm up
+        long start = System.nanoTime();
+        long tuples = scan(hf, scans);
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s\t%.0f\t%.0f%n", name,
+                hf.numPages() * (double) scans / secs, tuples / secs);
+    }
+
+    private static int prefetchWindow;
+
+    /** @return the number of tuples read */
+    private static long scan(HeapFile hf, int scans) throws Exception {
+        long tuples = 0;
+        for (int i = 0; i < scans; i++) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setPrefetchWindow(prefetchWindow);
+            TransactionId tid = new TransactionId();
+            SeqScan ss = new SeqScan(tid, hf.getId(), "");
+            ss.open();
+            while (ss.hasNext()) {
+                ss.next();
+                tuples++;
+            }
+            ss.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return tuples;
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares the cold scan time and the pages read of a sum over one column of
+ * a wide table of ints, stored in a HeapFile and in a ColumnarFile. Each scan
+ * starts with an empty buffer pool, so every page it needs is read.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=ColumnScanBenchmark</tt>;
+ * optional arguments are the number of rows, the number of columns and the
+ * number of scans.
+ */
+public class ColumnScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int scans = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        TupleDesc td = Utility.getTupleDesc(columns, "c");
+        HeapFile hf = load(td, rows);
+        File f = File.createTempFile("columns", ".dat");
+        for (int c = 0; c < columns; c++)
+            ColumnarFile.columnFile(f, c).deleteOnExit();
+        TransactionId tid = new TransactionId();
+        ColumnarFile.write(f, td, hf.iterator(tid));
+        Database.getBufferPool().transactionComplete(tid);
+        ColumnarFile cf = new ColumnarFile(f, td);
+        Database.getCatalog().addTable(cf, "columns" + f.getName());
+
+        System.out.println("format\tpages read\tscan ns/row");
+        for (int run = 0; run < 2; run++) { // the first run warms up
+            for (DbFile file : new DbFile[] { hf, cf }) {
+                long start = System.nanoTime();
+                long misses = 0;
+                for (int i = 0; i < scans; i++)
+                    misses += sum(file, columns / 2);
+                double nanos = (System.nanoTime() - start) / (double) scans / rows;
+                if (run > 0)
+                    System.out.printf("%s\t%d\t%.1f%n", file.getClass().getSimpleName(),
+                            misses / scans, nanos);
+            }
+        }
+        hf.close();
+        cf.close();
+    }
+
+    private static HeapFile load(TupleDesc td, int rows) throws Exception {
+        File f = File.createTempFile("rows", ".dat");
+        f.deleteOnExit();
+        HeapFile.freeSpaceMapFile(f).deleteOnExit();
+        HeapFile hf = new HeapFile(f, td);
+        Database.getCatalog().addTable(hf, "rows" + f.getName());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Random r = new Random(42);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(td);
+            for (int c = 0; c < td.numFields(); c++)
+                t.setField(c, new IntField(r.nextInt(1000)));
+            bp.insertTuple(tid, hf.getId(), t);
+        }
+        bp.transactionComplete(tid);
+        bp.flushAllPages();
+        return hf;
+    }
+
+    /** @return the number of pages read to sum the specified column */
+    private static long sum(DbFile file, int column) throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, file.getId(), "t");
+        int field = scan.setColumns(new int[] { column }) ? 0 : column;
+        scan.open();
+        long sum = 0;
+        while (scan.hasNext())
+            sum += ((IntField) scan.next().getField(field)).getValue();
+        scan.close();
+        bp.transactionComplete(tid);
+        if (sum < 0)
+            throw new IllegalStateException();
+        return bp.getMissCount();
+    }
+}
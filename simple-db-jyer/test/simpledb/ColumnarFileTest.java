@@ -0,0 +1,146 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ColumnarFileTest extends SimpleDbTestBase {
+
+    private static final int COLUMNS = 6;
+    private static final int ROWS = 3000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private ColumnarFile cf;
+
+    /** Converts a random heap file to a ColumnarFile. */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples, "c");
+        File f = File.createTempFile("columnar", ".dat");
+        for (int c = 0; c < COLUMNS; c++)
+            ColumnarFile.columnFile(f, c).deleteOnExit();
+        TransactionId tid = new TransactionId();
+        ColumnarFile.write(f, hf.getTupleDesc(), hf.iterator(tid));
+        Database.getBufferPool().transactionComplete(tid);
+        cf = new ColumnarFile(f, hf.getTupleDesc());
+        Database.getCatalog().addTable(cf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** Every column is stored in its own file, and reads back in order. */
+    @Test public void roundTrip() throws Exception {
+        for (int c = 0; c < COLUMNS; c++)
+            assertTrue(ColumnarFile.columnFile(cf.getFile(), c).length() > 0);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = cf.iterator(tid);
+        it.open();
+        for (ArrayList<Integer> expected : tuples)
+            assertEquals(expected, SystemTestUtil.tupleToList(it.next()));
+        assertTrue(!it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A scan of some columns reads only their pages. */
+    @Test public void projection() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, cf.getId(), "t");
+        assertTrue(scan.setColumns(new int[] { 4, 1 }));
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("t." + cf.getTupleDesc().getFieldName(4), scan.getTupleDesc().getFieldName(0));
+        scan.open();
+        int i = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(new IntField(tuples.get(i).get(4)), t.getField(0));
+            assertEquals(new IntField(tuples.get(i).get(1)), t.getField(1));
+            i++;
+        }
+        scan.close();
+        assertEquals(ROWS, i);
+        assertEquals(cf.numPages(4) + cf.numPages(1), bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /** The planner scans only the columns a query uses. */
+    @Test public void plannerProjects() throws Exception {
+        String name = Database.getCatalog().getTableName(cf.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(cf.getId(), 1000));
+        String field = cf.getTupleDesc().getFieldName(2);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(cf.getId(), "t");
+        lp.addProjectField("t." + field, "sum");
+        lp.addAggregate("sum", "t." + field, null);
+
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int sum = ((IntField) plan.next().getField(0)).getValue();
+        plan.close();
+        bp.transactionComplete(tid);
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples)
+            expected += t.get(2);
+        assertEquals(expected, sum);
+        assertEquals(cf.numPages(2), bp.getMissCount());
+    }
+
+    /** Inserts append to every column; deletes are not supported. */
+    @Test public void insertAppends() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        int extra = 2000;
+        for (int i = 0; i < extra; i++) {
+            Tuple t = new Tuple(cf.getTupleDesc());
+            ArrayList<Integer> values = new ArrayList<Integer>();
+            for (int c = 0; c < COLUMNS; c++) {
+                t.setField(c, new IntField(i * COLUMNS + c));
+                values.add(i * COLUMNS + c);
+            }
+            bp.insertTuple(tid, cf.getId(), t);
+            tuples.add(values);
+        }
+        bp.transactionComplete(tid);
+        bp.flushAllPages();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        DbFileIterator it = cf.iterator(tid);
+        it.open();
+        for (ArrayList<Integer> expected : tuples)
+            assertEquals(expected, SystemTestUtil.tupleToList(it.next()));
+        assertTrue(!it.hasNext());
+        it.rewind();
+        Tuple first = it.next();
+        it.close();
+        try {
+            Database.getBufferPool().deleteTuple(tid, first);
+            fail("deleted from a columnar file");
+        } catch (DbException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnarFileTest.class);
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the latency of BufferPool.transactionComplete against the size
+ * of the buffer pool. The pool is first filled with the pages of a table
+ * of empty pages. Each measured transaction then reads one random page,
+ * or dirties it, and commits. Commit work should not grow with the pool;
+ * with a dirty page it is mostly the log write.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=CommitLatencyBenchmark</tt>;
+ * optional arguments are the largest pool size, in pages, and the number
+ * of transactions to commit at each size.
+ */
+public class CommitLatencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxPages = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+        int txns = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        System.out.println("pool pages\tread commit us\twrite commit us");
+        for (int poolPages = 128; poolPages <= maxPages; poolPages *= 4) {
+            File f = File.createTempFile("commit", ".dat");
+            f.deleteOnExit();
+            HeapFile.freeSpaceMapFile(f).deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            // all-zero pages are empty HeapPages
+            raf.setLength((long) poolPages * BufferPool.getPageSize());
+            raf.close();
+            HeapFile hf = Utility.openHeapFile(2, f);
+            BufferPool bp = Database.resetBufferPool(poolPages);
+
+            TransactionId loader = new TransactionId();
+            for (int i = 0; i < poolPages; i++)
+                bp.getPage(loader, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            bp.transactionComplete(loader);
+
+            run(bp, hf, poolPages, txns / 4, true); // warm up
+            double read = run(bp, hf, poolPages, txns, false);
+            double write = run(bp, hf, poolPages, txns, true);
+            System.out.printf("%d\t%.1f\t%.1f%n", poolPages, read, write);
+        }
+    }
+
+    /** @return the average commit latency in microseconds */
+    private static double run(BufferPool bp, HeapFile hf, int numPages, int txns,
+            boolean write) throws Exception {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long total = 0;
+        for (int i = 0; i < txns; i++) {
+            TransactionId tid = new TransactionId();
+            PageId pid = new HeapPageId(hf.getId(), rnd.nextInt(numPages));
+            if (write)
+                bp.getPage(tid, pid, Permissions.READ_WRITE).markDirty(true, tid);
+            else
+                bp.getPage(tid, pid, Permissions.READ_ONLY);
+            long start = System.nanoTime();
+            bp.transactionComplete(tid, true);
+            total += System.nanoTime() - start;
+        }
+        return total / 1000.0 / txns;
+    }
+}
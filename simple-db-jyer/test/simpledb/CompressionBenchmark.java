@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares the bytes on disk and the cold scan time of a table of a
+ * sequential id, a city from a short list and a number below 1000, stored
+ * in a HeapFile, a compressed HeapFile and a compressed ColumnarFile. Each
+ * scan starts with an empty buffer pool, so every page is read and
+ * decompressed.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=CompressionBenchmark</tt>;
+ * optional arguments are the number of rows and the number of scans.
+ */
+public class CompressionBenchmark {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "city", "n" });
+
+    private static final String[] CITIES = { "Boston", "Cambridge", "Somerville", "Medford" };
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        HeapFile heap = load(false, rows);
+        HeapFile compressed = load(true, rows);
+        File f = File.createTempFile("columns", ".dat");
+        for (int c = 0; c < TD.numFields(); c++) {
+            ColumnarFile.columnFile(f, c).deleteOnExit();
+            CompressedPageStore.mapFile(ColumnarFile.columnFile(f, c)).deleteOnExit();
+        }
+        TransactionId tid = new TransactionId();
+        ColumnarFile.write(f, TD, heap.iterator(tid), true);
+        Database.getBufferPool().transactionComplete(tid);
+        ColumnarFile columnar = new ColumnarFile(f, TD, true);
+        Database.getCatalog().addTable(columnar, "columns" + f.getName());
+        long columnarBytes = 0;
+        for (int c = 0; c < TD.numFields(); c++)
+            columnarBytes += ColumnarFile.columnFile(f, c).length();
+
+        System.out.println("file\tbytes\tratio\tscan ns/row");
+        for (int run = 0; run < 2; run++) { // the first run warms up
+            String[] names = { "heap", "heap compressed", "columnar compressed" };
+            DbFile[] files = { heap, compressed, columnar };
+            long[] bytes = { heap.getFile().length(), compressed.getFile().length(), columnarBytes };
+            for (int i = 0; i < files.length; i++) {
+                long start = System.nanoTime();
+                for (int s = 0; s < scans; s++)
+                    scan(files[i]);
+                double nanos = (System.nanoTime() - start) / (double) scans / rows;
+                if (run > 0)
+                    System.out.printf("%s\t%d\t%.2f\t%.1f%n", names[i], bytes[i],
+                            new TableStats(files[i].getId(), 1).getCompressionRatio(), nanos);
+            }
+        }
+        heap.close();
+        compressed.close();
+        columnar.close();
+    }
+
+    private static HeapFile load(boolean compressed, int rows) throws Exception {
+        File f = File.createTempFile("rows", ".dat");
+        f.deleteOnExit();
+        HeapFile.freeSpaceMapFile(f).deleteOnExit();
+        CompressedPageStore.mapFile(f).deleteOnExit();
+        HeapFile hf = new HeapFile(f, TD, HeapFile.PageFormat.FIXED, compressed);
+        // no preallocated pages, so that the sizes compare
+        hf.setExtentSize(BufferPool.getPageSize());
+        Database.getCatalog().addTable(hf, "rows" + f.getName());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Random r = new Random(42);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(CITIES[r.nextInt(CITIES.length)], Type.STRING_LEN));
+            t.setField(2, new IntField(r.nextInt(1000)));
+            bp.insertTuple(tid, hf.getId(), t);
+        }
+        bp.transactionComplete(tid);
+        bp.flushAllPages();
+        return hf;
+    }
+
+    private static void scan(DbFile file) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        long sum = 0;
+        while (it.hasNext())
+            sum += ((IntField) it.next().getField(2)).getValue();
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        if (sum < 0)
+            throw new IllegalStateException();
+    }
+}
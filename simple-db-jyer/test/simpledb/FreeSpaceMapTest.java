@@ -0,0 +1,156 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 8;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private HeapPageId page(int pageNo) {
+        return new HeapPageId(hf.getId(), pageNo);
+    }
+
+    private void scan(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * An insert goes straight to the page with room, without locking the
+     * full pages before it.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        scan(hf);
+        TransactionId deleter = new TransactionId();
+        Tuple victim = null;
+        DbFileIterator it = hf.iterator(deleter);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getRecordId().getPageId().getPageNumber() == 5)
+                victim = t;
+        }
+        it.close();
+        bp.deleteTuple(deleter, victim);
+        bp.transactionComplete(deleter);
+
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(7, 2);
+        bp.insertTuple(tid, hf.getId(), t);
+        assertEquals(page(5), t.getRecordId().getPageId());
+        for (int i = 0; i < 5; i++)
+            assertFalse(bp.holdsLock(tid, page(i)));
+        assertEquals(TABLE_PAGES, hf.numPages());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Concurrent inserters are sent to different pages rather than queueing
+     * for the same one.
+     */
+    @Test public void insertersSpread() throws Exception {
+        HeapFile empty = Utility.createEmptyHeapFile(
+                File.createTempFile("empty", ".dat").getAbsolutePath(), 2);
+        HeapFile.freeSpaceMapFile(empty.getFile()).deleteOnExit();
+        empty.getFile().deleteOnExit();
+        for (int i = 0; i < 4; i++)
+            empty.writePage(new HeapPage(new HeapPageId(empty.getId(), i),
+                    HeapPage.createEmptyPageData()));
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        ArrayList<Integer> pages = new ArrayList<>();
+        for (TransactionId tid : new TransactionId[] { t1, t2, t1 }) {
+            Tuple t = Utility.getHeapTuple(1, 2);
+            bp.insertTuple(tid, empty.getId(), t);
+            pages.add(t.getRecordId().getPageId().getPageNumber());
+        }
+        assertFalse(pages.get(0).equals(pages.get(1)));
+        // t1 stays on its page
+        assertEquals(pages.get(0), pages.get(2));
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * The map is written with the pages and read back when reopened; the
+     * entries of the pages before a written page are written too.
+     */
+    @Test public void persisted() throws Exception {
+        scan(hf);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int deleted = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int pageNo = t.getRecordId().getPageId().getPageNumber();
+            if ((pageNo == 0 && deleted < 3) || (pageNo == 3 && deleted < 4)) {
+                bp.deleteTuple(tid, t);
+                deleted++;
+            }
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        bp.flushAllPages();
+
+        File fsmFile = HeapFile.freeSpaceMapFile(hf.getFile());
+        assertEquals(FreeSpaceMap.HEADER_SIZE + 4, fsmFile.length());
+        FreeSpaceMap fsm = new FreeSpaceMap(fsmFile, hf.getFile());
+        assertEquals(3, fsm.getFree(0));
+        assertEquals(0, fsm.getFree(1));
+        assertEquals(0, fsm.getFree(2));
+        assertEquals(1, fsm.getFree(3));
+        // not known
+        assertEquals(FreeSpaceMap.MAX_ENTRY, fsm.getFree(4));
+
+        // a heap file written in place since, e.g. a page repaired, keeps its map
+        assertTrue(fsmFile.setLastModified(hf.getFile().lastModified() - 10000));
+        fsm = new FreeSpaceMap(fsmFile, hf.getFile());
+        assertEquals(0, fsm.getFree(1));
+
+        // a heap file that changed length without the map does not
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+        try {
+            raf.setLength(raf.length() + BufferPool.getPageSize());
+        } finally {
+            raf.close();
+        }
+        fsm = new FreeSpaceMap(fsmFile, hf.getFile());
+        assertEquals(FreeSpaceMap.MAX_ENTRY, fsm.getFree(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
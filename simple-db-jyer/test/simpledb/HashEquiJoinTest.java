@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    private static int count(OpIterator it) throws Exception {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * The join returns the tuples of Join, also when its build side does not
+     * fit in memory, and again after a rewind.
+     */
+    @Test public void sameAsJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        for (int pages : new int[] { 1, HashEquiJoin.DEFAULT_MEMORY_PAGES }) {
+            for (int buildRows : new int[] { 100, 20000 }) {
+                HashEquiJoin j = new HashEquiJoin(pred, new TestUtil.MockScan(0, buildRows, 1),
+                        new TestUtil.MockScan(-50, 50000, 2), pages);
+                j.open();
+                assertEquals(buildRows > j.getMemoryTuples(), j.isPartitioned());
+                assertEquals(buildRows, count(j));
+                j.rewind();
+                assertEquals(buildRows, count(j));
+                j.close();
+            }
+        }
+        Join expected = new Join(pred, new TestUtil.MockScan(0, 3000, 1),
+                new TestUtil.MockScan(-50, 200, 2));
+        HashEquiJoin actual = new HashEquiJoin(pred, new TestUtil.MockScan(0, 3000, 1),
+                new TestUtil.MockScan(-50, 200, 2), 1);
+        expected.open();
+        actual.open();
+        assertTrue(actual.isPartitioned());
+        TestUtil.matchAllTuples(expected, actual);
+    }
+
+    /**
+     * A build side that does not fit is spilled, partitioned again where a
+     * partition does not fit either, and the spill files are gone once the
+     * join is closed.
+     */
+    @Test public void spillsPartitions() throws Exception {
+        SpillManager spills = Database.getSpillManager();
+        int files = spills.getFileCount();
+        long spilled = spills.getSpilledTuples();
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin j = new HashEquiJoin(pred, new TestUtil.MockScan(0, 100000, 1),
+                new TestUtil.MockScan(0, 100000, 1), 1);
+        j.open();
+        // a partition of the build side takes more than a page
+        assertTrue(100000 / HashEquiJoin.FANOUT > j.getMemoryTuples());
+        assertTrue(spills.getFileCount() > files);
+        assertTrue(spills.getSpilledTuples() - spilled > 100000 / 2);
+        for (int i = 0; i < 10; i++)
+            j.next();
+        // rewound half-way through the probe side
+        j.rewind();
+        assertEquals(100000, count(j));
+        j.rewind();
+        assertEquals(100000, count(j));
+        j.close();
+        assertEquals(files, spills.getFileCount());
+    }
+
+    /** A partition of a single key, which no hash splits, is joined all the same. */
+    @Test public void skewedKeys() throws Exception {
+        int[] build = new int[6000];
+        for (int i = 0; i < build.length; i += 2) {
+            build[i] = i < 4000 ? 7 : i;
+            build[i + 1] = i;
+        }
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin j = new HashEquiJoin(pred, TestUtil.createTupleList(2, build),
+                new TestUtil.MockScan(0, 10, 1), 1);
+        j.open();
+        assertTrue(j.isPartitioned());
+        assertEquals(2000, count(j));
+        j.close();
+    }
+
+    private static LogicalPlan plan() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(1);
+        HeapFile hf = new HeapFile(File.createTempFile("hash", ".dat"), td);
+        hf.getFile().deleteOnExit();
+        Database.getCatalog().addTable(hf, "t");
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "a");
+        lp.addScan(hf.getId(), "b");
+        return lp;
+    }
+
+    /** @return an empty input whose field is alias.field0 */
+    private static OpIterator input(String alias) {
+        return new TupleIterator(new TupleDesc(new Type[] { Type.INT_TYPE },
+                new String[] { alias + ".field0" }), new ArrayList<Tuple>());
+    }
+
+    /** The planner hashes equality joins, unless told not to, and merges range joins. */
+    @Test public void plannedForEquality() throws Exception {
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "a.field0", "b.field0",
+                Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode("a", "b", "a.field0", "b.field0",
+                Predicate.Op.LESS_THAN);
+        assertTrue(JoinOptimizer.instantiateJoin(eq, input("a"), input("b"))
+                instanceof HashEquiJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lt, input("a"), input("b"))
+                instanceof SortMergeJoin);
+        JoinOptimizer.setHashJoinEnabled(false);
+        JoinOptimizer.setMergeJoinEnabled(false);
+        try {
+            assertTrue(JoinOptimizer.instantiateJoin(eq, input("a"), input("b"))
+                    instanceof BlockNestedLoopJoin);
+        } finally {
+            JoinOptimizer.setHashJoinEnabled(true);
+            JoinOptimizer.setMergeJoinEnabled(true);
+        }
+    }
+
+    /**
+     * The cost of a hash join is linear in both inputs, and lower with the
+     * smaller input as the build side.
+     */
+    @Test public void costBuildsSmallerSide() throws Exception {
+        LogicalPlan lp = plan();
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+        LogicalJoinNode j = new LogicalJoinNode("a", "b", "a.field0", "b.field0",
+                Predicate.Op.EQUALS);
+        double small = jo.estimateJoinCost(j, 1000, 100000, 500, 500);
+        double large = jo.estimateJoinCost(j.swapInnerOuter(), 100000, 1000, 500, 500);
+        assertTrue(small < large);
+        assertEquals(1000 + JoinOptimizer.HASH_BUILD_COST * 1000 + 100000, small, 1e-6);
+        // a build side beyond the memory budget is partially written out and read back
+        int memory = BlockNestedLoopJoin.tuplesPerBlock(Utility.getTupleDesc(1),
+                HashEquiJoin.getDefaultMemoryPages());
+        assertEquals(1000 + JoinOptimizer.HASH_BUILD_COST * 4 * memory + 100000 + 2 * 0.75 * 1000,
+                jo.estimateJoinCost(j, 4 * memory, 100000, 500, 500), 1e-6);
+        // far cheaper than nested loops
+        JoinOptimizer.setHashJoinEnabled(false);
+        JoinOptimizer.setMergeJoinEnabled(false);
+        try {
+            assertTrue(jo.estimateJoinCost(j, 1000, 100000, 500, 500) > 100 * small);
+        } finally {
+            JoinOptimizer.setHashJoinEnabled(true);
+            JoinOptimizer.setMergeJoinEnabled(true);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
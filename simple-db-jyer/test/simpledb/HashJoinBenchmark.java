@@ -0,0 +1,46 @@
+package simpledb;
+
+/**
+ * Times an equality join of two inputs of the same number of rows with
+ * HashEquiJoin, under memory budgets from a fraction of the build side up
+ * to all of it, and prints the number of tuples each spilled.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=HashJoinBenchmark</tt>; the
+ * optional argument is the number of rows of each input.
+ */
+public class HashJoinBenchmark {
+
+    private static final int WIDTH = 4;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 400000;
+        int perPage = BlockNestedLoopJoin.tuplesPerBlock(Utility.getTupleDesc(WIDTH), 1);
+        int allPages = (rows + perPage - 1) / perPage;
+
+        System.out.println("pages\trows\tspilled\tms");
+        for (int pages : new int[] { 16, 64, allPages / 4, allPages }) {
+            run(rows, pages); // warms up
+            long spilled = Database.getSpillManager().getSpilledTuples();
+            long start = System.nanoTime();
+            long n = run(rows, pages);
+            long ms = (System.nanoTime() - start) / 1000000;
+            System.out.printf("%d\t%d\t%d\t%d%n", pages, n,
+                    Database.getSpillManager().getSpilledTuples() - spilled, ms);
+        }
+    }
+
+    /** @return the number of rows the join returns */
+    private static long run(int rows, int pages) throws Exception {
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TestUtil.MockScan(0, rows, WIDTH), new TestUtil.MockScan(0, rows, WIDTH),
+                pages);
+        j.open();
+        long n = 0;
+        while (j.hasNext()) {
+            j.next();
+            n++;
+        }
+        j.close();
+        return n;
+    }
+}
@@ -77,6 +77,42 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() through a memory mapping, including
+     * a page appended after the file was mapped.
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage copied = (HeapPage) hf.readPage(pid);
+        hf.setMemoryMapped(true);
+        HeapPage mapped = (HeapPage) hf.readPage(pid);
+        assertEquals(copied.getNumEmptySlots(), mapped.getNumEmptySlots());
+        assertArrayEquals(copied.getPageData(), mapped.getPageData());
+        assertArrayEquals(copied.getPageData(), mapped.getBeforeImage().getPageData());
+        // read in place from the mapping
+        assertTrue(mapped.data.isMapped());
+
+        // overwriting the page leaves what was read of it unchanged
+        Tuple first = mapped.iterator().next();
+        Field value = copied.iterator().next().getField(1);
+        HeapPage empty = new HeapPage(pid, HeapPage.createEmptyPageData());
+        hf.writePage(empty);
+        assertFalse(mapped.data.isMapped());
+        assertEquals(value, first.getField(1));
+        assertArrayEquals(copied.getPageData(), mapped.getPageData());
+        assertArrayEquals(copied.getPageData(), mapped.getBeforeImage().getPageData());
+        assertArrayEquals(empty.getPageData(), hf.readPage(pid).getPageData());
+
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        HeapPage page = new HeapPage(next, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(page);
+        HeapPage appended = (HeapPage) hf.readPage(next);
+        assertEquals(page.getNumEmptySlots(), appended.getNumEmptySlots());
+        assertEquals(new IntField(7), appended.iterator().next().getField(0));
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -121,6 +157,50 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A filtered scan over many pages that it matches nothing on runs in
+     * constant stack depth, also on a small stack.
+     */
+    @Test
+    public void testFilteredScanOfManyPages() throws Exception {
+        BufferPool.setPageSize(64);
+        try {
+            HashMap<Integer, Integer> value = new HashMap<Integer, Integer>();
+            value.put(0, 2);
+            int perPage = 64 * 8 / (4 * 8 + 1);
+            HeapFile f = SystemTestUtil.createRandomHeapFile(1, 20000 * perPage, value, null);
+            assertEquals(20000, f.numPages());
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            final Filter filter = new Filter(new Predicate(0, Predicate.Op.EQUALS,
+                    new IntField(1)), new SeqScan(tid, f.getId()));
+            final Throwable[] error = new Throwable[1];
+            final int[] rows = { -1 };
+            Thread t = new Thread(null, new Runnable() {
+                public void run() {
+                    try {
+                        filter.open();
+                        rows[0] = 0;
+                        while (filter.hasNext()) {
+                            filter.next();
+                            rows[0]++;
+                        }
+                        filter.close();
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            }, "scan", 256 * 1024);
+            t.start();
+            t.join();
+            if (error[0] != null)
+                throw new AssertionError(error[0]);
+            assertEquals(0, rows[0]);
+        } finally {
+            BufferPool.resetPageSize();
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        }
+    }
+
     /**
      * JUnit suite target
      */
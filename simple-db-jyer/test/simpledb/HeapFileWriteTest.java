@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.RandomAccessFile;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -86,6 +88,59 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * The file grows by whole extents. A new page stays in the buffer pool
+     * until it is flushed, and only the pages in use are counted, also when
+     * the file is opened again.
+     */
+    @Test public void growsByExtent() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        empty.setExtentSize(4 * pageSize);
+        for (int i = 0; i < 505; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        assertEquals(4 * pageSize, empty.getFile().length());
+
+        HeapPageId second = new HeapPageId(empty.getId(), 1);
+        assertEquals(504, ((HeapPage) empty.readPage(second)).getNumEmptySlots());
+        Database.getBufferPool().flushAllPages();
+        assertEquals(503, ((HeapPage) empty.readPage(second)).getNumEmptySlots());
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(2, reopened.numPages());
+    }
+
+    /**
+     * Preallocated empty pages are not counted without a free-space map
+     * either, nor when the file has been extended since it was opened; a
+     * page written with tuples and torn to zeros is.
+     */
+    @Test public void emptyTailNotCounted() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        empty.setExtentSize(4 * pageSize);
+        for (int i = 0; i < 505; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().flushAllPages();
+        empty.close();
+        assertTrue(HeapFile.freeSpaceMapFile(empty.getFile()).delete());
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(2, reopened.numPages());
+        RandomAccessFile raf = new RandomAccessFile(empty.getFile(), "rw");
+        try {
+            raf.setLength(8 * pageSize);
+            assertEquals(2, reopened.numPages());
+
+            // page 1 torn to zeros
+            raf.seek(pageSize);
+            raf.write(new byte[pageSize]);
+        } finally {
+            raf.close();
+        }
+        reopened.close();
+        assertEquals(2, new HeapFile(empty.getFile(), empty.getTupleDesc()).numPages());
+    }
+
     /**
      * JUnit suite target
      */
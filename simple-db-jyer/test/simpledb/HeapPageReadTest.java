@@ -6,6 +6,7 @@ import simpledb.systemtest.SystemTestUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.junit.Before;
@@ -120,6 +121,62 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate), which tests the encoded
+     * tuples
+     */
+    @Test public void iteratorWithPredicate() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate p = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(40000));
+        Iterator<Tuple> it = page.iterator(p);
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[1] > 40000)
+                assertEquals(values[0], ((IntField) it.next().getField(0)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Tuples are decoded only when read, and a page whose tuples were only
+     * read serializes to the data it was read from.
+     */
+    @Test public void lazyDecoding() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertEquals(null, page.tuples[0]);
+        Tuple t = page.iterator().next();
+        assertEquals(t, page.tuples[0]);
+        assertTrue(t.isEncodedIn(page.data));
+        assertEquals(EXAMPLE_VALUES[0][1], ((IntField) t.getField(1)).getValue());
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+
+        // a changed tuple is serialized from its fields
+        t.setField(1, new IntField(-1));
+        assertFalse(t.isEncodedIn(page.data));
+        Predicate p = new Predicate(1, Predicate.Op.EQUALS, new IntField(-1));
+        assertEquals(t, page.iterator(p).next());
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(-1, ((IntField) copy.iterator().next().getField(1)).getValue());
+    }
+
+    /**
+     * A page read from bytes outside the heap, as a memory mapping is, reads
+     * them in place, and keeps reading what it was read from once detached.
+     */
+    @Test public void detachedBytes() throws Exception {
+        ByteBuffer mapped = ByteBuffer.allocateDirect(EXAMPLE_DATA.length);
+        mapped.put(EXAMPLE_DATA).flip();
+        HeapPage page = new HeapPage(pid, new PageBytes(mapped.asReadOnlyBuffer()));
+        assertTrue(page.data.isMapped());
+        Tuple t = page.iterator().next();
+        assertTrue(t.isEncodedIn(page.data));
+
+        page.data.detach();
+        assertFalse(page.data.isMapped());
+        mapped.put(HeapPage.createEmptyPageData()).flip();
+        assertEquals(EXAMPLE_VALUES[0][1], ((IntField) t.getField(1)).getValue());
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
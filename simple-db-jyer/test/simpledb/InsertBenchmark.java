@@ -0,0 +1,70 @@
+package simpledb;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the latency of inserting into a table whose pages are all full,
+ * against the size of the table. Each measured transaction inserts one
+ * tuple and commits; the inserts fill a new page at the end of the table,
+ * so an insert that has to look at every page before it gets slower as the
+ * table grows. The tables fit in the buffer pool, so the cost measured is
+ * visiting and locking pages rather than reading them.
+ * <p>
+ * It then bulk-loads an empty table in one transaction, growing the file
+ * one page at a time and by the default extent, and reports the load rate.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=InsertBenchmark</tt>; optional
+ * arguments are the largest table size, in pages, the number of inserts at
+ * each size, and the number of tuples to bulk-load.
+ */
+public class InsertBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxPages = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int inserts = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int load = args.length > 2 ? Integer.parseInt(args[2]) : 504 * 2048;
+
+        System.out.println("table pages\tinsert us");
+        for (int numPages = 64; numPages <= maxPages; numPages *= 4) {
+            // two int columns fill a page with 504 tuples
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, numPages * 504, null, null);
+            BufferPool bp = Database.resetBufferPool(numPages + 64);
+            run(bp, hf, inserts / 4); // warm up
+            System.out.printf("%d\t%.1f%n", numPages, run(bp, hf, inserts));
+        }
+
+        System.out.println("extent bytes\tbulk load tuples/s");
+        for (int extent : new int[] { BufferPool.getPageSize(), HeapFile.DEFAULT_EXTENT_SIZE }) {
+            bulkLoad(extent, load / 4); // warm up
+            System.out.printf("%d\t%.0f%n", extent, bulkLoad(extent, load));
+        }
+    }
+
+    /** @return the number of tuples loaded per second */
+    private static double bulkLoad(int extent, int tuples) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        hf.setExtentSize(extent);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        for (int i = 0; i < tuples; i++)
+            bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        bp.flushAllPages();
+        double secs = (System.nanoTime() - start) / 1e9;
+        bp.transactionComplete(tid, true);
+        return tuples / secs;
+    }
+
+    /** @return the average insert latency in microseconds */
+    private static double run(BufferPool bp, HeapFile hf, int inserts) throws Exception {
+        long total = 0;
+        for (int i = 0; i < inserts; i++) {
+            TransactionId tid = new TransactionId();
+            long start = System.nanoTime();
+            bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+            total += System.nanoTime() - start;
+            bp.transactionComplete(tid, true);
+        }
+        return total / 1000.0 / inserts;
+    }
+}
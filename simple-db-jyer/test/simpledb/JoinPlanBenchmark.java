@@ -0,0 +1,76 @@
+package simpledb;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Times the equality-join queries of QueryTest, and a range join, on tables
+ * of its shape, planned with nested-loop joins only, with sort-merge joins,
+ * and with hash joins for the equality joins, and prints the rows each
+ * returns.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=JoinPlanBenchmark</tt>; the
+ * optional argument scales the number of rows of the tables (1 is the size
+ * of QueryTest's).
+ */
+public class JoinPlanBenchmark {
+
+    private static final int IO_COST = 101;
+
+    // smaller than QueryTest's, so that the joins return rows
+    private static final int MAX_VALUE = 10000;
+
+    private static final String[] QUERIES = {
+        "SELECT * FROM emp,dept WHERE emp.c1 = dept.c0 AND emp.c3 < 1000;",
+        "SELECT * FROM emp,hobbies WHERE hobbies.c0 = emp.c2 AND emp.c3 < 1000;",
+        "SELECT * FROM emp,dept,hobbies,hobby WHERE emp.c1 = dept.c0 AND hobbies.c0 = emp.c2"
+                + " AND hobbies.c1 = hobby.c0 AND emp.c3 < 1000;",
+        "SELECT * FROM emp,hobbies WHERE emp.c1 < hobbies.c0 AND emp.c1 > 9900 AND hobbies.c1 < 2000;",
+    };
+
+    private static final String[] MODES = { "nested loops", "merge", "hash" };
+
+    public static void main(String[] args) throws Exception {
+        double scale = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        table("emp", 6, (int) (100000 * scale));
+        table("dept", 3, 1000);
+        table("hobby", 6, 1000);
+        table("hobbies", 2, (int) (200000 * scale));
+
+        System.out.println("query\tjoins\trows\tms");
+        for (int q = 0; q < QUERIES.length; q++) {
+            for (int m = 0; m < MODES.length; m++) {
+                JoinOptimizer.setMergeJoinEnabled(m >= 1);
+                JoinOptimizer.setHashJoinEnabled(m >= 2);
+                run(QUERIES[q]); // warms up
+                long start = System.nanoTime();
+                long rows = run(QUERIES[q]);
+                long ms = (System.nanoTime() - start) / 1000000;
+                System.out.printf("%d\t%s\t%d\t%d%n", q + 1, MODES[m], rows, ms);
+            }
+        }
+        JoinOptimizer.setMergeJoinEnabled(true);
+        JoinOptimizer.setHashJoinEnabled(true);
+    }
+
+    private static void table(String name, int columns, int rows) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(columns, rows, MAX_VALUE, null, null, "c");
+        Database.getCatalog().addTable(hf, name);
+        TableStats.setTableStats(name, new TableStats(hf.getId(), IO_COST));
+    }
+
+    /** @return the number of rows the query returns */
+    private static long run(String sql) throws Exception {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        plan.open();
+        long rows = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            rows++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return rows;
+    }
+}
@@ -105,6 +105,29 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Join streams its output: the first rows of a cross product of 10^10
+   * rows come back at once, and a rewind starts it over.
+   */
+  @Test(timeout = 20000) public void earlyTermination() throws Exception {
+    int n = 100000;
+    // every outer value is greater than every inner one
+    OpIterator outer = new TestUtil.MockScan(n, 2 * n, 1);
+    OpIterator inner = new TestUtil.MockScan(0, n, 1);
+    Join op = new Join(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0), outer, inner);
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      // LIMIT 2n + 1: through the whole inner input twice
+      for (int i = 0; i <= 2 * n; i++) {
+        Tuple t = op.next();
+        assertEquals(new IntField(n + i / n), t.getField(0));
+        assertEquals(new IntField(i % n), t.getField(1));
+      }
+      op.rewind();
+    }
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,74 @@
+package simpledb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the LockManager's deadlock modes under contention. The workload
+ * is the one of DeadlockTest, scaled up: each transaction read-locks two
+ * random pages of a small hot set and then upgrades one of them, so
+ * transactions routinely deadlock on upgrades. An aborted transaction
+ * releases its locks and starts again with a new TransactionId.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=LockContentionBenchmark</tt>;
+ * optional arguments are the number of threads, the number of milliseconds
+ * to run each mode and the number of hot pages. TIMEOUT mode uses the
+ * detection interval as its lock timeout so the two are comparable.
+ */
+public class LockContentionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        int hotPages = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        System.out.println(threads + " threads, " + hotPages + " hot pages");
+        System.out.println("mode\tcommits/s\taborts/s\tabort rate");
+        for (LockManager.DeadlockMode mode : LockManager.DeadlockMode.values()) {
+            LockManager lm = new LockManager();
+            lm.setDeadlockMode(mode);
+            lm.setLockTimeout(lm.getDetectionInterval());
+            run(lm, threads, millis / 4, hotPages); // warm up
+            long[] r = run(lm, threads, millis, hotPages);
+            double secs = millis / 1000.0;
+            System.out.printf("%s\t%.0f\t%.0f\t%.1f%%%n", mode, r[0] / secs, r[1] / secs,
+                    100.0 * r[1] / Math.max(1, r[0] + r[1]));
+        }
+    }
+
+    /** @return the number of commits and the number of aborts */
+    private static long[] run(final LockManager lm, int numThreads, long millis,
+            final int hotPages) throws InterruptedException {
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final long end = System.currentTimeMillis() + millis;
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    while (System.currentTimeMillis() < end) {
+                        TransactionId tid = new TransactionId();
+                        PageId a = new HeapPageId(1, rnd.nextInt(hotPages));
+                        PageId b = new HeapPageId(1, rnd.nextInt(hotPages));
+                        try {
+                            lm.acquire(tid, a, Permissions.READ_ONLY);
+                            lm.acquire(tid, b, Permissions.READ_ONLY);
+                            Thread.yield();
+                            lm.acquire(tid, a, Permissions.READ_WRITE);
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                        }
+                        lm.releaseAll(tid);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        return new long[] { commits.get(), aborts.get() };
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures shared-lock throughput of the LockManager with a single stripe
+ * and with striping, with lock escalation enabled (which also takes an
+ * intention lock on the table) and disabled, for an increasing number of
+ * reader threads. Each simulated transaction read-locks a few random pages
+ * and then releases everything, as a read-only query would.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=LockManagerBenchmark</tt>;
+ * optional arguments are the maximum number of threads and the number of
+ * milliseconds to run each configuration.
+ */
+public class LockManagerBenchmark {
+    private static final int TABLE_PAGES = 4096;
+    private static final int PAGES_PER_TXN = 8;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Math.max(8, Runtime.getRuntime().availableProcessors());
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+        System.out.println("available processors: "
+                + Runtime.getRuntime().availableProcessors());
+        System.out.println("stripes\tescalation\tthreads\tlocks/ms");
+        for (int stripes : new int[] { 1, LockManager.DEFAULT_STRIPES }) {
+            for (int threshold : new int[] { LockManager.DEFAULT_ESCALATION_THRESHOLD, 0 }) {
+                for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                    run(newLockManager(stripes, threshold), threads, millis / 4); // warm up
+                    double rate = run(newLockManager(stripes, threshold), threads, millis);
+                    System.out.printf("%d\t%d\t%d\t%.1f%n", stripes, threshold, threads, rate);
+                }
+            }
+        }
+    }
+
+    private static LockManager newLockManager(int stripes, int threshold) {
+        LockManager lm = new LockManager(stripes);
+        lm.setEscalationThreshold(threshold);
+        return lm;
+    }
+
+    /** @return lock acquisitions per millisecond over all threads */
+    private static double run(final LockManager lm, int numThreads, final long millis)
+            throws InterruptedException {
+        final AtomicLong acquired = new AtomicLong();
+        final long end = System.currentTimeMillis() + millis;
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    long n = 0;
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            TransactionId tid = new TransactionId();
+                            for (int j = 0; j < PAGES_PER_TXN; j++) {
+                                lm.acquire(tid, new HeapPageId(1, rnd.nextInt(TABLE_PAGES)),
+                                        Permissions.READ_ONLY);
+                            }
+                            lm.releaseAll(tid);
+                            n += PAGES_PER_TXN;
+                        }
+                    } catch (TransactionAbortedException e) {
+                        throw new RuntimeException("readers cannot deadlock", e);
+                    }
+                    acquired.addAndGet(n);
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        double elapsedMs = (System.nanoTime() - start) / 1e6;
+        return acquired.get() / elapsedMs;
+    }
+}
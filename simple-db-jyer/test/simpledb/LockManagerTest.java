@@ -0,0 +1,345 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    private static final long WAIT = 200;
+
+    private LockManager lm;
+    private PageId p0;
+    private List<TransactionId> order;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        lm.setDeadlockMode(LockManager.DeadlockMode.DETECT);
+        p0 = new HeapPageId(1, 0);
+        order = new CopyOnWriteArrayList<TransactionId>();
+    }
+
+    /** Start a thread that acquires p0 and records when it got it. */
+    private Thread request(final TransactionId tid, final Permissions perm) throws Exception {
+        return request(tid, p0, perm);
+    }
+
+    private Thread request(final TransactionId tid, final PageId pid, final Permissions perm)
+            throws Exception {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(tid, pid, perm);
+                    order.add(tid);
+                } catch (TransactionAbortedException e) {
+                    // leaves tid out of order
+                }
+            }
+        };
+        t.start();
+        t.join(WAIT);
+        return t;
+    }
+
+    /**
+     * A queued writer is not overtaken by readers that arrive after it, even
+     * though their locks are compatible with the current holder.
+     */
+    @Test public void fifo() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        TransactionId late = new TransactionId();
+        lm.acquire(reader, p0, Permissions.READ_ONLY);
+
+        Thread w = request(writer, Permissions.READ_WRITE);
+        Thread r = request(late, Permissions.READ_ONLY);
+        assertTrue(order.isEmpty());
+
+        lm.release(reader, p0);
+        w.join(WAIT);
+        assertEquals(1, order.size());
+        assertEquals(writer, order.get(0));
+        assertFalse(lm.holdsLock(late, p0));
+
+        lm.releaseAll(writer);
+        r.join(WAIT);
+        assertEquals(late, order.get(1));
+    }
+
+    /**
+     * An upgrade waits ahead of requests that were queued before it.
+     */
+    @Test public void upgradePriority() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId writer = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+
+        Thread w = request(writer, Permissions.READ_WRITE);
+        Thread u = request(t1, Permissions.READ_WRITE);
+        assertTrue(order.isEmpty());
+
+        lm.release(t2, p0);
+        u.join(WAIT);
+        assertEquals(t1, order.get(0));
+        assertEquals(1, order.size());
+
+        lm.releaseAll(t1);
+        w.join(WAIT);
+        assertEquals(writer, order.get(1));
+    }
+
+    /**
+     * Two readers that both try to upgrade deadlock; the younger is aborted.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+
+        Thread u1 = request(t1, Permissions.READ_WRITE);
+        Thread u2 = request(t2, Permissions.READ_WRITE);
+        u2.join(WAIT);
+        assertFalse(u2.isAlive());
+        assertTrue(order.isEmpty());
+
+        lm.releaseAll(t2);
+        u1.join(WAIT);
+        assertEquals(t1, order.get(0));
+    }
+
+    /**
+     * The detector aborts exactly one transaction of a three-way cycle, the
+     * one chosen by the victim policy, and the others then proceed.
+     */
+    @Test public void victimPolicy() throws Exception {
+        lm.setDetectionInterval(60 * 1000); // only run it by hand
+        lm.setVictimPolicy(LockManager.VictimPolicy.OLDEST);
+        TransactionId[] t = new TransactionId[3];
+        PageId[] p = new PageId[3];
+        for (int i = 0; i < 3; i++) {
+            t[i] = new TransactionId();
+            p[i] = new HeapPageId(1, i);
+            lm.acquire(t[i], p[i], Permissions.READ_WRITE);
+        }
+        Thread[] waiters = new Thread[3];
+        for (int i = 0; i < 3; i++)
+            waiters[i] = request(t[i], p[(i + 1) % 3], Permissions.READ_WRITE);
+        assertEquals(0, order.size());
+
+        assertEquals(1, lm.detectDeadlocks());
+        waiters[0].join(WAIT);
+        assertFalse(waiters[0].isAlive());
+        assertEquals(0, lm.detectDeadlocks());
+
+        // t[0] aborts; t[2] then gets p[0] and finishes, which frees t[1]
+        lm.releaseAll(t[0]);
+        waiters[2].join(WAIT);
+        lm.releaseAll(t[2]);
+        waiters[1].join(WAIT);
+        assertEquals(2, order.size());
+        assertEquals(t[2], order.get(0));
+        assertEquals(t[1], order.get(1));
+    }
+
+    /**
+     * A victim chosen on a snapshot of the waits-for graph is not aborted if
+     * the request the snapshot saw has been granted since, even though it
+     * now waits on another lock.
+     */
+    @Test public void staleVictimSpared() throws Exception {
+        lm.setDetectionInterval(60 * 1000); // only run it by hand
+        lm.setVictimPolicy(LockManager.VictimPolicy.OLDEST);
+        TransactionId t0 = new TransactionId();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        PageId p1 = new HeapPageId(1, 1);
+        PageId p2 = new HeapPageId(1, 2);
+        lm.acquire(t0, p0, Permissions.READ_WRITE);
+        lm.acquire(t1, p1, Permissions.READ_WRITE);
+        lm.acquire(t2, p2, Permissions.READ_WRITE);
+        Thread w0 = request(t0, p1, Permissions.READ_WRITE);
+        Thread w1 = request(t1, p0, Permissions.READ_WRITE);
+        Map<TransactionId, LockManager.Waits> snapshot = lm.waitsForSnapshot();
+
+        // t1 gives up its lock, so t0 gets p1 and goes on to wait for p2
+        lm.release(t1, p1);
+        w0.join(WAIT);
+        assertEquals(t0, order.get(0));
+        Thread w2 = request(t0, p2, Permissions.READ_WRITE);
+        assertEquals(0, lm.abortCycles(snapshot));
+
+        lm.releaseAll(t2);
+        w2.join(WAIT);
+        assertEquals(t0, order.get(1));
+        lm.releaseAll(t0);
+        w1.join(WAIT);
+        assertEquals(t1, order.get(2));
+    }
+
+    /**
+     * TIMEOUT mode: a request that cannot be granted in time aborts.
+     */
+    @Test public void timeout() throws Exception {
+        lm.setDeadlockMode(LockManager.DeadlockMode.TIMEOUT);
+        lm.setLockTimeout(20);
+        TransactionId holder = new TransactionId();
+        lm.acquire(holder, p0, Permissions.READ_ONLY);
+        Thread w = request(new TransactionId(), Permissions.READ_WRITE);
+        assertFalse(w.isAlive());
+        assertTrue(order.isEmpty());
+        assertTrue(lm.getLockedPages(holder).contains(p0));
+    }
+
+    /**
+     * WAIT_DIE mode: a younger requester aborts at once, an older one waits.
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockMode(LockManager.DeadlockMode.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_WRITE);
+        Thread y = request(younger, Permissions.READ_ONLY);
+        assertFalse(y.isAlive());
+        lm.releaseAll(older);
+
+        lm.acquire(younger, p0, Permissions.READ_WRITE);
+        Thread o = request(older, Permissions.READ_ONLY);
+        assertTrue(o.isAlive());
+        lm.releaseAll(younger);
+        o.join(WAIT);
+        assertEquals(older, order.get(0));
+    }
+
+    /**
+     * WOUND_WAIT mode: a younger requester waits; an older one aborts the
+     * younger holder, here while it is itself waiting.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockMode(LockManager.DeadlockMode.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquire(younger, p0, Permissions.READ_WRITE);
+        lm.acquire(older, p1, Permissions.READ_WRITE);
+
+        Thread y = request(younger, p1, Permissions.READ_WRITE);
+        assertTrue(y.isAlive());
+        Thread o = request(older, p0, Permissions.READ_WRITE);
+        y.join(WAIT);
+        assertFalse(y.isAlive());
+        assertTrue(o.isAlive());
+
+        lm.releaseAll(younger);
+        o.join(WAIT);
+        assertEquals(older, order.get(0));
+    }
+
+    /**
+     * Two writers of different records on the same page only take IX on the
+     * page and table and do not block each other; a table S lock then waits
+     * for both, and S plus IX converts to SIX.
+     */
+    @Test public void intentionLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        RecordId r0 = new RecordId(p0, 0);
+        RecordId r1 = new RecordId(p0, 1);
+        for (TransactionId t : new TransactionId[] { t1, t2 }) {
+            lm.acquireTable(t, 1, LockMode.IX);
+            lm.acquire(t, p0, LockMode.IX);
+        }
+        lm.acquireRecord(t1, r0, LockMode.X);
+        lm.acquireRecord(t2, r1, LockMode.X);
+        assertFalse(lm.tryAcquireRecord(t2, r0, LockMode.S));
+        assertEquals(LockMode.X, lm.getLockMode(t1, r0));
+
+        final TransactionId reader = new TransactionId();
+        Thread r = new Thread() {
+            public void run() {
+                try {
+                    lm.acquireTable(reader, 1, LockMode.S);
+                    order.add(reader);
+                } catch (TransactionAbortedException e) {
+                }
+            }
+        };
+        r.start();
+        r.join(WAIT);
+        assertTrue(order.isEmpty());
+        lm.releaseAll(t1);
+        lm.releaseAll(t2);
+        r.join(WAIT);
+        assertEquals(reader, order.get(0));
+
+        lm.releaseAll(reader);
+        lm.acquireTable(t1, 1, LockMode.S);
+        lm.acquireTable(t1, 1, LockMode.IX);
+        assertEquals(LockMode.SIX, lm.getTableLockMode(t1, 1));
+    }
+
+    /**
+     * A reader that locks threshold pages of a table is escalated to a table
+     * S lock and drops its page locks; a writer of the table then waits. A
+     * reader that meets a concurrent writer keeps its page locks instead.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(4);
+        TransactionId writer = new TransactionId();
+        lm.acquire(writer, new HeapPageId(2, 0), Permissions.READ_WRITE);
+
+        TransactionId reader = new TransactionId();
+        for (int i = 0; i < 4; i++) {
+            lm.acquire(reader, new HeapPageId(1, i), Permissions.READ_ONLY);
+            lm.acquire(reader, new HeapPageId(2, i + 1), Permissions.READ_ONLY);
+        }
+        assertEquals(LockMode.S, lm.getTableLockMode(reader, 1));
+        assertEquals(LockMode.IS, lm.getTableLockMode(reader, 2));
+        assertEquals(4, lm.getLockedPages(reader).size());
+        assertTrue(lm.holdsLock(reader, new HeapPageId(1, 100)));
+        assertEquals(1, lm.getCoveredTables(reader).size());
+
+        Thread w = request(writer, Permissions.READ_WRITE);
+        assertTrue(order.isEmpty());
+        lm.releaseAll(reader);
+        w.join(WAIT);
+        assertEquals(writer, order.get(0));
+    }
+
+    /**
+     * A page lock only latches its table to take or upgrade the intention
+     * lock: a reader that goes on to write gets IX, which then blocks
+     * another transaction's table S lock.
+     */
+    @Test public void intentionUpgraded() throws Exception {
+        TransactionId t = new TransactionId();
+        lm.acquire(t, new HeapPageId(1, 0), Permissions.READ_ONLY);
+        lm.acquire(t, new HeapPageId(1, 1), Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, lm.getTableLockMode(t, 1));
+        lm.acquire(t, new HeapPageId(1, 2), Permissions.READ_WRITE);
+        assertEquals(LockMode.IX, lm.getTableLockMode(t, 1));
+        assertFalse(lm.tryAcquireTable(new TransactionId(), 1, LockMode.S));
+        lm.releaseAll(t);
+        assertNull(lm.getTableLockMode(t, 1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
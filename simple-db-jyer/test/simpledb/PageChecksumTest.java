@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageChecksumTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = Utility.getTupleDesc(2);
+
+    private static HeapFile create(boolean compressed) throws Exception {
+        File f = File.createTempFile("checksums", ".dat");
+        f.deleteOnExit();
+        HeapFile.freeSpaceMapFile(f).deleteOnExit();
+        HeapFile.checksumFile(f).deleteOnExit();
+        CompressedPageStore.mapFile(f).deleteOnExit();
+        HeapFile hf = new HeapFile(f, TD, HeapFile.PageFormat.FIXED, compressed);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /** Insert rows tuples into hf through the buffer pool and flush them. */
+    private static void fill(HeapFile hf, int rows) throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++)
+            bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, -i }));
+        bp.transactionComplete(tid);
+        bp.flushAllPages();
+    }
+
+    /** Overwrite the bytes of hf from offset to the end with garbage. */
+    private static void tear(HeapFile hf, long offset) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+        byte[] garbage = new byte[(int) (raf.length() - offset)];
+        Arrays.fill(garbage, (byte) 0x5a);
+        raf.seek(offset);
+        raf.write(garbage);
+        raf.close();
+    }
+
+    /**
+     * Every page written gets an entry with its checksum and the LSN of
+     * its last update record.
+     */
+    @Test public void entryWritten() throws Exception {
+        HeapFile hf = create(false);
+        fill(hf, 10);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        PageChecksums.Entry entry = new PageChecksums(HeapFile.checksumFile(hf.getFile())).entry(0);
+        assertNotNull(entry);
+        assertEquals(Database.getLogFile().getPageLsn(pid), entry.lsn);
+        assertTrue(entry.lsn > 0);
+        byte[] page = Arrays.copyOf(Files.readAllBytes(hf.getFile().toPath()),
+                BufferPool.getPageSize());
+        assertEquals(PageChecksums.checksum(page), entry.checksum);
+
+        // pages of the encoder have none, and are not checked
+        HeapFile encoded = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        encoded.readPage(new HeapPageId(encoded.getId(), 0));
+        assertNull(new PageChecksums(HeapFile.checksumFile(encoded.getFile())).entry(0));
+    }
+
+    /**
+     * A page torn half-way through its write is restored from the log, on
+     * disk too, and keeps its free-space map entry.
+     */
+    @Test public void tornPageRepaired() throws Exception {
+        for (boolean compressed : new boolean[] { false, true }) {
+            HeapFile hf = create(compressed);
+            fill(hf, 300);
+            HeapPageId pid = new HeapPageId(hf.getId(), 0);
+            byte[] expected = hf.readPage(pid).getPageData();
+            tear(hf, compressed ? 8 : BufferPool.getPageSize() / 2);
+            hf.close();
+
+            assertArrayEquals(expected, hf.readPage(pid).getPageData());
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            SystemTestUtil.matchTuples(hf, tuples(300));
+            hf.close();
+            if (!compressed) {
+                byte[] onDisk = Arrays.copyOf(Files.readAllBytes(hf.getFile().toPath()),
+                        expected.length);
+                assertArrayEquals(expected, onDisk);
+                // rewriting the page in place leaves the free-space map valid
+                FreeSpaceMap fsm = new FreeSpaceMap(HeapFile.freeSpaceMapFile(hf.getFile()),
+                        hf.getFile());
+                assertEquals(((HeapPage) hf.readPage(pid)).getNumEmptySlots(), fsm.getFree(0));
+            }
+        }
+    }
+
+    /**
+     * Entries are kept in memory once read, and written through to the
+     * file; they are read from the file again after close().
+     */
+    @Test public void entriesCached() throws Exception {
+        File f = File.createTempFile("checksums", ".crc");
+        f.delete();
+        PageChecksums checksums = new PageChecksums(f);
+        assertNull(checksums.entry(3));
+        byte[] page = HeapPage.createEmptyPageData();
+        checksums.save(3, page, 42);
+        assertEquals(42, checksums.entry(3).lsn);
+        assertNull(checksums.entry(2));
+        assertEquals(42, new PageChecksums(f).entry(3).lsn);
+
+        // a page read does not read the file
+        Files.write(f.toPath(), new byte[(int) f.length()]);
+        assertEquals(42, checksums.entry(3).lsn);
+        checksums.close();
+        assertNull(checksums.entry(3));
+        f.delete();
+    }
+
+    /** A corrupt page the log holds no image of is reported, not used. */
+    @Test public void corruptPageReported() throws Exception {
+        HeapFile hf = create(false);
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        // written without an update record
+        hf.writePage(page);
+        tear(hf, 100);
+        try {
+            hf.readPage(page.getId());
+            fail("expected the checksum to fail");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("checksum"));
+        }
+        assertFalse(Database.getLogFile().getPageLsn(page.getId()) > 0);
+    }
+
+    private static ArrayList<ArrayList<Integer>> tuples(int rows) {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, -i)));
+        return tuples;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageChecksumTest.class);
+    }
+}
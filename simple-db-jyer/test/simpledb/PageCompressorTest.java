@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCompressorTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+            new String[] { "id", "city" });
+
+    private static final String[] CITIES = { "Boston", "Cambridge", "Somerville" };
+
+    private static Tuple tuple(int id, String city) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(city, Type.STRING_LEN));
+        return t;
+    }
+
+    /** @return a full page of TD, with ids from first and runs of cities */
+    private static byte[] fullPage(int first) throws Exception {
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(new HeapPageId(-1, 0), HeapPage.createEmptyPageData());
+        for (int i = 0; page.getNumEmptySlots() > 0; i++)
+            page.insertTuple(tuple(first + i, CITIES[i / 20 % CITIES.length]));
+        return page.getPageData();
+    }
+
+    /** Bytes of every kind come back as they were. */
+    @Test public void lzRoundTrip() {
+        Random r = new Random(7);
+        byte[][] pages = new byte[4][BufferPool.getPageSize()];
+        r.nextBytes(pages[1]);
+        for (int i = 0; i < pages[2].length; i++)
+            pages[2][i] = (byte) (i % 97 == 0 ? r.nextInt() : i / 100);
+        for (int i = 0; i < 300; i++)
+            pages[3][i] = (byte) r.nextInt(4);
+        for (byte[] page : pages) {
+            byte[] lz = PageCompressor.compressLz(page);
+            assertArrayEquals(page, PageCompressor.decompressLz(lz, 1, page.length));
+        }
+        assertTrue(PageCompressor.compressLz(pages[0]).length < 100);
+        assertTrue(PageCompressor.compressLz(pages[2]).length < pages[2].length / 2);
+    }
+
+    /** Random bytes are stored as they are. */
+    @Test public void incompressible() {
+        byte[] page = new byte[BufferPool.getPageSize()];
+        new Random(1).nextBytes(page);
+        PageCompressor pc = new PageCompressor(null);
+        byte[] data = pc.compress(page);
+        assertEquals(PageCompressor.RAW, data[0]);
+        assertEquals(page.length + 1, data.length);
+        assertArrayEquals(page, pc.decompress(data, page.length));
+    }
+
+    /**
+     * Fixed-slot pages are encoded by field: consecutive ids in few bits,
+     * and runs of a few cities as dictionary codes.
+     */
+    @Test public void fieldEncoding() throws Exception {
+        byte[] page = fullPage(1000000);
+        PageCompressor pc = new PageCompressor(TD);
+        byte[] data = pc.compress(page);
+        assertEquals(PageCompressor.FIELDS, data[0]);
+        assertTrue(data.length < page.length / 10);
+        assertTrue(data.length < PageCompressor.compressLz(page).length);
+        assertArrayEquals(page, pc.decompress(data, page.length));
+
+        // negative and extreme values
+        HeapPage hp = new HeapPage(new HeapPageId(-1, 0), HeapPage.createEmptyPageData());
+        hp.insertTuple(tuple(Integer.MIN_VALUE, ""));
+        hp.insertTuple(tuple(Integer.MAX_VALUE, "x"));
+        hp.insertTuple(tuple(-5, CITIES[0]));
+        page = hp.getPageData();
+        assertArrayEquals(page, pc.decompress(pc.compress(page), page.length));
+    }
+
+    /**
+     * A compressed HeapFile stores its pages in less space and reads back
+     * the same tuples; the statistics report the ratio.
+     */
+    @Test public void compressedHeapFile() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        CompressedPageStore.mapFile(f).deleteOnExit();
+        HeapFile.freeSpaceMapFile(f).deleteOnExit();
+        HeapFile hf = new HeapFile(f, TD, HeapFile.PageFormat.FIXED, true);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        int rows = 3000;
+        for (int i = 0; i < rows; i++)
+            bp.insertTuple(tid, hf.getId(), tuple(i, CITIES[i / 50 % CITIES.length]));
+        bp.transactionComplete(tid);
+        bp.flushAllPages();
+        int pages = hf.numPages();
+        assertTrue(pages > 1);
+        assertTrue(f.length() * 5 < (long) pages * BufferPool.getPageSize());
+
+        // opened again, through the page-offset map
+        hf.close();
+        hf = new HeapFile(f, TD, HeapFile.PageFormat.FIXED, true);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertEquals(pages, hf.numPages());
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(CITIES[i / 50 % CITIES.length], ((StringField) t.getField(1)).getValue());
+        }
+        assertTrue(!it.hasNext());
+        it.close();
+        bp.transactionComplete(tid);
+
+        TableStats stats = new TableStats(hf.getId(), 1000);
+        assertTrue(stats.getCompressionRatio() > 5);
+        assertEquals(pages * 1000 / stats.getCompressionRatio(), stats.estimateScanCost(), 1e-6);
+    }
+
+    /** The column pages of a compressed ColumnarFile are encoded by type. */
+    @Test public void compressedColumnarFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, null, tuples);
+        File f = File.createTempFile("compressed", ".dat");
+        for (int c = 0; c < 3; c++) {
+            ColumnarFile.columnFile(f, c).deleteOnExit();
+            CompressedPageStore.mapFile(ColumnarFile.columnFile(f, c)).deleteOnExit();
+        }
+        TransactionId tid = new TransactionId();
+        ColumnarFile.write(f, hf.getTupleDesc(), hf.iterator(tid), true);
+        Database.getBufferPool().transactionComplete(tid);
+        ColumnarFile cf = new ColumnarFile(f, hf.getTupleDesc(), true);
+        Database.getCatalog().addTable(cf, SystemTestUtil.getUUID());
+        // values below 1000 take 10 of an int's 32 bits
+        assertTrue(cf.getCompressionRatio() > 2.5);
+        SystemTestUtil.matchTuples(cf, tuples);
+        cf.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCompressorTest.class);
+    }
+}
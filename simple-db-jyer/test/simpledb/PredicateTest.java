@@ -1,8 +1,12 @@
 package simpledb;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
@@ -55,6 +59,45 @@ public class PredicateTest extends SimpleDbTestBase{
     }
   }
 
+  /**
+   * Unit test for Type.compare(), which compares encoded fields
+   */
+  @Test public void compareEncoded() throws Exception {
+    Field[] ints = { new IntField(-5), new IntField(0), new IntField(7) };
+    Field[] strs = { new StringField("", Type.STRING_LEN),
+        new StringField("ab", Type.STRING_LEN), new StringField("abc", Type.STRING_LEN),
+        new StringField("b", Type.STRING_LEN), new StringField("\u00e9t\u00e9", Type.STRING_LEN) };
+    for (Field[] fs : new Field[][] { ints, strs }) {
+      for (Field f : fs) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(new byte[3]); // not at the start of the array
+        f.serialize(new DataOutputStream(baos));
+        byte[] data = baos.toByteArray();
+        Field parsed = f.getType().parse(data, 3);
+        for (Field operand : fs) {
+          for (Predicate.Op op : Predicate.Op.values())
+            assertEquals(parsed.compare(op, operand),
+                f.getType().compare(op, data, 3, operand));
+        }
+      }
+    }
+
+    // the same strings as VARCHAR, unpadded
+    for (Field f : strs) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      baos.write(new byte[3]);
+      Type.VARCHAR_TYPE.serialize(f, 10, false, new DataOutputStream(baos));
+      byte[] data = baos.toByteArray();
+      assertEquals(data.length - 3, Type.VARCHAR_TYPE.getVarLen(data, 3));
+      Field parsed = Type.VARCHAR_TYPE.parse(data, 3);
+      for (Field operand : strs) {
+        for (Predicate.Op op : Predicate.Op.values())
+          assertEquals(parsed.compare(op, operand),
+              Type.VARCHAR_TYPE.compare(op, data, 3, operand));
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
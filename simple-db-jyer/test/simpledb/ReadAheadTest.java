@@ -0,0 +1,83 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 64;
+    private static final int TABLE_PAGES = 20;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        bp = Database.resetBufferPool(BUFFER_PAGES);
+    }
+
+    private PageId page(int pageNo) {
+        return new HeapPageId(hf.getId(), pageNo);
+    }
+
+    /**
+     * Reaching a page reads the window after it into the pool; catching up
+     * with a page that is still being read widens the window.
+     */
+    @Test public void readsWindowAhead() throws Exception {
+        bp.setPrefetchWindow(8);
+        ReadAhead ra = new ReadAhead(bp, hf.getId(), null);
+        assertEquals(ReadAhead.INITIAL_WINDOW, ra.getWindow());
+        ra.reached(0, TABLE_PAGES);
+        ra.reached(1, TABLE_PAGES);
+        ra.reached(2, TABLE_PAGES);
+        assertTrue(bp.isResident(page(1)));
+        assertTrue(bp.isResident(page(2)));
+        assertFalse(bp.isResident(page(10)));
+        assertTrue(ra.getWindow() <= 8);
+
+        for (int i = 3; i < TABLE_PAGES; i++)
+            ra.reached(i, TABLE_PAGES);
+        for (int i = 1; i < TABLE_PAGES; i++)
+            assertTrue(bp.isResident(page(i)));
+    }
+
+    /** A ring scan reads ahead no further than its ring holds. */
+    @Test public void ringLimitsWindow() throws Exception {
+        assertEquals(2, new ReadAhead(bp, hf.getId(), new ScanRing(4)).getWindow());
+        assertEquals(1, new ReadAhead(bp, hf.getId(), new ScanRing(3)).getWindow());
+        bp.setPrefetchWindow(0);
+        assertEquals(0, new ReadAhead(bp, hf.getId(), null).getWindow());
+    }
+
+    /** A scan with read-ahead returns every tuple once. */
+    @Test public void scanWithReadAhead() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.setScanRing(new ScanRing(8));
+        int n = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        assertEquals(504 * TABLE_PAGES, n);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares the size and the cold scan time of a table of an int and two
+ * strings of 0 to 32 characters, one STRING and one VARCHAR(64), stored in
+ * fixed-size slots and in the variable-length records of slotted pages.
+ * Each scan starts with an empty buffer pool, so every page is read.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=RecordFormatBenchmark</tt>;
+ * optional arguments are the number of rows and the number of scans.
+ */
+public class RecordFormatBenchmark {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.VARCHAR_TYPE },
+            new String[] { "id", "a", "b" }, new int[] { 0, Type.STRING_LEN, 64 });
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        System.out.println("format\tpages\tbytes/row\tscan ns/row");
+        for (int run = 0; run < 2; run++) { // the first run warms up
+            for (HeapFile.PageFormat format : HeapFile.PageFormat.values()) {
+                HeapFile hf = load(format, rows);
+                long start = System.nanoTime();
+                for (int i = 0; i < scans; i++)
+                    scan(hf);
+                double nanos = (System.nanoTime() - start) / (double) scans / rows;
+                if (run > 0)
+                    System.out.printf("%s\t%d\t%.1f\t%.1f%n", format, hf.numPages(),
+                            hf.numPages() * (double) BufferPool.getPageSize() / rows, nanos);
+                hf.close();
+            }
+        }
+    }
+
+    private static HeapFile load(HeapFile.PageFormat format, int rows) throws Exception {
+        File f = File.createTempFile("format", ".dat");
+        f.deleteOnExit();
+        HeapFile.freeSpaceMapFile(f).deleteOnExit();
+        HeapFile hf = new HeapFile(f, TD, format);
+        Database.getCatalog().addTable(hf, "format" + f.getName());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Random r = new Random(42);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(string(r), Type.STRING_LEN));
+            t.setField(2, new StringField(string(r), Type.STRING_LEN));
+            bp.insertTuple(tid, hf.getId(), t);
+        }
+        bp.transactionComplete(tid);
+        bp.flushAllPages();
+        return hf;
+    }
+
+    private static String string(Random r) {
+        char[] cs = new char[r.nextInt(33)];
+        for (int i = 0; i < cs.length; i++)
+            cs[i] = (char) ('a' + r.nextInt(26));
+        return new String(cs);
+    }
+
+    private static void scan(HeapFile hf) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        long sum = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            sum += ((StringField) t.getField(2)).getValue().length();
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        if (sum < 0)
+            throw new IllegalStateException();
+    }
+}
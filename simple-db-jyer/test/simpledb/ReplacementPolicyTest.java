@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final java.util.function.Predicate<PageId> ANY = pid -> true;
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for LRUPolicy: the least recently requested page goes first.
+     */
+    @Test public void lru() {
+        ReplacementPolicy p = new LRUPolicy();
+        p.pageAdded(pid(0));
+        p.pageAdded(pid(1));
+        p.pageAdded(pid(2));
+        p.pageAccessed(pid(0));
+        assertEquals(pid(1), p.victim(ANY));
+        p.pageRemoved(pid(1));
+        assertEquals(pid(2), p.victim(ANY));
+        assertEquals(pid(0), p.victim(pid -> !pid.equals(pid(2))));
+    }
+
+    /**
+     * Unit test for ClockPolicy: a referenced page gets a second chance.
+     */
+    @Test public void clock() {
+        ReplacementPolicy p = new ClockPolicy();
+        p.pageAdded(pid(0));
+        p.pageAdded(pid(1));
+        p.pageAdded(pid(2));
+        // the first sweep clears every bit, then page 0 is chosen
+        assertEquals(pid(0), p.victim(ANY));
+        p.pageRemoved(pid(0));
+        p.pageAccessed(pid(1));
+        assertEquals(pid(2), p.victim(ANY));
+        p.pageRemoved(pid(2));
+        p.pageRemoved(pid(1));
+        assertNull(p.victim(ANY));
+    }
+
+    /**
+     * Unit test for LRUKPolicy: pages referenced once are evicted before
+     * pages referenced K times, however recent the single reference.
+     */
+    @Test public void lruK() {
+        ReplacementPolicy p = new LRUKPolicy(2, 10);
+        p.pageAdded(pid(0));
+        p.pageAccessed(pid(0));
+        for (int i = 1; i <= 5; i++)
+            p.pageAdded(pid(i));
+        assertEquals(pid(1), p.victim(ANY));
+        p.pageRemoved(pid(1));
+        // a page read again after eviction keeps its first reference
+        p.pageAdded(pid(1));
+        assertEquals(pid(2), p.victim(ANY));
+        for (int i = 2; i <= 5; i++)
+            p.pageRemoved(pid(i));
+        assertEquals(pid(0), p.victim(ANY));
+    }
+
+    /**
+     * Unit test for TwoQPolicy: a page that comes back while its id is in
+     * A1out is promoted and outlives pages seen only once.
+     */
+    @Test public void twoQ() {
+        ReplacementPolicy p = new TwoQPolicy(8);
+        p.pageAdded(pid(0));
+        assertEquals(pid(0), p.victim(ANY));
+        p.pageRemoved(pid(0));
+        p.pageAdded(pid(0)); // promoted to Am
+        for (int i = 1; i <= 3; i++)
+            p.pageAdded(pid(i));
+        // A1in holds 3 pages, more than its share of 2
+        assertEquals(pid(1), p.victim(ANY));
+        p.pageRemoved(pid(1));
+        p.pageRemoved(pid(2));
+        assertEquals(pid(0), p.victim(ANY));
+    }
+
+    /**
+     * Unit test for BufferPool hit and miss accounting.
+     */
+    @Test public void hitsAndMisses() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        BufferPool bp = Database.resetBufferPool(2, ReplacementPolicy.CLOCK);
+        TransactionId tid = new TransactionId();
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        PageId p1 = new HeapPageId(hf.getId(), 1);
+        PageId p2 = new HeapPageId(hf.getId(), 2);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        assertEquals(1, bp.getHitCount());
+        assertEquals(3, bp.getMissCount());
+        assertEquals(2, bp.pageSize());
+        bp.resetStatistics();
+        assertEquals(0, bp.getHitCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
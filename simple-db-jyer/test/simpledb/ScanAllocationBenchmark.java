@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the time and the heap allocation per scanned row of scans that
+ * start with an empty buffer pool, so that every page read is decoded
+ * afresh. The table is small enough to stay in the operating system's
+ * cache, so most of the cost is decoding and filtering the tuples, and
+ * the page data itself, 8 bytes a row, is the floor of the allocation.
+ * Read-ahead is off so that all pages are read by the scanning thread,
+ * whose allocation is counted. Three queries run over a table of two int
+ * columns: a scan reading one column, a filter that keeps about 1% of the
+ * rows, and a filter that keeps them all. Pages decode tuples only when
+ * they are accessed, so a filter that rejects a row should allocate
+ * nothing for it.
+ * <p>
+ * Run with <tt>ant runbenchmark -Dbenchmark=ScanAllocationBenchmark</tt>;
+ * optional arguments are the number of table pages and the number of scans.
+ */
+public class ScanAllocationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numPages = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        // two int columns fill a page with 504 tuples; values are below 65536
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, numPages * 504, null, null);
+
+        System.out.println("query\tns/row\tbytes/row");
+        Predicate selective = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(655));
+        Predicate all = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0));
+        for (int run = 0; run < 2; run++) { // the first run warms up
+            boolean print = run > 0;
+            report("scan", hf, null, scans, print);
+            report("filter 1%", hf, selective, scans, print);
+            report("filter 100%", hf, all, scans, print);
+        }
+    }
+
+    private static void report(String name, HeapFile hf, Predicate p, int scans,
+            boolean print) throws Exception {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long bytes = mx.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        long rows = 0;
+        for (int i = 0; i < scans; i++)
+            rows += scan(hf, p);
+        long nanos = System.nanoTime() - start;
+        bytes = mx.getThreadAllocatedBytes(tid) - bytes;
+        if (print)
+            System.out.printf("%s\t%.1f\t%.1f%n", name, nanos / (double) rows,
+                    bytes / (double) rows);
+    }
+
+    /** @return the number of rows scanned */
+    private static long scan(HeapFile hf, Predicate p) throws Exception {
+        Database.resetBufferPool(hf.numPages() + 16).setPrefetchWindow(0);
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, hf.getId(), "");
+        OpIterator it = p == null ? ss : new Filter(p, ss);
+        it.open();
+        long sum = 0;
+        while (it.hasNext())
+            sum += ((IntField) it.next().getField(1)).getValue();
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        if (sum < 0)
+            throw new IllegalStateException();
+        return hf.numPages() * 504L;
+    }
+}
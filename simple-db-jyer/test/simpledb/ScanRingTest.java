@@ -0,0 +1,93 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ScanRingTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 16;
+
+    private HeapFile hot;
+    private HeapFile big;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hot = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        bp = Database.resetBufferPool(BUFFER_PAGES);
+    }
+
+    private int countTuples(SeqScan scan) throws Exception {
+        int n = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    /**
+     * A ring scan of a large table must leave the hot pages resident and
+     * must not use more than its ring of frames.
+     */
+    @Test public void ringScanKeepsWorkingSet() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(504 * 4, countTuples(new SeqScan(tid, hot.getId(), "")));
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.setScanRing(new ScanRing(4));
+        assertEquals(504 * 40, countTuples(scan));
+        assertEquals(4 + 4, bp.pageSize());
+
+        bp.resetStatistics();
+        countTuples(new SeqScan(tid, hot.getId(), ""));
+        assertEquals(4, bp.getHitCount());
+        assertEquals(0, bp.getMissCount());
+    }
+
+    /**
+     * Without a ring the same scan flushes the hot pages out.
+     */
+    @Test public void plainScanEvictsWorkingSet() throws Exception {
+        TransactionId tid = new TransactionId();
+        countTuples(new SeqScan(tid, hot.getId(), ""));
+        countTuples(new SeqScan(tid, big.getId(), ""));
+
+        bp.resetStatistics();
+        countTuples(new SeqScan(tid, hot.getId(), ""));
+        assertEquals(4, bp.getMissCount());
+    }
+
+    /**
+     * A ring page requested by a normal getPage is promoted and is no longer
+     * recycled by the ring.
+     */
+    @Test public void promotion() throws Exception {
+        TransactionId tid = new TransactionId();
+        ScanRing ring = new ScanRing(2);
+        PageId p0 = new HeapPageId(big.getId(), 0);
+        bp.getPage(tid, p0, Permissions.READ_ONLY, ring);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        for (int i = 1; i < 6; i++)
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY, ring);
+        bp.resetStatistics();
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getHitCount());
+        assertEquals(3, bp.pageSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
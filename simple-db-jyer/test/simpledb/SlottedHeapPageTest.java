@@ -0,0 +1,239 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.VARCHAR_TYPE, Type.STRING_TYPE },
+            new String[] { "id", "name", "note" }, new int[] { 0, 20, Type.STRING_LEN });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, String name, String note) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        t.setField(2, new StringField(note, Type.STRING_LEN));
+        return t;
+    }
+
+    private SlottedHeapPage fill(int[] count) throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (page.insertTuple(tuple(n, "name" + n, "x"), slot -> true))
+            n++;
+        count[0] = n;
+        return page;
+    }
+
+    /**
+     * Short strings take only the bytes they need, and the page reads back
+     * what was written.
+     */
+    @Test public void insertAndRead() throws Exception {
+        int[] count = new int[1];
+        SlottedHeapPage page = fill(count);
+        int fixedSlots = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        assertTrue(count[0] > 5 * fixedSlots);
+
+        SlottedHeapPage read = new SlottedHeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = read.iterator();
+        for (int i = 0; i < count[0]; i++) {
+            Tuple t = it.next();
+            assertEquals(i, t.getRecordId().getTupleNumber());
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals("name" + i, ((StringField) t.getField(1)).getValue());
+            assertEquals("x", ((StringField) t.getField(2)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /** A VARCHAR(n) value is cut to n characters. */
+    @Test public void varcharTruncated() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(tuple(1, "a name longer than twenty characters", ""));
+        Tuple t = new SlottedHeapPage(pid, page.getPageData()).iterator().next();
+        assertEquals("a name longer than t", ((StringField) t.getField(1)).getValue());
+        assertEquals("", ((StringField) t.getField(2)).getValue());
+    }
+
+    /**
+     * A delete frees its record's space at once; the remaining tuples keep
+     * their slots, and the empty slots at the end of the directory are
+     * dropped when the page is written.
+     */
+    @Test public void deleteCompacts() throws Exception {
+        int[] count = new int[1];
+        SlottedHeapPage page = fill(count);
+        int n = count[0];
+        ArrayList<Tuple> tuples = new ArrayList<>();
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext();)
+            tuples.add(it.next());
+        // every other tuple and the last two
+        int last = -1;
+        for (int i = 0; i < n; i++) {
+            if (i % 2 == 0 || i >= n - 2)
+                page.deleteTuple(tuples.get(i));
+            else
+                last = i;
+        }
+        assertTrue(page.getNumEmptySlots() > 0);
+
+        byte[] data = page.getPageData();
+        assertEquals(last + 1, Type.readShort(data, 0));
+        SlottedHeapPage read = new SlottedHeapPage(pid, data);
+        Iterator<Tuple> it = read.iterator();
+        for (int i = 1; i <= last; i += 2) {
+            Tuple t = it.next();
+            assertEquals(i, t.getRecordId().getTupleNumber());
+            assertEquals(new IntField(i), t.getField(0));
+        }
+        assertFalse(it.hasNext());
+
+        // the freed space takes the deleted slots again, and longer records
+        int inserted = 0;
+        while (read.insertTuple(tuple(-1, "another name " + inserted, "x"), slot -> true))
+            inserted++;
+        assertTrue(inserted >= n / 4);
+    }
+
+    /**
+     * The space of a tuple deleted with keepSpace stays reserved until its
+     * slot is used again, so the delete can be undone.
+     */
+    @Test public void keepSpace() throws Exception {
+        int[] count = new int[1];
+        SlottedHeapPage page = fill(count);
+        assertTrue(count[0] > 100);
+        Tuple victim = page.getTuple(100);
+        page.deleteTuple(victim, true);
+        // as long as the tuples that filled the page
+        Tuple other = tuple(-1, "name999", "x");
+        assertFalse(page.insertTuple(other, slot -> slot != 100));
+
+        // the reservation is written with the page
+        SlottedHeapPage read = new SlottedHeapPage(pid, page.getPageData());
+        assertFalse(read.insertTuple(other, slot -> slot != 100));
+        read.restoreTuple(100, victim);
+        assertEquals(new IntField(100), read.getTuple(100).getField(0));
+
+        // once the slot may be reused, so may its space
+        assertTrue(page.insertTuple(other, slot -> true));
+        assertEquals(100, other.getRecordId().getTupleNumber());
+    }
+
+    /** A predicate is evaluated on the variable-length records. */
+    @Test public void iteratorWithPredicate() throws Exception {
+        int[] count = new int[1];
+        SlottedHeapPage page = fill(count);
+        Predicate p = new Predicate(1, Predicate.Op.EQUALS,
+                new StringField("name17", Type.STRING_LEN));
+        Iterator<Tuple> it = page.iterator(p);
+        assertEquals(new IntField(17), it.next().getField(0));
+        assertFalse(it.hasNext());
+
+        p = new Predicate(1, Predicate.Op.LIKE, new StringField("me1", Type.STRING_LEN));
+        int expected = 0;
+        for (int i = 0; i < count[0]; i++) {
+            if (("name" + i).contains("me1"))
+                expected++;
+        }
+        int matched = 0;
+        for (it = page.iterator(p); it.hasNext(); it.next())
+            matched++;
+        assertEquals(expected, matched);
+    }
+
+    /**
+     * A memory-mapped slotted HeapFile reads its records in place, and a page
+     * read keeps them when the page is overwritten.
+     */
+    @Test public void mappedFile() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFile.freeSpaceMapFile(f).deleteOnExit();
+        HeapFile.checksumFile(f).deleteOnExit();
+        HeapFile hf = new HeapFile(f, TD, HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        HeapPageId id = new HeapPageId(hf.getId(), 0);
+        int[] count = new int[1];
+        SlottedHeapPage page = fill(count);
+        hf.writePage(new SlottedHeapPage(id, page.getPageData()));
+        hf.setMemoryMapped(true);
+
+        SlottedHeapPage mapped = (SlottedHeapPage) hf.readPage(id);
+        assertTrue(mapped.data.isMapped());
+        Tuple last = null;
+        for (Iterator<Tuple> it = mapped.iterator(); it.hasNext(); )
+            last = it.next();
+        hf.writePage(new SlottedHeapPage(id, HeapPage.createEmptyPageData()));
+        assertEquals(new IntField(count[0] - 1), last.getField(0));
+        assertEquals("name" + (count[0] - 1), ((StringField) last.getField(1)).getValue());
+        assertFalse(((SlottedHeapPage) hf.readPage(id)).iterator().hasNext());
+    }
+
+    /** A slotted HeapFile holds the same tuples in fewer pages. */
+    @Test public void slottedFile() throws Exception {
+        int rows = 2000;
+        int[] pages = new int[2];
+        for (HeapFile.PageFormat format : HeapFile.PageFormat.values()) {
+            File f = File.createTempFile("slotted", ".dat");
+            f.deleteOnExit();
+            HeapFile.freeSpaceMapFile(f).deleteOnExit();
+            HeapFile hf = new HeapFile(f, TD, format);
+            Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+            BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < rows; i++)
+                bp.insertTuple(tid, hf.getId(), tuple(i, "name" + i, "note " + i));
+            bp.transactionComplete(tid);
+            bp.flushAllPages();
+            pages[format.ordinal()] = hf.numPages();
+
+            bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            tid = new TransactionId();
+            DbFileIterator it = hf.iterator(tid);
+            it.open();
+            int i = 0;
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                assertEquals(new IntField(i), t.getField(0));
+                assertEquals("note " + i, ((StringField) t.getField(2)).getValue());
+                i++;
+            }
+            it.close();
+            assertEquals(rows, i);
+            bp.transactionComplete(tid);
+        }
+        assertTrue(pages[HeapFile.PageFormat.SLOTTED.ordinal()] * 4
+                < pages[HeapFile.PageFormat.FIXED.ordinal()]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,247 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private static final Predicate.Op[] MERGEABLE = { Predicate.Op.EQUALS,
+            Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+    /** @return rows tuples of two fields, with keys from 0 to 19 in random order */
+    private static TupleIterator input(int rows, long seed) {
+        return input(rows, 20, seed);
+    }
+
+    /** @return rows tuples of two fields, with keys below keys in random order */
+    private static TupleIterator input(int rows, int keys, long seed) {
+        Random r = new Random(seed);
+        int[] data = new int[2 * rows];
+        for (int i = 0; i < rows; i++) {
+            data[2 * i] = r.nextInt(keys);
+            data[2 * i + 1] = i;
+        }
+        return TestUtil.createTupleList(2, data);
+    }
+
+    /** @return the tuples of it, as sorted strings */
+    private static ArrayList<String> rows(OpIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * The join returns the tuples of Join for every predicate it merges,
+     * with runs of duplicate keys on both sides, and again after a rewind.
+     */
+    @Test public void sameAsJoin() throws Exception {
+        for (Predicate.Op op : MERGEABLE) {
+            JoinPredicate pred = new JoinPredicate(0, op, 0);
+            Join expected = new Join(pred, input(300, 1), input(200, 2));
+            SortMergeJoin actual = new SortMergeJoin(pred, input(300, 1), input(200, 2));
+            expected.open();
+            actual.open();
+            ArrayList<String> rows = rows(expected);
+            assertFalse(rows.isEmpty());
+            assertEquals(rows, rows(actual));
+            actual.rewind();
+            assertEquals(rows, rows(actual));
+            expected.close();
+            actual.close();
+        }
+    }
+
+    /**
+     * Inputs that do not fit in a page are sorted externally and the inner
+     * one is read back from a spill file, with the same result, and the
+     * spill files are gone once the join is closed.
+     */
+    @Test public void spills() throws Exception {
+        SpillManager spills = Database.getSpillManager();
+        int files = spills.getFileCount();
+        for (Predicate.Op op : MERGEABLE) {
+            JoinPredicate pred = new JoinPredicate(0, op, 0);
+            Join expected = new Join(pred, input(1500, 500, 7), input(1200, 500, 8));
+            SortMergeJoin actual = new SortMergeJoin(pred, input(1500, 500, 7),
+                    input(1200, 500, 8), 1);
+            expected.open();
+            actual.open();
+            assertTrue(1200 > actual.getMemoryTuples());
+            assertTrue(actual.isSpilled());
+            assertTrue(((OrderBy) actual.getChildren()[0]).isExternal());
+            ArrayList<String> rows = rows(expected);
+            assertFalse(rows.isEmpty());
+            for (int i = 0; i < 10; i++)
+                actual.next();
+            actual.rewind();
+            assertEquals(rows, rows(actual));
+            expected.close();
+            actual.close();
+            assertEquals(files, spills.getFileCount());
+        }
+    }
+
+    /** A sort of more runs than it can merge at once merges them in passes. */
+    @Test public void externalSort() throws Exception {
+        OrderBy sort = new OrderBy(0, false, input(5000, 1000, 9), 2);
+        sort.open();
+        assertTrue(5000 > 3 * sort.getMemoryTuples());
+        assertTrue(sort.isExternal());
+        for (int pass = 0; pass < 2; pass++) {
+            ArrayList<Integer> keys = new ArrayList<Integer>();
+            while (sort.hasNext())
+                keys.add(((IntField) sort.next().getField(0)).getValue());
+            assertEquals(5000, keys.size());
+            for (int i = 1; i < keys.size(); i++)
+                assertTrue(keys.get(i - 1) >= keys.get(i));
+            sort.rewind();
+        }
+        sort.close();
+    }
+
+    /** The output follows the outer join field. */
+    @Test public void outputSorted() throws Exception {
+        for (Predicate.Op op : MERGEABLE) {
+            SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    input(300, 3), input(200, 4));
+            j.open();
+            int last = Integer.MIN_VALUE;
+            while (j.hasNext()) {
+                int key = ((IntField) j.next().getField(0)).getValue();
+                assertTrue(key >= last);
+                last = key;
+            }
+            j.close();
+        }
+    }
+
+    /**
+     * Inputs sorted on their join field already are merged as they are;
+     * others are sorted first.
+     */
+    @Test public void sortedInputsKept() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        OrderBy asc = new OrderBy(0, true, input(10, 5));
+        SortMergeJoin j = new SortMergeJoin(pred, asc, input(10, 6));
+        assertSame(asc, j.getChildren()[0]);
+        assertTrue(j.getChildren()[1] instanceof OrderBy);
+        assertTrue(SortMergeJoin.isSortedOn(j, 0));
+        assertFalse(SortMergeJoin.isSortedOn(j, 2));
+
+        OrderBy desc = new OrderBy(0, false, input(10, 5));
+        OrderBy other = new OrderBy(1, true, input(10, 5));
+        assertFalse(SortMergeJoin.isSortedOn(desc, 0));
+        assertFalse(SortMergeJoin.isSortedOn(other, 0));
+        assertTrue(SortMergeJoin.isSortedOn(new SortMergeJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 0), asc, desc), 2));
+    }
+
+    /** @return an input whose field is alias.field0, sorted on it if sorted is true */
+    private static OpIterator input(String alias, boolean sorted) {
+        OpIterator it = new TupleIterator(new TupleDesc(new Type[] { Type.INT_TYPE },
+                new String[] { alias + ".field0" }), new ArrayList<Tuple>());
+        return sorted ? new OrderBy(0, true, it) : it;
+    }
+
+    /**
+     * The planner merges range joins, and equality joins whose inputs both
+     * come sorted.
+     */
+    @Test public void planned() throws Exception {
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "a.field0", "b.field0",
+                Predicate.Op.EQUALS);
+        LogicalJoinNode ge = new LogicalJoinNode("a", "b", "a.field0", "b.field0",
+                Predicate.Op.GREATER_THAN_OR_EQ);
+        LogicalJoinNode ne = new LogicalJoinNode("a", "b", "a.field0", "b.field0",
+                Predicate.Op.NOT_EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(ge, input("a", false), input("b", false))
+                instanceof SortMergeJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(ne, input("a", false), input("b", false))
+                instanceof BlockNestedLoopJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(eq, input("a", true), input("b", false))
+                instanceof HashEquiJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(eq, input("a", true), input("b", true))
+                instanceof SortMergeJoin);
+        JoinOptimizer.setMergeJoinEnabled(false);
+        try {
+            assertTrue(JoinOptimizer.instantiateJoin(ge, input("a", false), input("b", false))
+                    instanceof BlockNestedLoopJoin);
+        } finally {
+            JoinOptimizer.setMergeJoinEnabled(true);
+        }
+    }
+
+    /**
+     * A range join costs far less merged than with nested loops, and less
+     * again with inputs sorted already; an equality join of sorted inputs
+     * costs less merged than hashed.
+     */
+    @Test public void cost() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(1);
+        HeapFile hf = new HeapFile(File.createTempFile("merge", ".dat"), td);
+        hf.getFile().deleteOnExit();
+        Database.getCatalog().addTable(hf, "t");
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "a");
+        lp.addScan(hf.getId(), "b");
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+        LogicalJoinNode lt = new LogicalJoinNode("a", "b", "a.field0", "b.field0",
+                Predicate.Op.LESS_THAN);
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "a.field0", "b.field0",
+                Predicate.Op.EQUALS);
+
+        double merged = jo.estimateJoinCost(lt, 1024, 2048, 10, 20);
+        assertEquals(10 + 20 + 1024 * 10 + 2048 * 11 + 1024 + 2048 + 0.5 * 1024 * 2048,
+                merged, 1e-6);
+        assertEquals(merged - 1024 * 10,
+                jo.estimateJoinCost(lt, 1024, 2048, 10, 20, true, false), 1e-6);
+        JoinOptimizer.setMergeJoinEnabled(false);
+        try {
+            assertTrue(jo.estimateJoinCost(lt, 1024, 2048, 10, 20) > 1.5 * merged);
+        } finally {
+            JoinOptimizer.setMergeJoinEnabled(true);
+        }
+
+        double sorted = jo.estimateJoinCost(eq, 1000, 2000, 10, 20, true, true);
+        assertEquals(10 + 20 + 1000 + 2000, sorted, 1e-6);
+        assertTrue(sorted < jo.estimateJoinCost(eq, 1000, 2000, 10, 20, true, false));
+
+        // inputs past the memory budget are written out and read back
+        SortMergeJoin.setDefaultMemoryPages(1);
+        try {
+            int fit = BlockNestedLoopJoin.tuplesPerBlock(td, 1);
+            assertEquals(10 + 20 + fit + 2 * fit + 2 * 20,
+                    jo.estimateJoinCost(eq, fit, 2 * fit, 10, 20, true, true), 1e-6);
+            assertEquals(10 + 20 + 2 * fit + fit + 0.5 * 2 * fit * fit + 2 * 10,
+                    jo.estimateJoinCost(lt, 2 * fit, fit, 10, 20, false, true)
+                            - 2 * fit * (Math.log(2 * fit) / Math.log(2)), 1e-6);
+        } finally {
+            SortMergeJoin.setDefaultMemoryPages(SortMergeJoin.DEFAULT_MEMORY_PAGES);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -380,6 +380,8 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            HeapFile.freeSpaceMapFile(emptyFile).deleteOnExit();
+            HeapFile.checksumFile(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
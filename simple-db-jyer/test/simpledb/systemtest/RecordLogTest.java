@@ -0,0 +1,188 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test aborts and recovery with RECORD lock granularity, where two
+ * transactions write to the same page at once.
+ */
+public class RecordLogTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+
+    @Before public void setUp()
+            throws IOException, DbException, TransactionAbortedException {
+        Database.reset();
+        Database.getBufferPool().setLockGranularity(BufferPool.LockGranularity.RECORD);
+        file = new File("simple1.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void tearDown() {
+        file.delete();
+    }
+
+    // restart the database and run log recovery
+    void crash()
+            throws DbException, TransactionAbortedException, IOException {
+        Database.reset();
+        Database.getBufferPool().setLockGranularity(BufferPool.LockGranularity.RECORD);
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    void insertRow(Transaction t, int v)
+            throws DbException, TransactionAbortedException {
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v));
+        value.setField(1, new IntField(0));
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2),
+                Arrays.asList(new Tuple[] { value })), hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+
+    /** @return the first fields of the rows of the table, sorted */
+    List<Integer> rows()
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        List<Integer> rows = new ArrayList<Integer>();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            rows.add(((IntField) scan.next().getField(0)).getValue());
+        scan.close();
+        t.commit();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * A writer aborts after another has committed on the same page and the
+     * page has been flushed: its row never reached the disk, so nothing
+     * needs to be rolled back there, and the other's survives the crash.
+     */
+    @Test public void abortThenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t1, 1);
+        insertRow(t2, 2);
+        assertEquals(1, hf.numPages());
+        t2.commit();
+        Database.getBufferPool().flushAllPages();
+        t1.abort();
+        assertEquals(Arrays.asList(2), rows());
+        crash();
+        assertEquals(Arrays.asList(2), rows());
+    }
+
+    /** An aborted writer's page is flushed again afterwards: still only the other's row. */
+    @Test public void abortFlushThenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t2, 2);
+        insertRow(t1, 1);
+        t1.abort();
+        Database.getBufferPool().flushAllPages();
+        t2.commit();
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(Arrays.asList(2), rows());
+    }
+
+    /**
+     * A flush while one writer is active writes only the page's committed
+     * rows, so a crash loses the active writer's row and nothing else.
+     */
+    @Test public void crashWhileWriting()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t1, 1);
+        insertRow(t2, 2);
+        t2.commit();
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(Arrays.asList(2), rows());
+    }
+
+    /** Both writers commit: both rows survive the crash. */
+    @Test public void commitBothThenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t1, 1);
+        insertRow(t2, 2);
+        t2.commit();
+        Database.getBufferPool().flushAllPages();
+        t1.commit();
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(Arrays.asList(1, 2), rows());
+    }
+
+    /** A page with uncommitted rows is not evicted to make room for others. */
+    @Test public void uncommittedPageNotStolen()
+            throws IOException, DbException, TransactionAbortedException {
+        Database.resetBufferPool(3).setLockGranularity(BufferPool.LockGranularity.RECORD);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 5000, null, null);
+        assertTrue(big.numPages() > 3);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(t1, 1);
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t2, 2);
+        t2.commit();
+        Database.getBufferPool().flushAllPages();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page pinned = Database.getBufferPool().getPage(t1.getId(), pid, Permissions.READ_WRITE);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        SeqScan scan = new SeqScan(t3.getId(), big.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t3.commit();
+        assertEquals(5000, n);
+        assertSame(pinned, Database.getBufferPool().getPage(t1.getId(), pid,
+                Permissions.READ_WRITE));
+        crash();
+        assertEquals(Arrays.asList(2), rows());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLogTest.class);
+    }
+}
@@ -0,0 +1,87 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Read-only transactions read a snapshot as of their start, without taking
+ * locks, while writers run beside them.
+ */
+public class SnapshotTest extends SimpleDbTestBase {
+
+    /** A snapshot neither blocks on nor sees an uncommitted or later insert. */
+    @Test public void testSnapshotIgnoresWriters()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*3, null, null);
+        Transaction before = new Transaction(true);
+        before.start();
+
+        Transaction writer = new Transaction();
+        writer.start();
+        AbortEvictionTest.insertRow(f, writer);
+
+        // the writer holds an X lock on the page; this would block otherwise
+        assertFalse(AbortEvictionTest.findMagicTuple(f, before));
+        Transaction during = new Transaction(true);
+        during.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, during));
+
+        writer.commit();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, before));
+        assertFalse(AbortEvictionTest.findMagicTuple(f, during));
+        before.commit();
+        during.commit();
+
+        Transaction after = new Transaction(true);
+        after.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, after));
+        after.commit();
+    }
+
+    /**
+     * A snapshot still reads the committed version of a page that was
+     * written to disk with uncommitted changes to make room in the pool.
+     */
+    @Test public void testSnapshotOfEvictedPage()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(2);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        AbortEvictionTest.insertRow(f, writer);
+        Transaction reader = new Transaction(true);
+        reader.start();
+        // scanning 10 pages through 2 frames evicts the dirty page
+        assertTrue(AbortEvictionTest.findMagicTuple(f, writer));
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+
+        writer.commit();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+        reader.commit();
+
+        Transaction after = new Transaction(true);
+        after.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, after));
+        after.commit();
+    }
+
+    /** A read-only transaction cannot write. */
+    @Test(expected=DbException.class) public void testSnapshotCannotWrite()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512, null, null);
+        Transaction t = new Transaction(true);
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotTest.class);
+    }
+}